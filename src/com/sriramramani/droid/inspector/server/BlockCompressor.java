@@ -0,0 +1,148 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fast compressor for raw pixels, writing the LZ4 block format, so that
+ * clients can decode it with any LZ4 library. It trades ratio for speed: a
+ * single probe in a small hash table finds the matches, and runs without
+ * matches are skipped faster as they grow.
+ *
+ * Not thread safe: the hash table is reused from one block to the next.
+ */
+final class BlockCompressor {
+    private static final int MIN_MATCH = 4;
+
+    // The last literals, and the last match, keep away from the end of the block.
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_OFFSET = 65535;
+    private static final int RUN_MASK = 15;
+    private static final int HASH_LOG = 12;
+
+    // Positions of 4 byte sequences, plus one so that 0 means none.
+    private final int[] mTable = new int[1 << HASH_LOG];
+    private byte[] mOutput;
+
+    /**
+     * Returns the size of the largest block a source of the given length
+     * can be compressed to.
+     */
+    static int getMaxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses bytes of a buffer into a block.
+     *
+     * @param source The buffer. Its position is changed.
+     * @param length The number of bytes to compress, from the start of the buffer.
+     * @return The block.
+     */
+    byte[] compress(ByteBuffer source, int length) {
+        final int maxLength = getMaxCompressedLength(length);
+        if (mOutput == null || mOutput.length < maxLength) {
+            mOutput = new byte[maxLength];
+        }
+
+        final byte[] output = mOutput;
+        int out = 0;
+        int anchor = 0;
+
+        if (length >= MF_LIMIT + 1) {
+            final int[] table = mTable;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = 0;
+            }
+
+            final int matchLimit = length - LAST_LITERALS;
+            final int lastMatchStart = length - MF_LIMIT;
+
+            int i = 0;
+            while (i <= lastMatchStart) {
+                final int sequence = source.getInt(i);
+                final int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int match = table[hash] - 1;
+                table[hash] = i + 1;
+
+                if (match < 0 || i - match > MAX_OFFSET || source.getInt(match) != sequence) {
+                    // Skip faster through data that doesn't compress.
+                    i += 1 + ((i - anchor) >> 6);
+                    continue;
+                }
+
+                // Extend the match backwards, over the pending literals.
+                while (i > anchor && match > 0 && source.get(i - 1) == source.get(match - 1)) {
+                    i--;
+                    match--;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (i + matchLength < matchLimit
+                        && source.get(match + matchLength) == source.get(i + matchLength)) {
+                    matchLength++;
+                }
+
+                out = writeSequence(source, anchor, i - anchor, output, out, i - match, matchLength);
+                i += matchLength;
+                anchor = i;
+            }
+        }
+
+        // The last literals.
+        out = writeSequence(source, anchor, length - anchor, output, out, 0, 0);
+
+        final byte[] block = new byte[out];
+        System.arraycopy(output, 0, block, 0, out);
+        return block;
+    }
+
+    /**
+     * Writes literals, followed by a match unless its length is 0.
+     *
+     * @return The new position in the output.
+     */
+    private static int writeSequence(ByteBuffer source, int literals, int literalLength,
+            byte[] output, int out, int offset, int matchLength) {
+        final int token = out++;
+        if (literalLength >= RUN_MASK) {
+            output[token] = (byte) (RUN_MASK << 4);
+            out = writeLength(output, out, literalLength - RUN_MASK);
+        } else {
+            output[token] = (byte) (literalLength << 4);
+        }
+
+        source.position(literals);
+        source.get(output, out, literalLength);
+        out += literalLength;
+
+        if (matchLength == 0) {
+            return out;
+        }
+
+        output[out++] = (byte) offset;
+        output[out++] = (byte) (offset >>> 8);
+
+        final int extra = matchLength - MIN_MATCH;
+        if (extra >= RUN_MASK) {
+            output[token] |= RUN_MASK;
+            out = writeLength(output, out, extra - RUN_MASK);
+        } else {
+            output[token] |= extra;
+        }
+        return out;
+    }
+
+    private static int writeLength(byte[] output, int out, int length) {
+        for (; length >= 255; length -= 255) {
+            output[out++] = (byte) 255;
+        }
+        output[out++] = (byte) length;
+        return out;
+    }
+}
@@ -0,0 +1,86 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.ArrayList;
+
+/**
+ * Signals that some work is no longer needed. Listeners are run once, on
+ * the thread that cancels, or right away if it's already cancelled.
+ *
+ * Long running work also polls whether it's still needed, between its steps.
+ * Polling runs the pollers, on the thread that polls, which cancel the work
+ * if whatever they watch is gone.
+ */
+final class Cancellation {
+    private static final Runnable[] NO_POLLERS = new Runnable[0];
+
+    private boolean mCancelled;
+    private ArrayList<Runnable> mListeners = new ArrayList<Runnable>(2);
+    private ArrayList<Runnable> mPollers = new ArrayList<Runnable>(2);
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void cancel() {
+        final ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listeners = mListeners;
+            mListeners = null;
+            mPollers = null;
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs a listener once this is cancelled.
+     */
+    void onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Runs a poller each time this is polled, until this is cancelled.
+     */
+    synchronized void onPoll(Runnable poller) {
+        if (!mCancelled) {
+            mPollers.add(poller);
+        }
+    }
+
+    /**
+     * Runs the pollers, which may cancel this.
+     *
+     * @return True if this is cancelled.
+     */
+    boolean poll() {
+        final Runnable[] pollers;
+        synchronized (this) {
+            if (mCancelled) {
+                return true;
+            }
+            pollers = mPollers.isEmpty() ? NO_POLLERS : mPollers.toArray(new Runnable[mPollers.size()]);
+        }
+
+        for (Runnable poller : pollers) {
+            poller.run();
+        }
+        return isCancelled();
+    }
+}
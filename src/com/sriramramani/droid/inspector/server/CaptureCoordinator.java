@@ -0,0 +1,304 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Coalesces concurrent captures. Requests for the same window and capture
+ * options that arrive while a capture is in flight join it, instead of
+ * walking the hierarchy again on the UI thread. All of them share the
+ * same snapshot, and read it while it is being captured. A request with a
+ * deadline only joins a capture whose deadline is no earlier than its own,
+ * so that it doesn't get a snapshot cut shorter than it asked for.
+ *
+ * Each request subscribes to the capture it started or joined, until its
+ * cancellation is cancelled: once it's done, or when its client closes the
+ * connection. Polling a capture polls its subscribers. A capture is
+ * cancelled as soon as it has no subscribers left.
+ *
+ * Complete snapshots are kept in a {@link SnapshotCache}, and are served
+ * again until the window changes.
+ */
+final class CaptureCoordinator {
+    private static final String LOG_TAG = "DroidInspector";
+
+    private final Executor mExecutor;
+    private final MemoryBudget mBudget;
+    private final PropertyRegistry mProperties;
+    private final ViewIds mIds;
+    private final HashMap<Key, Capture> mInFlight = new HashMap<Key, Capture>();
+    private final SnapshotCache mCache = new SnapshotCache();
+
+    /**
+     * @param executor The executor to run the captures on.
+     * @param budget The memory budget shared by all captures.
+     * @param properties The extractors of the extra properties of views.
+     * @param ids The ids of the views.
+     */
+    CaptureCoordinator(Executor executor, MemoryBudget budget, PropertyRegistry properties,
+            ViewIds ids) {
+        mExecutor = executor;
+        mBudget = budget;
+        mProperties = properties;
+        mIds = ids;
+    }
+
+    /**
+     * Returns a snapshot of the window. A valid cached snapshot is returned
+     * unless the request asks for a fresh one. If a capture of the window
+     * with the same options is in flight, its snapshot is returned. Otherwise
+     * a new capture is started.
+     *
+     * @param window The root view of the window to capture.
+     * @param options The options of the request.
+     * @param request Cancelled when the request no longer needs the snapshot.
+     * @return The snapshot, which may still be filling up.
+     */
+    Snapshot capture(final View window, final RequestOptions options, Cancellation request) {
+        final String captureKey = options.getCaptureKey();
+        if (!options.isFresh()) {
+            final Snapshot cached = mCache.get(window, captureKey, options.getMaxAge());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final Key key = new Key(window, captureKey);
+        final Capture capture = new Capture(options.getDeadline());
+        final Capture joined = join(key, capture, request);
+        if (joined != capture) {
+            return joined.snapshot;
+        }
+
+        final Snapshot snapshot = capture.snapshot;
+
+        final SnapshotCache.WindowObserver observer = mCache.observe(window);
+        final int generation = observer.getGeneration();
+        final long capturedAt = SystemClock.uptimeMillis();
+        final MemoryBudget.Allowance allowance = mBudget.newAllowance(options.getMemoryBudget());
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ViewCapture(window, options, observer, allowance, mProperties,
+                            mIds, capture.cancellation).capture(snapshot);
+                    if (!snapshot.isTruncated()) {
+                        // A capture cut short by its deadline isn't reused.
+                        mCache.put(window, captureKey, generation, capturedAt, snapshot);
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(LOG_TAG, "Capture interrupted");
+                } catch (CancellationException e) {
+                    Log.i(LOG_TAG, "Capture cancelled");
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "Capture failed", e);
+                } finally {
+                    allowance.close();
+                    synchronized (mInFlight) {
+                        if (mInFlight.get(key) == capture) {
+                            mInFlight.remove(key);
+                        }
+                    }
+                    snapshot.complete();
+                }
+            }
+        });
+
+        return snapshot;
+    }
+
+    /**
+     * Subscribes a request to the capture in flight with the key, if it can
+     * join it. Otherwise the candidate starts in its place, and the capture
+     * that ends too early goes on for its own subscribers.
+     *
+     * @param key The window and capture options of the request.
+     * @param candidate The capture to start if the request can't join one.
+     * @param request Cancelled when the request no longer needs the snapshot.
+     * @return The capture the request subscribed to.
+     */
+    Capture join(Key key, Capture candidate, Cancellation request) {
+        synchronized (mInFlight) {
+            final Capture inFlight = mInFlight.get(key);
+            if (inFlight != null && !inFlight.cancellation.isCancelled()
+                    && inFlight.deadline >= candidate.deadline) {
+                subscribe(key, inFlight, request);
+                return inFlight;
+            }
+
+            mInFlight.put(key, candidate);
+            subscribe(key, candidate, request);
+            return candidate;
+        }
+    }
+
+    /**
+     * Subscribes a request to a capture in flight, until the request is
+     * cancelled. The capture is cancelled along with its last subscriber.
+     * Must be called with the lock of the captures in flight held.
+     */
+    private void subscribe(final Key key, final Capture capture, final Cancellation request) {
+        capture.subscribers++;
+        capture.cancellation.onPoll(new Runnable() {
+            @Override
+            public void run() {
+                request.poll();
+            }
+        });
+        request.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mInFlight) {
+                    if (--capture.subscribers > 0 || capture.snapshot.isComplete()) {
+                        return;
+                    }
+
+                    // Nobody joins it anymore.
+                    if (mInFlight.get(key) == capture) {
+                        mInFlight.remove(key);
+                    }
+                }
+
+                capture.cancellation.cancel();
+            }
+        });
+    }
+
+    /**
+     * Captures the layers of some nodes of the last snapshot of a window
+     * again, at the level of detail of the request. Layers already captured
+     * at that level are not captured again. This runs on the calling thread.
+     *
+     * @param window The root view of the window.
+     * @param snapshot The last snapshot of the window.
+     * @param nodes Indices of the nodes in the snapshot.
+     * @param options The options of the request.
+     * @param request Cancelled when the request no longer needs the layers.
+     * @return The layers at the level, or null if the window changed since
+     *         the snapshot, whose layers can't be captured again then.
+     */
+    LayerLevel captureLayers(View window, Snapshot snapshot, int[] nodes, RequestOptions options,
+            Cancellation request) throws InterruptedException {
+        if (!mCache.isValid(window, snapshot)) {
+            return null;
+        }
+
+        final LayerLevel level = snapshot.getLevel(options.getLevelOfDetail());
+        final MemoryBudget.Allowance allowance = mBudget.newAllowance(options.getMemoryBudget());
+        try {
+            final ViewCapture capture = new ViewCapture(window, options, mCache.observe(window),
+                    allowance, mProperties, mIds, request);
+            for (int index : nodes) {
+                final View view = snapshot.waitForNode(index) ? mIds.getView(snapshot.getUid(index)) : null;
+                if (view == null || level.get(index) != null) {
+                    continue;
+                }
+
+                final Snapshot.Node layers = capture.captureLayers(view, level.getBlobs());
+                if (layers == null) {
+                    break;
+                }
+                level.put(index, layers);
+            }
+        } finally {
+            allowance.close();
+        }
+        return level;
+    }
+
+    /**
+     * Returns the last snapshot captured of a window, without capturing it.
+     *
+     * @param window The root view of the window.
+     * @return The snapshot, or null if the window hasn't been captured.
+     */
+    Snapshot getLatest(View window) {
+        return mCache.getLatest(window);
+    }
+
+    /**
+     * Drops the cached snapshot of a window, and stops observing it.
+     */
+    void forget(View window) {
+        mCache.remove(window);
+    }
+
+    /**
+     * Cancels the captures in flight, and drops all cached snapshots.
+     */
+    void clear() {
+        final Capture[] captures;
+        synchronized (mInFlight) {
+            captures = mInFlight.values().toArray(new Capture[mInFlight.size()]);
+            mInFlight.clear();
+        }
+
+        for (Capture capture : captures) {
+            capture.cancellation.cancel();
+        }
+
+        mCache.clear();
+    }
+
+    /**
+     * Drops the cached snapshots when the system is low on memory.
+     *
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trim();
+        }
+    }
+
+    /**
+     * A capture in flight, and the number of requests subscribed to it.
+     */
+    static final class Capture {
+        final Snapshot snapshot = new Snapshot();
+        final Cancellation cancellation = new Cancellation();
+        // The deadline of the request that started it, or 0.
+        final long deadline;
+        int subscribers;
+
+        Capture(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    static final class Key {
+        private final View mWindow;
+        private final String mOptions;
+
+        Key(View window, String options) {
+            mWindow = window;
+            mOptions = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return mWindow == other.mWindow && mOptions.equals(other.mOptions);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mWindow) + mOptions.hashCode();
+        }
+    }
+}
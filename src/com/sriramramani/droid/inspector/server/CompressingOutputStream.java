@@ -0,0 +1,158 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.os.Build;
+
+/**
+ * An output stream that compresses everything written to it as a zlib
+ * (deflate) or gzip stream.
+ *
+ * Unlike {@link java.util.zip.DeflaterOutputStream}, a {@link #flush()} emits
+ * everything written so far (on platforms that support a sync flush), so that
+ * the client can decode the response while it is still being written.
+ */
+final class CompressingOutputStream extends FilterOutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    // GZIP header: magic, deflate, no flags, no mtime, no extra flags, unknown OS.
+    private static final byte[] GZIP_HEADER = new byte[] {
+        (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final Deflater mDeflater;
+    private final CRC32 mCrc;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final int mLevel;
+
+    private boolean mCanStore = true;
+    private boolean mFinished;
+
+    /**
+     * @param out The stream to write the compressed data to.
+     * @param compression One of {@link RequestOptions#COMPRESSION_DEFLATE}
+     *                    or {@link RequestOptions#COMPRESSION_GZIP}.
+     * @param level The compression level, from 0 to 9 or -1 for the default.
+     */
+    CompressingOutputStream(OutputStream out, int compression, int level) throws IOException {
+        super(out);
+        mLevel = level;
+
+        final boolean gzip = (compression == RequestOptions.COMPRESSION_GZIP);
+        mDeflater = new Deflater(level, gzip);
+        if (gzip) {
+            mCrc = new CRC32();
+            out.write(GZIP_HEADER);
+        } else {
+            mCrc = null;
+        }
+    }
+
+    /**
+     * Switches between compressing the data and storing it as is.
+     * Storing is meant for payloads that are already compressed, like PNGs.
+     * Older platforms can't change the level of a stream that has started,
+     * in which case everything stays compressed.
+     *
+     * @param store True to store the data that follows, false to compress it.
+     */
+    void setStoring(boolean store) {
+        if (!mCanStore) {
+            return;
+        }
+
+        try {
+            mDeflater.setLevel(store ? Deflater.NO_COMPRESSION : mLevel);
+        } catch (IllegalStateException e) {
+            mCanStore = false;
+        }
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (mFinished) {
+            throw new IOException("Stream is finished");
+        }
+
+        if (mCrc != null) {
+            mCrc.update(buffer, offset, count);
+        }
+
+        mDeflater.setInput(buffer, offset, count);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!mFinished && Build.VERSION.SDK_INT >= 19) {
+            int count;
+            while ((count = mDeflater.deflate(mBuffer, 0, mBuffer.length, Deflater.SYNC_FLUSH)) > 0) {
+                out.write(mBuffer, 0, count);
+                if (count < mBuffer.length) {
+                    break;
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the end of the compressed stream, without closing the underlying stream.
+     */
+    void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+
+        if (mCrc != null) {
+            writeIntLE((int) mCrc.getValue());
+            writeIntLE(mDeflater.getTotalIn());
+        }
+
+        mDeflater.end();
+        mFinished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deflate() throws IOException {
+        final int count = mDeflater.deflate(mBuffer);
+        if (count > 0) {
+            out.write(mBuffer, 0, count);
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
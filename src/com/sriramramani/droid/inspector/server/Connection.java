@@ -0,0 +1,199 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import android.net.LocalSocket;
+
+/**
+ * A connection of a client, over TCP or over a local socket. Requests are
+ * handled the same way whatever the transport.
+ *
+ * Whether the client closed the connection is polled while the response is
+ * being captured, possibly while it's being written from another thread.
+ * Polling changes the blocking mode or the timeout of the socket, so it
+ * doesn't happen during a write to the output stream.
+ */
+abstract class Connection {
+    // Held while writing to the output stream, and while polling.
+    final Object mLock = new Object();
+
+    private OutputStream mOut;
+
+    abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the output stream of the connection, whose writes are not
+     * interleaved with polling.
+     */
+    final OutputStream getOutputStream() throws IOException {
+        synchronized (mLock) {
+            if (mOut == null) {
+                mOut = new LockedOutputStream(getSocketOutputStream(), mLock);
+            }
+            return mOut;
+        }
+    }
+
+    abstract OutputStream getSocketOutputStream() throws IOException;
+
+    abstract boolean isOutputShutdown();
+
+    /**
+     * Returns the channel of the connection, to send files without copies.
+     * Nothing polls the connection while sending files.
+     *
+     * @return The channel, or null if the connection has none.
+     */
+    abstract WritableByteChannel getChannel();
+
+    /**
+     * Returns true if the client closed the connection, without blocking.
+     * Data sent by the client after its request is discarded. Clients must
+     * keep the connection open until they have read the response.
+     */
+    abstract boolean isClosedByClient() throws IOException;
+
+    abstract void close() throws IOException;
+
+    static Connection of(final Socket socket) {
+        return new Connection() {
+            // Reused by each poll.
+            private final ByteBuffer mProbe = ByteBuffer.allocate(64);
+
+            @Override
+            InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            OutputStream getSocketOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            boolean isOutputShutdown() {
+                return socket.isOutputShutdown();
+            }
+
+            @Override
+            WritableByteChannel getChannel() {
+                return socket.getChannel();
+            }
+
+            @Override
+            boolean isClosedByClient() throws IOException {
+                // Sockets without a channel can't be read without blocking.
+                final SocketChannel channel = socket.getChannel();
+                if (channel == null) {
+                    return false;
+                }
+
+                synchronized (mLock) {
+                    channel.configureBlocking(false);
+                    try {
+                        mProbe.clear();
+                        return channel.read(mProbe) == -1;
+                    } finally {
+                        channel.configureBlocking(true);
+                    }
+                }
+            }
+
+            @Override
+            void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    static Connection of(final LocalSocket socket) {
+        return new Connection() {
+            @Override
+            InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            OutputStream getSocketOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            boolean isOutputShutdown() {
+                return socket.isOutputShutdown();
+            }
+
+            @Override
+            WritableByteChannel getChannel() {
+                return null;
+            }
+
+            @Override
+            boolean isClosedByClient() throws IOException {
+                // Local sockets have no channel, a read that times out right
+                // away doesn't block.
+                synchronized (mLock) {
+                    socket.setSoTimeout(1);
+                    try {
+                        return socket.getInputStream().read() == -1;
+                    } catch (IOException e) {
+                        // Timed out, there's nothing to read.
+                        return false;
+                    } finally {
+                        socket.setSoTimeout(0);
+                    }
+                }
+            }
+
+            @Override
+            void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * Writes to the stream of a socket while holding the lock of its
+     * connection.
+     */
+    private static final class LockedOutputStream extends FilterOutputStream {
+        private final Object mLock;
+
+        LockedOutputStream(OutputStream out, Object lock) {
+            super(out);
+            mLock = lock;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (mLock) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            synchronized (mLock) {
+                out.write(buffer, offset, count);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mLock) {
+                out.flush();
+            }
+        }
+    }
+}
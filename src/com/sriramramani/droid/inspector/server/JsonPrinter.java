@@ -4,327 +4,516 @@
 
 package com.sriramramani.droid.inspector.server;
 
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-
-import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Rect;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.Handler;
+import java.util.Arrays;
+import java.util.List;
+
 import android.util.Base64;
 import android.view.View;
-import android.view.ViewGroup;
-import android.view.ViewGroup.LayoutParams;
-import android.view.ViewGroup.MarginLayoutParams;
 
 final class JsonPrinter {
 
-    // PhoneWindow class
-    private static final String PHONE_WINDOW = "PhoneWindow";
-
-    // Identifier for base64 encoding.
-    private static final String BASE64_IDENTIFIER = "data:image/png;base64,";
-
     private JsonPrinter() {
         // .xXx.
     }
 
     /**
-     * Prints the hierarchy of a view to the output stream.
+     * Prints the hierarchy of a snapshot to the output stream. Nodes are
+     * printed as soon as they are captured.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param snapshot Snapshot of the hierarchy.
+     */
+    public static boolean printHierarchy(ResponseWriter out, char quote, Snapshot snapshot)
+            throws IOException, InterruptedException {
+        return printHierarchy(out, quote, snapshot, 0);
+    }
+
+    /**
+     * Prints the hierarchy of a snapshot to the output stream, until a
+     * deadline. If the capture is not complete by then, or if it was
+     * truncated, the nodes whose children may be missing are marked.
      *
-     * @param out BufferedWriter to write the contents.
-     * @param view View for capturing layers.
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param deadline The deadline in uptime milliseconds, or 0 for none.
      */
-    public static boolean printHierarchy(BufferedWriter out, final View view) throws IOException {
+    public static boolean printHierarchy(ResponseWriter out, char quote, Snapshot snapshot,
+            long deadline)
+            throws IOException, InterruptedException {
         /*
          * Note: Always the writing should happen in the thread this method was called on.
-         * This method will be called from one of the background threads from the ViewServer.
-         * The methods on a view should always be called on the UI thread.
-         * And, never write from the UI thread! :sigh:
+         * This method will be called from one of the background threads from the ViewServer,
+         * while the snapshot is being captured on another.
          */
-        final Handler handler = view.getHandler();
-        final FutureTask<String> properties = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getProperties(view);
+        int openDepth = -1;
+        for (int i = 0; snapshot.waitForNode(i, deadline); i++) {
+            final int depth = snapshot.getDepth(i);
+            final boolean isSibling = openDepth >= depth;
+            for (; openDepth >= depth; openDepth--) {
+                out.write("]}");
             }
-        });
 
-        final FutureTask<String> background = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getBackground(view);
+            if (isSibling) {
+                out.write(",");
             }
-        });
 
-        final FutureTask<String> content = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getContent(view);
+            out.write("{");
+            printProperties(out, quote, snapshot, i);
+            final Snapshot.Node details = snapshot.getDetails(i);
+            if (details != null) {
+                printLayers(out, quote, details);
             }
-        });
+            out.flush();
+
+            out.write(", " + quote + "children" + quote + ":[");
+            openDepth = depth;
+        }
 
-        handler.post(properties);
-        handler.post(background);
-        handler.post(content);
+        final boolean isTruncated = snapshot.isTruncated() || !snapshot.isComplete();
+        for (; openDepth >= 0; openDepth--) {
+            out.write(isTruncated ? "], " + quote + "truncated" + quote + ":true}" : "]}");
+        }
 
-        out.write("{");
+        // The pixels of the layers, if they are sent as blobs.
+        out.writeBlobs(snapshot);
 
-        try {
-            // Keep waiting.
-            String result;
-            result = properties.get();
-            out.write(result);
+        out.flush();
+        return true;
+    }
 
-            result = background.get();
-            if (result != null) {
-                out.write(result);
+    /**
+     * Prints the given nodes of a snapshot along with their ancestors, nested
+     * like in the hierarchy. Only the properties of the nodes are printed.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param matches Indices of the nodes, in pre-order.
+     */
+    public static boolean printMatches(ResponseWriter out, char quote, Snapshot snapshot,
+            int[] matches)
+            throws IOException, InterruptedException {
+        final boolean[] included = snapshot.getSpatialIndex().getAncestry(matches);
+
+        int openDepth = -1;
+        for (int i = 0; i < included.length; i++) {
+            if (!included[i]) {
+                continue;
+            }
+
+            final int depth = snapshot.getDepth(i);
+            final boolean isSibling = openDepth >= depth;
+            for (; openDepth >= depth; openDepth--) {
+                out.write("]}");
+            }
+
+            if (isSibling) {
+                out.write(",");
             }
 
-            result = content.get();
-            if (result != null) {
-                out.write(result);
+            out.write("{");
+            printProperties(out, quote, snapshot, i);
+            out.write(", " + quote + "index" + quote + ":" + i);
+            if (Arrays.binarySearch(matches, i) >= 0) {
+                out.write(", " + quote + "match" + quote + ":true");
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+
+            out.write(", " + quote + "children" + quote + ":[");
+            openDepth = depth;
+        }
+
+        for (; openDepth >= 0; openDepth--) {
+            out.write("]}");
         }
 
         out.flush();
+        return true;
+    }
 
-        out.write(", 'children':[");
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-            for (int i=0; i < count; i++) {
-                printHierarchy(out, group.getChildAt(i));
-                if (i + 1 < count) {
-                    out.write(",");
-                }
+    /**
+     * Prints the revisions of a snapshot store.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param revisions The revisions, oldest first.
+     */
+    public static boolean printRevisions(ResponseWriter out, char quote,
+            List<SnapshotStore.Revision> revisions)
+            throws IOException {
+        out.write("[");
+        for (int i = 0; i < revisions.size(); i++) {
+            final SnapshotStore.Revision revision = revisions.get(i);
+            if (i > 0) {
+                out.write(",");
             }
+
+            out.write("{ " + quote + "revision" + quote + ":" + revision.revision + ",");
+            out.write(" " + quote + "time" + quote + ":" + revision.time + ",");
+            out.write(" " + quote + "bytes" + quote + ":" + revision.bytes + ",");
+            out.write(" " + quote + "format" + quote + ":"
+                    + quote + (revision.isJson ? "json" : "xml") + quote + ",");
+            out.write(" " + quote + "compression" + quote + ":"
+                    + quote + revision.getCompressionName() + quote + "}");
         }
         out.write("]");
-        out.write("}");
 
         out.flush();
         return true;
     }
 
     /**
-     * Get the properties of the view.
+     * Prints the revisions of a timeline.
      *
-     * @param view View for getting the properties.
-     * @result Return a string of the properties.
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param revisions The revisions, oldest first, as pairs of number and time.
      */
-    private static String getProperties(View view) {
-        StringBuffer buffer = new StringBuffer(200);
-        String className = view.getClass().getName();
-
-        StringBuffer idName = new StringBuffer(20);
-        final int id = view.getId();
-        if (id != View.NO_ID) {
-            final Resources res = view.getResources();
-            if (id != 0 && res != null) {
-                try {
-                    String pkg;
-                    switch (id & 0xff000000) {
-                        case 0x7f000000:
-                            pkg = "app";
-                            break;
-                        case 0x01000000:
-                            pkg = "android";
-                            break;
-                        default:
-                            pkg = res.getResourcePackageName(id);
-                            break;
-                    }
-                    String typename = res.getResourceTypeName(id);
-                    String entryname = res.getResourceEntryName(id);
-                    idName.append("[");
-                    idName.append("@");
-                    idName.append(pkg);
-                    idName.append(":");
-                    idName.append(typename);
-                    idName.append("/");
-                    idName.append(entryname);
-                    idName.append("]");
-                } catch (Resources.NotFoundException e) {
-                }
+    public static boolean printTimeline(ResponseWriter out, char quote, List<long[]> revisions)
+            throws IOException {
+        out.write("[");
+        for (int i = 0; i < revisions.size(); i++) {
+            final long[] revision = revisions.get(i);
+            if (i > 0) {
+                out.write(",");
             }
+            out.write("{ " + quote + "revision" + quote + ":" + revision[0] + ","
+                    + " " + quote + "time" + quote + ":" + revision[1] + "}");
         }
+        out.write("]");
 
-        buffer.append(" 'name':'" + className + "',");
-        buffer.append(" 'id':'" + idName.toString() + "',");
-        buffer.append(" 'hashCode':'" + view.hashCode() + "',");
-        buffer.append(" 'bounds':[" + view.getLeft() + "," + view.getTop() + "," + view.getWidth() + "," + view.getHeight() + "],");
-        buffer.append(" 'padding':[" + view.getPaddingLeft() + "," + view.getPaddingTop() + "," + view.getPaddingRight() + "," + view.getPaddingBottom() + "],");
-
-        final LayoutParams params = view.getLayoutParams();
-        if (params instanceof MarginLayoutParams) {
-            MarginLayoutParams margin = (MarginLayoutParams) params;
-            buffer.append(" 'margin':[" + margin.leftMargin + "," + margin.topMargin + "," + margin.rightMargin + "," + margin.bottomMargin + "],");
-        }
+        out.flush();
+        return true;
+    }
 
-        final Drawable background = view.getBackground();
-        if (background != null) {
-            Rect padding = new Rect();
-            background.getPadding(padding);
-            buffer.append(" 'drawablePadding':[" + padding.left + "," + padding.top + "," + padding.right + "," + padding.bottom + "],");
-        }
+    /**
+     * Prints the overdraw of a snapshot: the number of layers drawn in each
+     * cell, base64 encoded row by row, and the scores of the nodes that drew
+     * over other layers, or that were covered by opaque backgrounds.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param overdraw Overdraw of the snapshot.
+     */
+    public static boolean printOverdraw(ResponseWriter out, char quote, Snapshot snapshot,
+            Overdraw overdraw) throws IOException, InterruptedException {
+        out.write("{ " + quote + "cellSize" + quote + ":" + overdraw.cellSize + ",");
+        out.write(" " + quote + "columns" + quote + ":" + overdraw.columns + ",");
+        out.write(" " + quote + "rows" + quote + ":" + overdraw.rows + ",");
+        out.write(" " + quote + "heatmap" + quote + ":"
+                + quote + Base64.encodeToString(overdraw.getHeatmap(), Base64.NO_WRAP) + quote + ",");
+        out.write(" " + quote + "nodes" + quote + ":[");
+
+        boolean isFirst = true;
+        for (int i = 0; i < overdraw.overdrawn.length; i++) {
+            if (overdraw.overdrawn[i] == 0 && overdraw.hidden[i] == 0) {
+                continue;
+            }
 
-        int visibility = view.getVisibility();
-        if (visibility == View.VISIBLE) {
-            buffer.append(" 'visibility':1");
-        } else if (visibility == View.INVISIBLE) {
-            buffer.append(" 'visibility':-1");
-        } else {
-            buffer.append(" 'visibility':0");
+            if (!isFirst) {
+                out.write(",");
+            }
+            isFirst = false;
+
+            out.write("{ " + quote + "index" + quote + ":" + i + ",");
+            out.write(" " + quote + "name" + quote + ":"
+                    + quote + escape(snapshot.getClassName(i)) + quote + ",");
+            out.write(" " + quote + "id" + quote + ":" + quote + escape(snapshot.getIdName(i)) + quote + ",");
+            out.write(" " + quote + "hashCode" + quote + ":" + quote + snapshot.getHashCode(i) + quote + ",");
+            out.write(" " + quote + "uid" + quote + ":" + snapshot.getUid(i) + ",");
+            out.write(" " + quote + "overdraw" + quote + ":" + overdraw.overdrawn[i] + ",");
+            out.write(" " + quote + "hidden" + quote + ":" + overdraw.hidden[i] + "}");
         }
+        out.write("]}");
 
-        return buffer.toString();
+        out.flush();
+        return true;
     }
 
-    private static String getBackground(View view) throws Exception {
-        if (view.getVisibility() != View.VISIBLE) {
-            return null;
-        }
+    /**
+     * Prints the layers of some nodes of a snapshot, captured again at a
+     * level of detail. Only the uid, the hash code and the layers of the
+     * nodes are printed, along with their index in the snapshot.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param quote The quote of keys and strings, see {@link RequestOptions#getQuote()}.
+     * @param level The layers at the level of detail.
+     * @param nodes Indices of the nodes in the snapshot.
+     */
+    public static boolean printLevel(ResponseWriter out, char quote, LayerLevel level, int[] nodes)
+            throws IOException {
+        out.write("{ " + quote + "lod" + quote + ":" + level.level + ","
+                + " " + quote + "nodes" + quote + ":[");
+
+        boolean isFirst = true;
+        for (int index : nodes) {
+            final Snapshot.Node node = level.get(index);
+            if (node == null) {
+                continue;
+            }
 
-        final Drawable background = view.getBackground();
-        if (background == null) {
-            return null;
+            if (!isFirst) {
+                out.write(",");
+            }
+            isFirst = false;
+
+            out.write("{ " + quote + "index" + quote + ":" + index + ","
+                    + " " + quote + "uid" + quote + ":" + node.uid + ","
+                    + " " + quote + "hashCode" + quote + ":" + quote + node.hashCode + quote);
+            printLayers(out, quote, node);
+            out.write("}");
         }
+        out.write("]}");
+
+        out.writeBlobs(level.getBlobs(), level.getBlobIds(nodes));
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Print the properties of a node.
+     *
+     * @param out ResponseWriter to write the properties.
+     * @param quote The quote of keys and strings.
+     * @param snapshot Snapshot holding the properties.
+     * @param index Index of the node in the snapshot.
+     */
+    private static void printProperties(ResponseWriter out, char quote, Snapshot snapshot, int index)
+            throws IOException {
+        StringBuffer buffer = new StringBuffer(200);
 
-        if (background instanceof ColorDrawable) {
-            ColorDrawable colorDrawable = (ColorDrawable) background;
-            final int color = colorDrawable.getColor();
-            return (color == 0) ? null : ", 'backgroundColor':'#" + Integer.toHexString(color) + "'";
+        buffer.append(" " + quote + "name" + quote + ":"
+                + quote + escape(snapshot.getClassName(index)) + quote + ",");
+        buffer.append(" " + quote + "id" + quote + ":"
+                + quote + escape(snapshot.getIdName(index)) + quote + ",");
+        buffer.append(" " + quote + "uid" + quote + ":" + snapshot.getUid(index) + ",");
+
+        if (snapshot.isTimedOut(index)) {
+            // Nothing else is known about the node.
+            buffer.append(" " + quote + "timedOut" + quote + ":true");
+            out.write(buffer.toString());
+            return;
         }
 
-        Bitmap bitmap = getBitmap(view);
-        if (bitmap == null)
-            return null;
+        buffer.append(" " + quote + "hashCode" + quote + ":"
+                + quote + snapshot.getHashCode(index) + quote + ",");
 
-        final Canvas canvas = new Canvas(bitmap);
+        final int[] box = new int[4];
+        snapshot.getBounds(index, box);
+        buffer.append(" " + quote + "bounds" + quote + ":"
+                + "[" + box[0] + "," + box[1] + "," + box[2] + "," + box[3] + "],");
+        snapshot.getPadding(index, box);
+        buffer.append(" " + quote + "padding" + quote + ":"
+                + "[" + box[0] + "," + box[1] + "," + box[2] + "," + box[3] + "],");
 
-        final int scrollX = view.getScrollX();
-        final int scrollY = view.getScrollY();
+        if (snapshot.getMargin(index, box)) {
+            buffer.append(" " + quote + "margin" + quote + ":"
+                    + "[" + box[0] + "," + box[1] + "," + box[2] + "," + box[3] + "],");
+        }
 
-        background.setBounds(0, 0, view.getRight() - view.getLeft(), view.getBottom() - view.getTop());
+        if (snapshot.getDrawablePadding(index, box)) {
+            buffer.append(" " + quote + "drawablePadding" + quote + ":"
+                    + "[" + box[0] + "," + box[1] + "," + box[2] + "," + box[3] + "],");
+        }
 
-        if ((scrollX | scrollY) == 0) {
-            background.draw(canvas);
+        int visibility = snapshot.getVisibility(index);
+        if (visibility == View.VISIBLE) {
+            buffer.append(" " + quote + "visibility" + quote + ":1");
+        } else if (visibility == View.INVISIBLE) {
+            buffer.append(" " + quote + "visibility" + quote + ":-1");
         } else {
-            canvas.translate(scrollX, scrollY);
-            background.draw(canvas);
-            canvas.translate(-scrollX, -scrollY);
+            buffer.append(" " + quote + "visibility" + quote + ":0");
         }
 
-        final StringBuffer buffer = new StringBuffer();
-        buffer.append(", 'backgroundImage':'");
-        compressBitmapToString(buffer, bitmap, canvas);
-        buffer.append("'");
-        return buffer.toString();
+        final Snapshot.Node details = snapshot.getDetails(index);
+        if (details != null && details.properties != null) {
+            final String[] properties = details.properties;
+            buffer.append(", " + quote + "properties" + quote + ":{");
+            for (int i = 0; i < properties.length; i += 2) {
+                if (i > 0) {
+                    buffer.append(",");
+                }
+                buffer.append(quote + escape(properties[i]) + quote + ":"
+                        + quote + escape(properties[i + 1]) + quote);
+            }
+            buffer.append("}");
+        }
+
+        out.write(buffer.toString());
     }
 
-    private static String getContent(View view) throws Exception {
-        if (isPhoneWindow(view) || view.getVisibility() != View.VISIBLE) {
-            return null;
+    /**
+     * Print the background and the content of a node.
+     */
+    private static void printLayers(ResponseWriter out, char quote, Snapshot.Node node)
+            throws IOException {
+        if (node.hasBackgroundColor) {
+            out.write(", " + quote + "backgroundColor" + quote + ":"
+                    + quote + "#" + Integer.toHexString(node.backgroundColor) + quote);
+        } else if (node.backgroundImage != null) {
+            out.write(", " + quote + "backgroundImage" + quote + ":" + quote);
+            out.writeLayer(node.backgroundImage);
+            out.write(quote);
         }
 
-        Bitmap bitmap = getBitmap(view);
-        if (bitmap == null) {
-            return null;
+        if (node.content != null) {
+            out.write(", " + quote + "content" + quote + ":" + quote);
+            out.writeLayer(node.content);
+            out.write(quote);
         }
 
-        final ProxyCanvas canvas = new ProxyCanvas(bitmap);
-        bitmap.eraseColor(0x0);
-
-        int visibilities[] = null;
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-
-            // This would fail for List dividers as they look for visible items.
-            visibilities = new int[count];
-            for (int i=0; i < count; i++) {
-                View child = group.getChildAt(i);
-                visibilities[i] = child.getVisibility();
-                if (visibilities[i] == View.VISIBLE) {
-                    child.setVisibility(View.INVISIBLE);
-                }
-            }
+        if (node.text != null) {
+            printText(out, quote, node.text);
         }
 
-        Class<?> clazz = view.getClass();
-        while (clazz != View.class) {
-            try {
-                Method method = clazz.getDeclaredMethod("onDraw", Canvas.class);
-                method.setAccessible(true);
-                method.invoke(view, canvas);
-                break;
-            } catch (NoSuchMethodException e) {
-                clazz = clazz.getSuperclass();
-            } catch (Exception e) {
-            }
+        if (node.ops != null) {
+            // Quotes, backslashes and control characters are already
+            // escaped in the ops.
+            out.write(", " + quote + "ops" + quote + ":" + quote + node.ops + quote);
         }
 
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-
-            if (count > 0) {
-                for (int i=0; i < count; i++) {
-                    group.getChildAt(i).setVisibility(visibilities[i]);
+        if (node.bitmaps != null) {
+            out.write(", " + quote + "bitmaps" + quote + ":{");
+            for (int i = 0; i < node.bitmaps.length; i++) {
+                if (i > 0) {
+                    out.write(",");
                 }
+                out.write(String.valueOf(quote) + node.bitmapIds[i] + quote + ":" + quote);
+                if (node.bitmaps[i] != null) {
+                    out.writeLayer(node.bitmaps[i]);
+                }
+                out.write(quote);
             }
+            out.write("}");
         }
 
-        if (!canvas.wasTouched()) {
-            return null;
+        // Layers degraded to stay within the memory budget.
+        if (node.backgroundScale > 1) {
+            out.write(", " + quote + "backgroundScale" + quote + ":" + node.backgroundScale);
         }
 
-        final StringBuffer buffer = new StringBuffer();
-        buffer.append(", 'content':'");
-        compressBitmapToString(buffer, bitmap, canvas);
-        buffer.append("'");
-        return buffer.toString();
-    }
+        if (node.contentScale > 1) {
+            out.write(", " + quote + "contentScale" + quote + ":" + node.contentScale);
+        }
 
-    private static Bitmap getBitmap(View view) {
-        if (view.getWidth() == 0 || view.getHeight() == 0) {
-            return null;
+        if (node.skippedLayers != 0) {
+            out.write(", " + quote + "skipped" + quote + ":"
+                    + quote + Snapshot.Node.getLayerNames(node.skippedLayers) + quote);
         }
 
-        Bitmap bitmap = null;
-        try {
-            bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.ARGB_8888);
-        } catch(OutOfMemoryError e) {
+        // Layers the UI thread didn't get to before the deadline.
+        if (node.timedOutLayers != 0) {
+            out.write(", " + quote + "timedOutLayers" + quote + ":"
+                    + quote + Snapshot.Node.getLayerNames(node.timedOutLayers) + quote);
         }
+    }
+
+    private static void printText(ResponseWriter out, char quote, Snapshot.Text text)
+            throws IOException {
+        StringBuffer buffer = new StringBuffer(100 + text.value.length());
+
+        buffer.append(", " + quote + "text" + quote + ":{");
+        buffer.append(" " + quote + "value" + quote + ":" + quote + escape(text.value) + quote + ",");
+        buffer.append(" " + quote + "size" + quote + ":" + toNumber(text.size) + ",");
+        buffer.append(" " + quote + "color" + quote + ":"
+                + quote + "#" + Integer.toHexString(text.color) + quote + ",");
+        buffer.append(" " + quote + "typeface" + quote + ":" + quote + escape(text.typeface) + quote + ",");
+        buffer.append(" " + quote + "origin" + quote + ":"
+                + "[" + toNumber(text.x) + "," + toNumber(text.y) + "],");
+        buffer.append(" " + quote + "lines" + quote + ":[");
+        for (int i = 0; i < text.lines.length; i += Snapshot.Text.LINE_SIZE) {
+            if (i > 0) {
+                buffer.append(",");
+            }
+            buffer.append("[" + (int) text.lines[i] + "," + (int) text.lines[i + 1] + ","
+                    + toNumber(text.lines[i + 2]) + "," + (int) text.lines[i + 3] + ","
+                    + toNumber(text.lines[i + 4]) + "]");
+        }
+        buffer.append("]}");
 
-        return bitmap;
+        out.write(buffer.toString());
     }
 
-    private static void compressBitmapToString(StringBuffer out, Bitmap bitmap, Canvas canvas) throws IOException {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        byte[] bytes = stream.toByteArray();
-        canvas.setBitmap(null);
-        bitmap.recycle();
+    /**
+     * Escapes a string for a quoted value. The result is valid with either
+     * quote, as it contains neither kind of quote.
+     */
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        StringBuilder buffer = null;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final String escaped;
+            switch (c) {
+                case '"':
+                    escaped = "\\\"";
+                    break;
+                case '\\':
+                    escaped = "\\\\";
+                    break;
+                case '\'':
+                    escaped = "\\u0027";
+                    break;
+                case '\b':
+                    escaped = "\\b";
+                    break;
+                case '\f':
+                    escaped = "\\f";
+                    break;
+                case '\n':
+                    escaped = "\\n";
+                    break;
+                case '\r':
+                    escaped = "\\r";
+                    break;
+                case '\t':
+                    escaped = "\\t";
+                    break;
+                default:
+                    // Also the line separators, which end strings in JavaScript,
+                    // and the unpaired surrogates, which UTF-8 can't encode.
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029' || isUnpairedSurrogate(value, i)) {
+                        escaped = String.format("\\u%04x", (int) c);
+                    } else {
+                        escaped = null;
+                    }
+                    break;
+            }
 
-        out.append(BASE64_IDENTIFIER);
-        out.append(Base64.encodeToString(bytes, Base64.NO_PADDING | Base64.NO_WRAP));
+            if (escaped != null) {
+                if (buffer == null) {
+                    buffer = new StringBuilder(value.length() + 16);
+                    buffer.append(value, 0, i);
+                }
+                buffer.append(escaped);
+            } else if (buffer != null) {
+                buffer.append(c);
+            }
+        }
+        return (buffer == null) ? value : buffer.toString();
     }
 
-    private static boolean isPhoneWindow(View view) {
-        return view.getClass().getName().contains(PHONE_WINDOW);
+    private static boolean isUnpairedSurrogate(String value, int index) {
+        final char c = value.charAt(index);
+        if (Character.isHighSurrogate(c)) {
+            return index + 1 == value.length() || !Character.isLowSurrogate(value.charAt(index + 1));
+        }
+        if (Character.isLowSurrogate(c)) {
+            return index == 0 || !Character.isHighSurrogate(value.charAt(index - 1));
+        }
+        return false;
+    }
+
+    /**
+     * Returns a float as a JSON number, or null if it's not a number.
+     */
+    private static String toNumber(float value) {
+        return (Float.isNaN(value) || Float.isInfinite(value)) ? "null" : Float.toString(value);
     }
 }
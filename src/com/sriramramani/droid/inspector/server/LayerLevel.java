@@ -0,0 +1,83 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The layers of some nodes of a snapshot, captured again at another level
+ * of detail. Clients print a zoomed out snapshot first, then fetch the layers
+ * of the region they zoom into at a higher level. Layers are captured once
+ * per level, and kept as long as the snapshot.
+ */
+final class LayerLevel {
+    // Factor the layers are downscaled by.
+    final int level;
+
+    // Nodes with only their layers, by their index in the snapshot.
+    private final HashMap<Integer, Snapshot.Node> mNodes = new HashMap<Integer, Snapshot.Node>();
+
+    // Holds the blobs of the layers, when they are sent as blobs.
+    private final Snapshot mBlobs = new Snapshot();
+
+    LayerLevel(int level) {
+        this.level = level;
+    }
+
+    synchronized Snapshot.Node get(int index) {
+        return mNodes.get(index);
+    }
+
+    synchronized void put(int index, Snapshot.Node node) {
+        mNodes.put(index, node);
+    }
+
+    Snapshot getBlobs() {
+        return mBlobs;
+    }
+
+    /**
+     * Returns the ids of the blobs referenced by the layers of some nodes.
+     *
+     * @param nodes Indices of the nodes in the snapshot.
+     * @return The ids, sorted.
+     */
+    synchronized int[] getBlobIds(int[] nodes) {
+        int[] ids = new int[8];
+        int count = 0;
+        for (int index : nodes) {
+            final Snapshot.Node node = mNodes.get(index);
+            if (node == null) {
+                continue;
+            }
+
+            final int bitmaps = (node.bitmaps == null) ? 0 : node.bitmaps.length;
+            if (ids.length < count + 2 + bitmaps) {
+                final int[] grown = new int[(count + 2 + bitmaps) * 2];
+                System.arraycopy(ids, 0, grown, 0, count);
+                ids = grown;
+            }
+
+            count = addBlobId(ids, count, node.backgroundImage);
+            count = addBlobId(ids, count, node.content);
+            for (int i = 0; i < bitmaps; i++) {
+                count = addBlobId(ids, count, node.bitmaps[i]);
+            }
+        }
+
+        final int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int addBlobId(int[] ids, int count, String layer) {
+        if (layer != null && layer.startsWith(ViewCapture.BLOB_IDENTIFIER)) {
+            ids[count++] = Integer.parseInt(layer.substring(ViewCapture.BLOB_IDENTIFIER.length()));
+        }
+        return count;
+    }
+}
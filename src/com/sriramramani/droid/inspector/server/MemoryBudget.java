@@ -0,0 +1,206 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * Limits the memory used by the captures in flight, for the bitmaps being
+ * rasterized and the encoded layers kept in the snapshots.
+ *
+ * Each capture gets an {@link Allowance} from the global budget. When either
+ * of them runs out, the capture degrades in stages: layers are downscaled
+ * first, then content layers are skipped, then backgrounds are skipped too.
+ * The degraded layers are marked on the nodes of the snapshot.
+ */
+final class MemoryBudget {
+    // Stages of degradation, applied in order when the budget runs out.
+    static final int STAGE_FULL = 0;
+    static final int STAGE_DOWNSCALE = 1;
+    static final int STAGE_SKIP_CONTENT = 2;
+    static final int STAGE_SKIP_BACKGROUND = 3;
+
+    // Factor layers are downscaled by.
+    private static final int DOWNSCALE_FACTOR = 2;
+
+    // Bytes per pixel of an ARGB_8888 bitmap.
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private long mMaxLimit;
+    private long mLimit;
+    private long mInUse;
+
+    /**
+     * @param limit The global limit, in bytes.
+     */
+    MemoryBudget(long limit) {
+        mMaxLimit = limit;
+        mLimit = limit;
+    }
+
+    /**
+     * Returns the default global limit, which is an eighth of the heap.
+     */
+    static long getDefaultLimit() {
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * Changes the global limit.
+     *
+     * @param limit The global limit, in bytes.
+     */
+    synchronized void setLimit(long limit) {
+        mMaxLimit = limit;
+        mLimit = limit;
+    }
+
+    synchronized long getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Shrinks the global limit when the system is low on memory.
+     *
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mLimit = mMaxLimit / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mLimit = mMaxLimit / 2;
+        } else {
+            mLimit = mMaxLimit;
+        }
+    }
+
+    /**
+     * Returns a new allowance for a capture.
+     *
+     * @param limit The limit of the capture in bytes, or 0 for the default,
+     *              which is half of the global limit.
+     */
+    Allowance newAllowance(long limit) {
+        synchronized (this) {
+            if (limit <= 0 || limit > mLimit) {
+                limit = mLimit / 2;
+            }
+        }
+        return new Allowance(limit);
+    }
+
+    private synchronized boolean tryReserve(long bytes) {
+        if (mInUse + bytes > mLimit) {
+            return false;
+        }
+
+        mInUse += bytes;
+        return true;
+    }
+
+    private synchronized boolean reserve(long bytes) {
+        mInUse += bytes;
+        return mInUse <= mLimit;
+    }
+
+    private synchronized void release(long bytes) {
+        mInUse -= bytes;
+    }
+
+    /**
+     * The memory a single capture may use.
+     */
+    final class Allowance {
+        private final long mLimit;
+        private long mInUse;
+        private int mStage = STAGE_FULL;
+
+        private Allowance(long limit) {
+            mLimit = limit;
+        }
+
+        /**
+         * Reserves the memory to rasterize a layer.
+         *
+         * @param width The width of the layer.
+         * @param height The height of the layer.
+         * @param isContent True for a content layer, false for a background.
+         * @param minScale The factor the request downscales the layer by, at least.
+         * @return The factor to downscale the layer by, or 0 if the layer
+         *         must be skipped.
+         */
+        synchronized int reserveLayer(int width, int height, boolean isContent, int minScale) {
+            while (true) {
+                if (isSkipping(isContent)) {
+                    return 0;
+                }
+
+                final int scale = Math.max(minScale, (mStage >= STAGE_DOWNSCALE) ? DOWNSCALE_FACTOR : 1);
+                final long bytes = getBitmapSize(width / scale, height / scale);
+                if (mInUse + bytes <= mLimit && tryReserve(bytes)) {
+                    mInUse += bytes;
+                    return scale;
+                }
+
+                mStage++;
+            }
+        }
+
+        /**
+         * Returns true if layers of the given kind are being skipped.
+         *
+         * @param isContent True for a content layer, false for a background.
+         */
+        synchronized boolean isSkipping(boolean isContent) {
+            return mStage >= STAGE_SKIP_BACKGROUND || (isContent && mStage >= STAGE_SKIP_CONTENT);
+        }
+
+        /**
+         * Releases memory, for a bitmap that was recycled.
+         */
+        synchronized void release(long bytes) {
+            mInUse -= bytes;
+            MemoryBudget.this.release(bytes);
+        }
+
+        /**
+         * Accounts for memory that is already used, like an encoded layer.
+         * Going over budget degrades the rest of the capture.
+         */
+        synchronized void retain(long bytes) {
+            mInUse += bytes;
+            if (!reserve(bytes) || mInUse > mLimit) {
+                degrade();
+            }
+        }
+
+        /**
+         * Moves on to the next stage of degradation, when memory ran out.
+         */
+        synchronized void degrade() {
+            if (mStage < STAGE_SKIP_BACKGROUND) {
+                mStage++;
+            }
+        }
+
+        /**
+         * Returns all the memory of the capture to the global budget.
+         * The snapshot isn't in flight any more.
+         */
+        synchronized void close() {
+            MemoryBudget.this.release(mInUse);
+            mInUse = 0;
+        }
+    }
+
+    /**
+     * Returns the size of an ARGB_8888 bitmap, in bytes.
+     */
+    static long getBitmapSize(int width, int height) {
+        return (long) Math.max(width, 1) * Math.max(height, 1) * BYTES_PER_PIXEL;
+    }
+}
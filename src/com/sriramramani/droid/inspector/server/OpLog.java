@@ -0,0 +1,224 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ * A compact log of the draw operations of a view, recorded by a {@link ProxyCanvas}.
+ * The client can redraw the content from it, or compare the draw operations
+ * of two captures.
+ *
+ * Operations are separated by ';' and their arguments by ','. Each operation
+ * starts with its code:
+ *
+ * <pre>
+ * s                          save, saveLayer, saveLayerAlpha
+ * r[,count]                  restore, restore to a count
+ * t,dx,dy                    translate
+ * z,sx,sy                    scale
+ * o,degrees                  rotate
+ * k,sx,sy                    skew
+ * m,matrix                   concat a matrix, as 9 values
+ * M,matrix                   set the matrix, as 9 values
+ * c,l,t,r,b,op               clip a rect, with the ordinal of the region op
+ * C,op                       clip a path or a region
+ * F,color                    fill with a color
+ * R,l,t,r,b,paint            rect
+ * O,l,t,r,b,paint            oval
+ * Q,l,t,r,b,rx,ry,paint      round rect
+ * E,cx,cy,radius,paint       circle
+ * A,l,t,r,b,start,sweep,center,paint
+ *                            arc, center is 1 if it uses the center
+ * L,x0,y0,x1,y1,...,paint    lines
+ * D,x0,y0,...,paint          points
+ * P,l,t,r,b,paint            path, with its bounds
+ * T,x,y,paint,text           text
+ * B,id,l,t,paint             bitmap at a position
+ * b,id,l,t,r,b,paint         bitmap into a rect
+ * N,id,matrix,paint          bitmap with a matrix
+ * U,name                     an operation that isn't recorded
+ * </pre>
+ *
+ * A paint is written as <code>color,style,strokeWidth,textSize</code>, with the
+ * color as hexadecimal ARGB and the style as f (fill), s (stroke) or b (both),
+ * or as <code>-</code> if there is no paint. Text is percent-encoded.
+ *
+ * Bitmaps are referred to by an id. Each bitmap gets an id the first time it's
+ * drawn during a capture, and keeps it for the rest of the capture.
+ */
+final class OpLog {
+    static final char SAVE = 's';
+    static final char RESTORE = 'r';
+    static final char TRANSLATE = 't';
+    static final char SCALE = 'z';
+    static final char ROTATE = 'o';
+    static final char SKEW = 'k';
+    static final char CONCAT = 'm';
+    static final char SET_MATRIX = 'M';
+    static final char CLIP_RECT = 'c';
+    static final char CLIP = 'C';
+    static final char COLOR = 'F';
+    static final char RECT = 'R';
+    static final char OVAL = 'O';
+    static final char ROUND_RECT = 'Q';
+    static final char CIRCLE = 'E';
+    static final char ARC = 'A';
+    static final char LINES = 'L';
+    static final char POINTS = 'D';
+    static final char PATH = 'P';
+    static final char TEXT = 'T';
+    static final char BITMAP = 'B';
+    static final char BITMAP_RECT = 'b';
+    static final char BITMAP_MATRIX = 'N';
+    static final char UNSUPPORTED = 'U';
+
+    private static final String HEX = "0123456789ABCDEF";
+
+    private final StringBuilder mLog = new StringBuilder(256);
+    private final IdentityHashMap<Bitmap, Integer> mBitmapIds;
+    private final List<Bitmap> mNewBitmaps = new ArrayList<Bitmap>();
+    private final float[] mValues = new float[9];
+
+    /**
+     * @param bitmapIds The ids of the bitmaps drawn so far in the capture.
+     */
+    OpLog(IdentityHashMap<Bitmap, Integer> bitmapIds) {
+        mBitmapIds = bitmapIds;
+    }
+
+    boolean isEmpty() {
+        return mLog.length() == 0;
+    }
+
+    /**
+     * Returns the bitmaps that were drawn for the first time in the capture,
+     * in the order of their ids.
+     */
+    List<Bitmap> getNewBitmaps() {
+        return mNewBitmaps;
+    }
+
+    /**
+     * Starts a new operation.
+     */
+    OpLog op(char code) {
+        if (mLog.length() > 0) {
+            mLog.append(';');
+        }
+        mLog.append(code);
+        return this;
+    }
+
+    OpLog arg(int value) {
+        mLog.append(',').append(value);
+        return this;
+    }
+
+    OpLog arg(float value) {
+        mLog.append(',');
+        if (value == (int) value) {
+            mLog.append((int) value);
+        } else {
+            mLog.append(value);
+        }
+        return this;
+    }
+
+    OpLog arg(boolean value) {
+        mLog.append(',').append(value ? 1 : 0);
+        return this;
+    }
+
+    OpLog args(float[] values, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            arg(values[i]);
+        }
+        return this;
+    }
+
+    OpLog arg(Matrix matrix) {
+        if (matrix == null) {
+            // Identity.
+            mLog.append(",1,0,0,0,1,0,0,0,1");
+            return this;
+        }
+
+        matrix.getValues(mValues);
+        return args(mValues, 0, mValues.length);
+    }
+
+    OpLog hex(int value) {
+        mLog.append(',').append(Integer.toHexString(value));
+        return this;
+    }
+
+    OpLog paint(Paint paint) {
+        if (paint == null) {
+            mLog.append(",-");
+            return this;
+        }
+
+        hex(paint.getColor());
+        switch (paint.getStyle()) {
+            case STROKE:
+                mLog.append(",s");
+                break;
+            case FILL_AND_STROKE:
+                mLog.append(",b");
+                break;
+            default:
+                mLog.append(",f");
+                break;
+        }
+        arg(paint.getStrokeWidth());
+        return arg(paint.getTextSize());
+    }
+
+    OpLog text(CharSequence text, int start, int end) {
+        mLog.append(',');
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x20 || c == ',' || c == ';' || c == '%' || c == '\'' || c == '"'
+                    || c == '<' || c == '>' || c == '&' || c == '\\') {
+                mLog.append('%').append(HEX.charAt((c >> 4) & 0xf)).append(HEX.charAt(c & 0xf));
+            } else {
+                mLog.append(c);
+            }
+        }
+        return this;
+    }
+
+    OpLog text(char[] text, int index, int count) {
+        return text(new String(text, index, count), 0, count);
+    }
+
+    OpLog bitmap(Bitmap bitmap) {
+        Integer id = mBitmapIds.get(bitmap);
+        if (id == null) {
+            id = mBitmapIds.size();
+            mBitmapIds.put(bitmap, id);
+            mNewBitmaps.add(bitmap);
+        }
+        return arg(id.intValue());
+    }
+
+    OpLog unsupported(String name) {
+        op(UNSUPPORTED);
+        mLog.append(',').append(name);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return mLog.toString();
+    }
+}
@@ -0,0 +1,223 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+/**
+ * Computes the overdraw of a snapshot, without compositing its layers.
+ *
+ * The window is divided in square cells, and each layer drawn by a node adds
+ * one to the cells it covers: its background covers the visible bounds of the
+ * node, and its content the region it drew, when it was measured. Layers are
+ * drawn in pre-order, the background of a node before its content.
+ *
+ * Each node is scored with the pixels it drew over pixels already drawn, and
+ * with the pixels it drew that were covered later by an opaque background.
+ */
+final class Overdraw {
+    static final int DEFAULT_CELL_SIZE = 8;
+
+    // Layers are stored as: node, left, top, right and bottom, in cells.
+    private static final int LAYER_SIZE = 5;
+
+    // Descent of the text below its last baseline, relative to its size.
+    private static final float TEXT_DESCENT = 0.25f;
+
+    final int cellSize;
+    final int columns;
+    final int rows;
+
+    // Number of layers drawn in each cell, row by row.
+    final int[] counts;
+
+    // Scores of each node, in pixels.
+    final int[] overdrawn;
+    final int[] hidden;
+
+    /**
+     * Computes the overdraw of a snapshot, waiting for it to be complete.
+     *
+     * @param snapshot The snapshot.
+     * @param cellSize The size of the cells, in pixels.
+     */
+    Overdraw(Snapshot snapshot, int cellSize) throws InterruptedException {
+        final SpatialIndex index = snapshot.getSpatialIndex();
+        final int count = snapshot.getNodeCount();
+        final int[] bounds = new int[4];
+        if (count > 0) {
+            snapshot.getBounds(0, bounds);
+        }
+
+        this.cellSize = cellSize;
+        columns = (count == 0) ? 0 : getCellCount(bounds[2], cellSize);
+        rows = (count == 0) ? 0 : getCellCount(bounds[3], cellSize);
+        counts = new int[columns * rows];
+
+        overdrawn = new int[count];
+        hidden = new int[count];
+
+        // The layers, and whether each of them is an opaque background.
+        int[] layers = new int[count * 2 * LAYER_SIZE];
+        boolean[] opaque = new boolean[count * 2];
+        int size = 0;
+
+        final int[] content = new int[4];
+        for (int i = 0; i < count; i++) {
+            // Only the nodes with details have layers.
+            final Snapshot.Node node = snapshot.getDetails(i);
+            if (node == null || !index.getVisibleBounds(i, bounds)) {
+                continue;
+            }
+
+            if (hasBackground(node) && addLayer(layers, size, i, bounds)) {
+                opaque[size] = node.isBackgroundOpaque;
+                size++;
+            }
+
+            if (getContentBounds(node, index, i, content)) {
+                content[0] = Math.max(content[0], bounds[0]);
+                content[1] = Math.max(content[1], bounds[1]);
+                content[2] = Math.min(content[2], bounds[2]);
+                content[3] = Math.min(content[3], bounds[3]);
+                if (addLayer(layers, size, i, content)) {
+                    size++;
+                }
+            }
+        }
+
+        // Draw the layers in order, counting the pixels drawn twice.
+        final int cellArea = cellSize * cellSize;
+        for (int layer = 0; layer < size; layer++) {
+            final int offset = layer * LAYER_SIZE;
+            final int node = layers[offset];
+            for (int row = layers[offset + 2]; row < layers[offset + 4]; row++) {
+                for (int column = layers[offset + 1]; column < layers[offset + 3]; column++) {
+                    final int cell = row * columns + column;
+                    if (counts[cell] > 0) {
+                        overdrawn[node] += cellArea;
+                    }
+                    counts[cell]++;
+                }
+            }
+        }
+
+        // Go back from the last layer, counting the pixels covered by the
+        // opaque backgrounds drawn later.
+        final boolean[] covered = new boolean[columns * rows];
+        for (int layer = size - 1; layer >= 0; layer--) {
+            final int offset = layer * LAYER_SIZE;
+            final int node = layers[offset];
+            for (int row = layers[offset + 2]; row < layers[offset + 4]; row++) {
+                for (int column = layers[offset + 1]; column < layers[offset + 3]; column++) {
+                    final int cell = row * columns + column;
+                    if (covered[cell]) {
+                        hidden[node] += cellArea;
+                    } else if (opaque[layer]) {
+                        covered[cell] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cells that cover a length, without overflowing
+     * for large cells.
+     */
+    private static int getCellCount(int length, int cellSize) {
+        return (length <= 0) ? 0 : (length - 1) / cellSize + 1;
+    }
+
+    private static boolean hasBackground(Snapshot.Node node) {
+        return node.hasBackgroundColor || node.backgroundImage != null
+                || ((node.skippedLayers | node.measuredLayers) & Snapshot.Node.LAYER_BACKGROUND) != 0;
+    }
+
+    /**
+     * Returns the absolute region drawn by the content of a node, which is
+     * its whole bounds unless it was measured.
+     *
+     * @param node The details of the node.
+     * @param index The spatial index of the snapshot.
+     * @param i The index of the node.
+     * @return False if the node has no content.
+     */
+    private static boolean getContentBounds(Snapshot.Node node, SpatialIndex index, int i, int[] bounds) {
+        final int left = index.getLeft(i);
+        final int top = index.getTop(i);
+
+        if (node.text != null && node.text.lines.length > 0) {
+            final Snapshot.Text text = node.text;
+            final float[] lines = text.lines;
+            float minLeft = Float.MAX_VALUE;
+            float maxRight = -Float.MAX_VALUE;
+            for (int line = 0; line < lines.length; line += Snapshot.Text.LINE_SIZE) {
+                minLeft = Math.min(minLeft, lines[line + 2]);
+                maxRight = Math.max(maxRight, lines[line + 2] + lines[line + 4]);
+            }
+
+            final float firstBaseline = lines[3];
+            final float lastBaseline = lines[lines.length - Snapshot.Text.LINE_SIZE + 3];
+            bounds[0] = left + (int) (text.x + minLeft);
+            bounds[1] = top + (int) (text.y + firstBaseline - text.size);
+            bounds[2] = left + (int) Math.ceil(text.x + maxRight);
+            bounds[3] = top + (int) Math.ceil(text.y + lastBaseline + text.size * TEXT_DESCENT);
+            return true;
+        }
+
+        if (node.contentBounds != null) {
+            bounds[0] = left + node.contentBounds[0];
+            bounds[1] = top + node.contentBounds[1];
+            bounds[2] = left + node.contentBounds[2];
+            bounds[3] = top + node.contentBounds[3];
+            return true;
+        }
+
+        if (node.content != null || node.ops != null
+                || (node.skippedLayers & Snapshot.Node.LAYER_CONTENT) != 0) {
+            bounds[0] = left;
+            bounds[1] = top;
+            bounds[2] = index.getRight(i);
+            bounds[3] = index.getBottom(i);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a layer over the cells whose center is within the bounds.
+     *
+     * @return False if the layer doesn't cover any cell.
+     */
+    private boolean addLayer(int[] layers, int size, int node, int[] bounds) {
+        final int half = cellSize / 2;
+        final int left = Math.max(0, (bounds[0] + cellSize - half - 1) / cellSize);
+        final int top = Math.max(0, (bounds[1] + cellSize - half - 1) / cellSize);
+        final int right = Math.min(columns, (bounds[2] + cellSize - half - 1) / cellSize);
+        final int bottom = Math.min(rows, (bounds[3] + cellSize - half - 1) / cellSize);
+        if (left >= right || top >= bottom) {
+            return false;
+        }
+
+        final int offset = size * LAYER_SIZE;
+        layers[offset] = node;
+        layers[offset + 1] = left;
+        layers[offset + 2] = top;
+        layers[offset + 3] = right;
+        layers[offset + 4] = bottom;
+        return true;
+    }
+
+    /**
+     * Returns the counts of the cells as bytes, capped at 255.
+     */
+    byte[] getHeatmap() {
+        final byte[] heatmap = new byte[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            heatmap[i] = (byte) Math.min(counts[i], 255);
+        }
+        return heatmap;
+    }
+}
@@ -0,0 +1,49 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import android.view.View;
+
+/**
+ * Extracts the properties of a type of view, for views that have state
+ * beyond their bounds and layers. Extractors are registered with
+ * {@link ViewServer#addPropertyExtractor(Class, PropertyExtractor)}, and
+ * run on the UI thread for each view of their type that is captured.
+ *
+ * <pre>
+ * ViewServer.get(this).addPropertyExtractor(GaugeView.class,
+ *         new PropertyExtractor&lt;GaugeView&gt;() {
+ *             public void extract(GaugeView view, PropertyExtractor.Properties properties) {
+ *                 properties.add("value", view.getValue());
+ *                 properties.add("max", view.getMax());
+ *             }
+ *         });
+ * </pre>
+ *
+ * @param <T> The type of view.
+ */
+public interface PropertyExtractor<T extends View> {
+
+    /**
+     * Adds the properties of a view. Called on the UI thread.
+     *
+     * @param view The view being captured.
+     * @param properties Receives the properties.
+     */
+    void extract(T view, Properties properties);
+
+    /**
+     * Receives the properties of a view, in order.
+     */
+    interface Properties {
+        /**
+         * Adds a property. Values are printed as strings.
+         *
+         * @param name The name of the property.
+         * @param value The value, which may be null.
+         */
+        void add(String name, Object value);
+    }
+}
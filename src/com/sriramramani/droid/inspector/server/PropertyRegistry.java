@@ -0,0 +1,223 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.util.Log;
+import android.view.View;
+import android.view.ViewDebug;
+
+/**
+ * Extracts the extra properties of views: those of the extractors registered
+ * for their types, and optionally the fields and getters annotated with
+ * {@link ViewDebug.ExportedProperty}.
+ *
+ * The extractors and the accessors are resolved once per class of view, and
+ * cached, so that capturing a node doesn't look anything up. Properties are
+ * named like in ViewDebug: the name of the field, or of the getter followed
+ * by "()", prefixed by the category of the property if it has one.
+ */
+final class PropertyRegistry {
+    private static final String LOG_TAG = "DroidInspector";
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    // Extractors in the order they were registered.
+    private final ArrayList<Registration> mRegistrations = new ArrayList<Registration>();
+
+    // Resolved once per class, and dropped when an extractor is registered.
+    private final HashMap<Class<?>, PropertyExtractor<?>[]> mExtractors =
+            new HashMap<Class<?>, PropertyExtractor<?>[]>();
+    private final HashMap<Class<?>, Accessor[]> mAccessors = new HashMap<Class<?>, Accessor[]>();
+
+    /**
+     * Registers an extractor for a type of view, and its subclasses.
+     * Extractors run in the order they were registered.
+     */
+    synchronized <T extends View> void register(Class<T> type, PropertyExtractor<? super T> extractor) {
+        if (type == null || extractor == null) {
+            throw new IllegalArgumentException("type and extractor must not be null");
+        }
+
+        mRegistrations.add(new Registration(type, extractor));
+        mExtractors.clear();
+    }
+
+    /**
+     * Extracts the extra properties of a view. Called on the UI thread.
+     *
+     * @param view The view.
+     * @param exported Whether to extract the exported properties.
+     * @return The names and values of the properties, alternating, or null
+     *         if there are none.
+     */
+    String[] extract(View view, boolean exported) {
+        final Class<?> viewClass = view.getClass();
+        final PropertyExtractor<?>[] extractors = getExtractors(viewClass);
+        final Accessor[] accessors = exported ? getAccessors(viewClass) : null;
+        if (extractors.length == 0 && (accessors == null || accessors.length == 0)) {
+            return null;
+        }
+
+        final Collector properties = new Collector();
+        for (PropertyExtractor<?> extractor : extractors) {
+            try {
+                extract(extractor, view, properties);
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Could not extract the properties of " + view, e);
+            }
+        }
+
+        if (accessors != null) {
+            for (Accessor accessor : accessors) {
+                try {
+                    properties.add(accessor.name, accessor.get(view));
+                } catch (Exception e) {
+                    // Getters may throw when the view is not in the expected state.
+                    properties.add(accessor.name, null);
+                }
+            }
+        }
+
+        return properties.toArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void extract(PropertyExtractor<?> extractor, View view, Collector properties) {
+        // Only called with views of the type it was registered for.
+        ((PropertyExtractor<View>) extractor).extract(view, properties);
+    }
+
+    private synchronized PropertyExtractor<?>[] getExtractors(Class<?> viewClass) {
+        PropertyExtractor<?>[] extractors = mExtractors.get(viewClass);
+        if (extractors == null) {
+            final ArrayList<PropertyExtractor<?>> matching = new ArrayList<PropertyExtractor<?>>();
+            for (Registration registration : mRegistrations) {
+                if (registration.type.isAssignableFrom(viewClass)) {
+                    matching.add(registration.extractor);
+                }
+            }
+            extractors = matching.toArray(new PropertyExtractor<?>[matching.size()]);
+            mExtractors.put(viewClass, extractors);
+        }
+        return extractors;
+    }
+
+    /**
+     * Returns the accessors of the exported properties of a class, those of
+     * its superclasses first.
+     */
+    private synchronized Accessor[] getAccessors(Class<?> type) {
+        if (type == null || type == Object.class) {
+            return new Accessor[0];
+        }
+
+        Accessor[] accessors = mAccessors.get(type);
+        if (accessors != null) {
+            return accessors;
+        }
+
+        final ArrayList<Accessor> resolved = new ArrayList<Accessor>(Arrays.asList(getAccessors(type.getSuperclass())));
+        try {
+            for (Field field : type.getDeclaredFields()) {
+                final ViewDebug.ExportedProperty property = field.getAnnotation(ViewDebug.ExportedProperty.class);
+                if (property != null) {
+                    resolved.add(new Accessor(getName(property, field.getName()), field));
+                }
+            }
+
+            for (Method method : type.getDeclaredMethods()) {
+                final ViewDebug.ExportedProperty property = method.getAnnotation(ViewDebug.ExportedProperty.class);
+                if (property != null && method.getParameterTypes().length == 0
+                        && method.getReturnType() != void.class) {
+                    resolved.add(new Accessor(getName(property, method.getName() + "()"), method));
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "Could not resolve the exported properties of " + type, e);
+        } catch (NoClassDefFoundError e) {
+            // A member refers to a class missing on this platform.
+            Log.w(LOG_TAG, "Could not resolve the exported properties of " + type, e);
+        }
+
+        accessors = resolved.toArray(new Accessor[resolved.size()]);
+        mAccessors.put(type, accessors);
+        return accessors;
+    }
+
+    private static String getName(ViewDebug.ExportedProperty property, String name) {
+        final String category = property.category();
+        return (category.length() == 0) ? name : category + ":" + name;
+    }
+
+    /**
+     * Returns a value as a string, with the elements of arrays.
+     */
+    private static String toString(Object value) {
+        if (value instanceof Object[]) {
+            return Arrays.toString((Object[]) value);
+        } else if (value instanceof int[]) {
+            return Arrays.toString((int[]) value);
+        } else if (value instanceof float[]) {
+            return Arrays.toString((float[]) value);
+        } else if (value instanceof long[]) {
+            return Arrays.toString((long[]) value);
+        } else if (value instanceof boolean[]) {
+            return Arrays.toString((boolean[]) value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static final class Registration {
+        final Class<?> type;
+        final PropertyExtractor<?> extractor;
+
+        Registration(Class<?> type, PropertyExtractor<?> extractor) {
+            this.type = type;
+            this.extractor = extractor;
+        }
+    }
+
+    /**
+     * Reads an exported field, or calls an exported getter.
+     */
+    private static final class Accessor {
+        final String name;
+        private final Field mField;
+        private final Method mMethod;
+
+        Accessor(String name, AccessibleObject member) {
+            this.name = name;
+            member.setAccessible(true);
+            mField = (member instanceof Field) ? (Field) member : null;
+            mMethod = (member instanceof Method) ? (Method) member : null;
+        }
+
+        Object get(View view) throws IllegalAccessException, InvocationTargetException {
+            return (mField != null) ? mField.get(view) : mMethod.invoke(view, NO_ARGUMENTS);
+        }
+    }
+
+    private static final class Collector implements PropertyExtractor.Properties {
+        private final ArrayList<String> mProperties = new ArrayList<String>();
+
+        @Override
+        public void add(String name, Object value) {
+            mProperties.add(String.valueOf(name));
+            mProperties.add(PropertyRegistry.toString(value));
+        }
+
+        String[] toArray() {
+            return mProperties.isEmpty() ? null : mProperties.toArray(new String[mProperties.size()]);
+        }
+    }
+}
@@ -21,16 +21,68 @@ import android.graphics.Region.Op;
  * A proxy Canvas to see if something was ever drawn
  * on the canvas. This is an optimization for compressing
  * bitmaps.
+ *
+ * When given an {@link OpLog}, the canvas records the draw
+ * operations into it instead of drawing them.
+ *
+ * The project targets an older platform than some of the operations of
+ * Canvas, so those are overridden by signature only, without calling through
+ * to the superclass. Views only call them on platforms that have them.
  */
 class ProxyCanvas extends Canvas {
     private boolean mTouched = false;
 
+    private final OpLog mLog;
+    private final int mWidth;
+    private final int mHeight;
+
+    // Reused for the bounds of the logged paths.
+    private RectF mPathBounds;
+
     public ProxyCanvas() {
         super();
+        mLog = null;
+        mWidth = 0;
+        mHeight = 0;
     }
 
     public ProxyCanvas(Bitmap bitmap) {
         super(bitmap);
+        mLog = null;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    /**
+     * Creates a canvas that draws scaled down into the bitmap.
+     * The scaling doesn't count as a change to the canvas.
+     *
+     * @param bitmap The bitmap to draw into.
+     * @param scale The factor to scale everything down by.
+     */
+    public ProxyCanvas(Bitmap bitmap, int scale) {
+        super(bitmap);
+        mLog = null;
+        mWidth = 0;
+        mHeight = 0;
+        if (scale > 1) {
+            super.scale(1f / scale, 1f / scale);
+        }
+    }
+
+    /**
+     * Creates a canvas that records the draw operations, without a bitmap.
+     * It reports the given size and clip to the view being drawn.
+     *
+     * @param width The width of the view.
+     * @param height The height of the view.
+     * @param log The log to record the operations into.
+     */
+    public ProxyCanvas(int width, int height, OpLog log) {
+        super();
+        mLog = log;
+        mWidth = width;
+        mHeight = height;
     }
 
     public boolean wasTouched() {
@@ -40,12 +92,18 @@ class ProxyCanvas extends Canvas {
     @Override
     public boolean clipPath(Path path, Op op) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP).arg(op.ordinal());
+        }
         return super.clipPath(path, op);
     }
 
     @Override
     public boolean clipPath(Path path) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipPath(path);
     }
 
@@ -53,66 +111,100 @@ class ProxyCanvas extends Canvas {
     public boolean clipRect(float left, float top, float right, float bottom,
             Op op) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(left).arg(top).arg(right).arg(bottom).arg(op.ordinal());
+        }
         return super.clipRect(left, top, right, bottom, op);
     }
 
     @Override
     public boolean clipRect(float left, float top, float right, float bottom) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(left).arg(top).arg(right).arg(bottom).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipRect(left, top, right, bottom);
     }
 
     @Override
     public boolean clipRect(int left, int top, int right, int bottom) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(left).arg(top).arg(right).arg(bottom).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipRect(left, top, right, bottom);
     }
 
     @Override
     public boolean clipRect(Rect rect, Op op) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom).arg(op.ordinal());
+        }
         return super.clipRect(rect, op);
     }
 
     @Override
     public boolean clipRect(Rect rect) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipRect(rect);
     }
 
     @Override
     public boolean clipRect(RectF rect, Op op) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom).arg(op.ordinal());
+        }
         return super.clipRect(rect, op);
     }
 
     @Override
     public boolean clipRect(RectF rect) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP_RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipRect(rect);
     }
 
     @Override
     public boolean clipRegion(Region region, Op op) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP).arg(op.ordinal());
+        }
         return super.clipRegion(region, op);
     }
 
     @Override
     public boolean clipRegion(Region region) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CLIP).arg(Op.INTERSECT.ordinal());
+        }
         return super.clipRegion(region);
     }
 
     @Override
     public void concat(Matrix matrix) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CONCAT).arg(matrix);
+        }
         super.concat(matrix);
     }
 
     @Override
     public void drawARGB(int a, int r, int g, int b) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.COLOR).hex((a << 24) | (r << 16) | (g << 8) | b);
+            return;
+        }
         super.drawARGB(a, r, g, b);
     }
 
@@ -120,30 +212,63 @@ class ProxyCanvas extends Canvas {
     public void drawArc(RectF oval, float startAngle, float sweepAngle,
             boolean useCenter, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.ARC).arg(oval.left).arg(oval.top).arg(oval.right).arg(oval.bottom)
+                    .arg(startAngle).arg(sweepAngle).arg(useCenter).paint(paint);
+            return;
+        }
         super.drawArc(oval, startAngle, sweepAngle, useCenter, paint);
     }
 
+    // Added in API 21.
+    public void drawArc(float left, float top, float right, float bottom, float startAngle,
+            float sweepAngle, boolean useCenter, Paint paint) {
+        mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.ARC).arg(left).arg(top).arg(right).arg(bottom)
+                    .arg(startAngle).arg(sweepAngle).arg(useCenter).paint(paint);
+            return;
+        }
+        super.drawArc(new RectF(left, top, right, bottom), startAngle, sweepAngle, useCenter, paint);
+    }
+
     @Override
     public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.BITMAP).bitmap(bitmap).arg(left).arg(top).paint(paint);
+            return;
+        }
         super.drawBitmap(bitmap, left, top, paint);
     }
 
     @Override
     public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.BITMAP_MATRIX).bitmap(bitmap).arg(matrix).paint(paint);
+            return;
+        }
         super.drawBitmap(bitmap, matrix, paint);
     }
 
     @Override
     public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.BITMAP_RECT).bitmap(bitmap).arg(dst.left).arg(dst.top).arg(dst.right).arg(dst.bottom).paint(paint);
+            return;
+        }
         super.drawBitmap(bitmap, src, dst, paint);
     }
 
     @Override
     public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.BITMAP_RECT).bitmap(bitmap).arg(dst.left).arg(dst.top).arg(dst.right).arg(dst.bottom).paint(paint);
+            return;
+        }
         super.drawBitmap(bitmap, src, dst, paint);
     }
 
@@ -151,6 +276,10 @@ class ProxyCanvas extends Canvas {
     public void drawBitmap(int[] colors, int offset, int stride, float x,
             float y, int width, int height, boolean hasAlpha, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawBitmap");
+            return;
+        }
         super.drawBitmap(colors, offset, stride, x, y, width, height, hasAlpha, paint);
     }
 
@@ -158,6 +287,10 @@ class ProxyCanvas extends Canvas {
     public void drawBitmap(int[] colors, int offset, int stride, int x, int y,
             int width, int height, boolean hasAlpha, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawBitmap");
+            return;
+        }
         super.drawBitmap(colors, offset, stride, x, y, width, height, hasAlpha, paint);
     }
 
@@ -166,6 +299,10 @@ class ProxyCanvas extends Canvas {
             float[] verts, int vertOffset, int[] colors, int colorOffset,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawBitmapMesh");
+            return;
+        }
         super.drawBitmapMesh(bitmap, meshWidth, meshHeight, verts, vertOffset, colors,
                 colorOffset, paint);
     }
@@ -173,18 +310,30 @@ class ProxyCanvas extends Canvas {
     @Override
     public void drawCircle(float cx, float cy, float radius, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.CIRCLE).arg(cx).arg(cy).arg(radius).paint(paint);
+            return;
+        }
         super.drawCircle(cx, cy, radius, paint);
     }
 
     @Override
     public void drawColor(int color, Mode mode) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.COLOR).hex(color);
+            return;
+        }
         super.drawColor(color, mode);
     }
 
     @Override
     public void drawColor(int color) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.COLOR).hex(color);
+            return;
+        }
         super.drawColor(color);
     }
 
@@ -192,72 +341,135 @@ class ProxyCanvas extends Canvas {
     public void drawLine(float startX, float startY, float stopX, float stopY,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.LINES).arg(startX).arg(startY).arg(stopX).arg(stopY).paint(paint);
+            return;
+        }
         super.drawLine(startX, startY, stopX, stopY, paint);
     }
 
     @Override
     public void drawLines(float[] pts, int offset, int count, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.LINES).args(pts, offset, count).paint(paint);
+            return;
+        }
         super.drawLines(pts, offset, count, paint);
     }
 
     @Override
     public void drawLines(float[] pts, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.LINES).args(pts, 0, pts.length).paint(paint);
+            return;
+        }
         super.drawLines(pts, paint);
     }
 
     @Override
     public void drawOval(RectF oval, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.OVAL).arg(oval.left).arg(oval.top).arg(oval.right).arg(oval.bottom).paint(paint);
+            return;
+        }
         super.drawOval(oval, paint);
     }
 
+    // Added in API 21.
+    public void drawOval(float left, float top, float right, float bottom, Paint paint) {
+        mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.OVAL).arg(left).arg(top).arg(right).arg(bottom).paint(paint);
+            return;
+        }
+        super.drawOval(new RectF(left, top, right, bottom), paint);
+    }
+
     @Override
     public void drawPaint(Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.COLOR).hex(paint.getColor());
+            return;
+        }
         super.drawPaint(paint);
     }
 
     @Override
     public void drawPath(Path path, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            if (mPathBounds == null) {
+                mPathBounds = new RectF();
+            }
+            path.computeBounds(mPathBounds, true);
+            mLog.op(OpLog.PATH).arg(mPathBounds.left).arg(mPathBounds.top)
+                    .arg(mPathBounds.right).arg(mPathBounds.bottom).paint(paint);
+            return;
+        }
         super.drawPath(path, paint);
     }
 
     @Override
     public void drawPicture(Picture picture, Rect dst) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawPicture");
+            return;
+        }
         super.drawPicture(picture, dst);
     }
 
     @Override
     public void drawPicture(Picture picture, RectF dst) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawPicture");
+            return;
+        }
         super.drawPicture(picture, dst);
     }
 
     @Override
     public void drawPicture(Picture picture) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawPicture");
+            return;
+        }
         super.drawPicture(picture);
     }
 
     @Override
     public void drawPoint(float x, float y, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.POINTS).arg(x).arg(y).paint(paint);
+            return;
+        }
         super.drawPoint(x, y, paint);
     }
 
     @Override
     public void drawPoints(float[] pts, int offset, int count, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.POINTS).args(pts, offset, count).paint(paint);
+            return;
+        }
         super.drawPoints(pts, offset, count, paint);
     }
 
     @Override
     public void drawPoints(float[] pts, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.POINTS).args(pts, 0, pts.length).paint(paint);
+            return;
+        }
         super.drawPoints(pts, paint);
     }
 
@@ -266,6 +478,10 @@ class ProxyCanvas extends Canvas {
     public void drawPosText(char[] text, int index, int count, float[] pos,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawPosText");
+            return;
+        }
         super.drawPosText(text, index, count, pos, paint);
     }
 
@@ -273,12 +489,20 @@ class ProxyCanvas extends Canvas {
     @Override
     public void drawPosText(String text, float[] pos, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawPosText");
+            return;
+        }
         super.drawPosText(text, pos, paint);
     }
 
     @Override
     public void drawRGB(int r, int g, int b) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.COLOR).hex(0xff000000 | (r << 16) | (g << 8) | b);
+            return;
+        }
         super.drawRGB(r, g, b);
     }
 
@@ -286,31 +510,64 @@ class ProxyCanvas extends Canvas {
     public void drawRect(float left, float top, float right, float bottom,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.RECT).arg(left).arg(top).arg(right).arg(bottom).paint(paint);
+            return;
+        }
         super.drawRect(left, top, right, bottom, paint);
     }
 
     @Override
     public void drawRect(Rect r, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.RECT).arg(r.left).arg(r.top).arg(r.right).arg(r.bottom).paint(paint);
+            return;
+        }
         super.drawRect(r, paint);
     }
 
     @Override
     public void drawRect(RectF rect, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom).paint(paint);
+            return;
+        }
         super.drawRect(rect, paint);
     }
 
     @Override
     public void drawRoundRect(RectF rect, float rx, float ry, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.ROUND_RECT).arg(rect.left).arg(rect.top).arg(rect.right).arg(rect.bottom)
+                    .arg(rx).arg(ry).paint(paint);
+            return;
+        }
         super.drawRoundRect(rect, rx, ry, paint);
     }
 
+    // Added in API 21.
+    public void drawRoundRect(float left, float top, float right, float bottom, float rx,
+            float ry, Paint paint) {
+        mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.ROUND_RECT).arg(left).arg(top).arg(right).arg(bottom)
+                    .arg(rx).arg(ry).paint(paint);
+            return;
+        }
+        super.drawRoundRect(new RectF(left, top, right, bottom), rx, ry, paint);
+    }
+
     @Override
     public void drawText(char[] text, int index, int count, float x, float y,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, index, count);
+            return;
+        }
         super.drawText(text, index, count, x, y, paint);
     }
 
@@ -318,12 +575,20 @@ class ProxyCanvas extends Canvas {
     public void drawText(CharSequence text, int start, int end, float x,
             float y, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, start, end);
+            return;
+        }
         super.drawText(text, start, end, x, y, paint);
     }
 
     @Override
     public void drawText(String text, float x, float y, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, 0, text.length());
+            return;
+        }
         super.drawText(text, x, y, paint);
     }
 
@@ -331,6 +596,32 @@ class ProxyCanvas extends Canvas {
     public void drawText(String text, int start, int end, float x, float y,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, start, end);
+            return;
+        }
+        super.drawText(text, start, end, x, y, paint);
+    }
+
+    // Added in API 23. The context and direction only shape the run.
+    public void drawTextRun(char[] text, int index, int count, int contextIndex,
+            int contextCount, float x, float y, boolean isRtl, Paint paint) {
+        mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, index, count);
+            return;
+        }
+        super.drawText(text, index, count, x, y, paint);
+    }
+
+    // Added in API 23.
+    public void drawTextRun(CharSequence text, int start, int end, int contextStart,
+            int contextEnd, float x, float y, boolean isRtl, Paint paint) {
+        mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TEXT).arg(x).arg(y).paint(paint).text(text, start, end);
+            return;
+        }
         super.drawText(text, start, end, x, y, paint);
     }
 
@@ -338,6 +629,10 @@ class ProxyCanvas extends Canvas {
     public void drawTextOnPath(char[] text, int index, int count, Path path,
             float hOffset, float vOffset, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawTextOnPath");
+            return;
+        }
         super.drawTextOnPath(text, index, count, path, hOffset, vOffset, paint);
     }
 
@@ -345,6 +640,10 @@ class ProxyCanvas extends Canvas {
     public void drawTextOnPath(String text, Path path, float hOffset,
             float vOffset, Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawTextOnPath");
+            return;
+        }
         super.drawTextOnPath(text, path, hOffset, vOffset, paint);
     }
 
@@ -354,6 +653,10 @@ class ProxyCanvas extends Canvas {
             int colorOffset, short[] indices, int indexOffset, int indexCount,
             Paint paint) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.unsupported("drawVertices");
+            return;
+        }
         super.drawVertices(mode, vertexCount, verts, vertOffset, texs, texOffset,
                 colors, colorOffset, indices, indexOffset, indexCount, paint);
     }
@@ -361,6 +664,10 @@ class ProxyCanvas extends Canvas {
     @Override
     public boolean getClipBounds(Rect bounds) {
         mTouched = true;
+        if (mLog != null) {
+            bounds.set(0, 0, mWidth, mHeight);
+            return true;
+        }
         return super.getClipBounds(bounds);
     }
 
@@ -379,6 +686,9 @@ class ProxyCanvas extends Canvas {
     @Override
     public int getHeight() {
         mTouched = true;
+        if (mLog != null) {
+            return mHeight;
+        }
         return super.getHeight();
     }
 
@@ -410,6 +720,9 @@ class ProxyCanvas extends Canvas {
     @Override
     public int getWidth() {
         mTouched = true;
+        if (mLog != null) {
+            return mWidth;
+        }
         return super.getWidth();
     }
 
@@ -429,48 +742,75 @@ class ProxyCanvas extends Canvas {
     public boolean quickReject(float left, float top, float right,
             float bottom, EdgeType type) {
         mTouched = true;
+        if (mLog != null) {
+            // Nothing is clipped out, there is no bitmap.
+            return false;
+        }
         return super.quickReject(left, top, right, bottom, type);
     }
 
     @Override
     public boolean quickReject(Path path, EdgeType type) {
         mTouched = true;
+        if (mLog != null) {
+            // Nothing is clipped out, there is no bitmap.
+            return false;
+        }
         return super.quickReject(path, type);
     }
 
     @Override
     public boolean quickReject(RectF rect, EdgeType type) {
         mTouched = true;
+        if (mLog != null) {
+            // Nothing is clipped out, there is no bitmap.
+            return false;
+        }
         return super.quickReject(rect, type);
     }
 
     @Override
     public void restore() {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.RESTORE);
+        }
         super.restore();
     }
 
     @Override
     public void restoreToCount(int saveCount) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.RESTORE).arg(saveCount);
+        }
         super.restoreToCount(saveCount);
     }
 
     @Override
     public void rotate(float degrees) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.ROTATE).arg(degrees);
+        }
         super.rotate(degrees);
     }
 
     @Override
     public int save() {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.save();
     }
 
     @Override
     public int save(int saveFlags) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.save(saveFlags);
     }
 
@@ -478,12 +818,18 @@ class ProxyCanvas extends Canvas {
     public int saveLayer(float left, float top, float right, float bottom,
             Paint paint, int saveFlags) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.saveLayer(left, top, right, bottom, paint, saveFlags);
     }
 
     @Override
     public int saveLayer(RectF bounds, Paint paint, int saveFlags) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.saveLayer(bounds, paint, saveFlags);
     }
 
@@ -491,18 +837,27 @@ class ProxyCanvas extends Canvas {
     public int saveLayerAlpha(float left, float top, float right, float bottom,
             int alpha, int saveFlags) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.saveLayerAlpha(left, top, right, bottom, alpha, saveFlags);
     }
 
     @Override
     public int saveLayerAlpha(RectF bounds, int alpha, int saveFlags) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SAVE);
+        }
         return super.saveLayerAlpha(bounds, alpha, saveFlags);
     }
 
     @Override
     public void scale(float sx, float sy) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SCALE).arg(sx).arg(sy);
+        }
         super.scale(sx, sy);
     }
 
@@ -527,18 +882,27 @@ class ProxyCanvas extends Canvas {
     @Override
     public void setMatrix(Matrix matrix) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SET_MATRIX).arg(matrix);
+        }
         super.setMatrix(matrix);
     }
 
     @Override
     public void skew(float sx, float sy) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.SKEW).arg(sx).arg(sy);
+        }
         super.skew(sx, sy);
     }
 
     @Override
     public void translate(float dx, float dy) {
         mTouched = true;
+        if (mLog != null) {
+            mLog.op(OpLog.TRANSLATE).arg(dx).arg(dy);
+        }
         super.translate(dx, dy);
     }
 
@@ -0,0 +1,127 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash indexes of the nodes of a snapshot by class name, by resource id and
+ * by the id of their view, to answer queries without walking the hierarchy.
+ *
+ * Classes are indexed by their full name and by their simple name. Ids are
+ * indexed by their full name, like "@app:id/price", and by their entry name,
+ * like "price". Nodes are listed in pre-order.
+ */
+final class QueryIndex {
+    private static final int[] NO_NODES = new int[0];
+
+    private final int mNodeCount;
+    private final HashMap<String, int[]> mClasses;
+    private final HashMap<String, int[]> mIds;
+    private final HashMap<Integer, Integer> mUids;
+
+    /**
+     * Builds the indexes of a snapshot, waiting for it to be complete.
+     */
+    QueryIndex(Snapshot snapshot) throws InterruptedException {
+        final HashMap<String, Nodes> classes = new HashMap<String, Nodes>();
+        final HashMap<String, Nodes> ids = new HashMap<String, Nodes>();
+
+        final int count = snapshot.getNodeCount();
+        mUids = new HashMap<Integer, Integer>(count * 2);
+        for (int i = 0; i < count; i++) {
+            mUids.put(snapshot.getUid(i), i);
+
+            final String className = snapshot.getClassName(i);
+            add(classes, className, i);
+
+            final int simple = Math.max(className.lastIndexOf('.'), className.lastIndexOf('$'));
+            if (simple != -1) {
+                add(classes, className.substring(simple + 1), i);
+            }
+
+            // Ids are captured as "[@pkg:type/entry]", or empty.
+            final String idName = snapshot.getIdName(i);
+            if (idName.length() > 2) {
+                add(ids, idName.substring(1, idName.length() - 1), i);
+                add(ids, idName.substring(idName.lastIndexOf('/') + 1, idName.length() - 1), i);
+            }
+        }
+
+        mNodeCount = count;
+        mClasses = toArrays(classes);
+        mIds = toArrays(ids);
+    }
+
+    private static void add(HashMap<String, Nodes> index, String key, int node) {
+        Nodes nodes = index.get(key);
+        if (nodes == null) {
+            nodes = new Nodes();
+            index.put(key, nodes);
+        }
+        nodes.add(node);
+    }
+
+    private static HashMap<String, int[]> toArrays(HashMap<String, Nodes> index) {
+        final HashMap<String, int[]> arrays = new HashMap<String, int[]>(index.size() * 2);
+        for (Map.Entry<String, Nodes> entry : index.entrySet()) {
+            arrays.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return arrays;
+    }
+
+    int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the nodes of a class, by full or simple name.
+     */
+    int[] getByClass(String className) {
+        final int[] nodes = mClasses.get(className);
+        return nodes != null ? nodes : NO_NODES;
+    }
+
+    /**
+     * Returns the nodes with an id, by full or entry name.
+     */
+    int[] getById(String idName) {
+        final int[] nodes = mIds.get(idName);
+        return nodes != null ? nodes : NO_NODES;
+    }
+
+    /**
+     * Returns the node of a view, by the id of the view, or -1 if the view
+     * is not in the snapshot.
+     */
+    int getByUid(int uid) {
+        final Integer node = mUids.get(uid);
+        return node != null ? node : -1;
+    }
+
+    /**
+     * A growable list of node indices.
+     */
+    private static final class Nodes {
+        private int[] mNodes = new int[4];
+        private int mSize;
+
+        void add(int node) {
+            if (mSize == mNodes.length) {
+                final int[] grown = new int[mSize * 2];
+                System.arraycopy(mNodes, 0, grown, 0, mSize);
+                mNodes = grown;
+            }
+            mNodes[mSize++] = node;
+        }
+
+        int[] toArray() {
+            final int[] nodes = new int[mSize];
+            System.arraycopy(mNodes, 0, nodes, 0, mSize);
+            return nodes;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.zip.Deflater;
+
+import android.os.SystemClock;
+
+/**
+ * Options sent by the client along with a command. These are space separated
+ * tokens following the command name, either flags or <code>key=value</code>
+ * pairs. For example:
+ *
+ * <pre>
+ * print json strict gzip level=9 maxage=1000 content=picture pixels=lz4 lod=4 session=1 text exported interactive deadline=500
+ * </pre>
+ *
+ * Unknown tokens are ignored, so that newer clients can talk to older servers.
+ */
+final class RequestOptions {
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_DEFLATE = 1;
+    static final int COMPRESSION_GZIP = 2;
+
+    // How content layers are captured.
+    static final int CONTENT_PNG = 0;
+    static final int CONTENT_PICTURE = 1;
+    static final int CONTENT_OPS = 2;
+
+    // How the pixels of layers are sent.
+    static final int PIXELS_PNG = 0;
+    static final int PIXELS_RAW = 1;
+    static final int PIXELS_LZ4 = 2;
+
+    private static final String OPTION_JSON = "json";
+    private static final String OPTION_STRICT = "strict";
+    private static final String OPTION_DEFLATE = "deflate";
+    private static final String OPTION_GZIP = "gzip";
+    private static final String OPTION_LEVEL = "level";
+    private static final String OPTION_FRESH = "fresh";
+    private static final String OPTION_MAX_AGE = "maxage";
+    private static final String OPTION_BUDGET = "budget";
+    private static final String OPTION_CONTENT = "content";
+    private static final String OPTION_TEXT = "text";
+    private static final String OPTION_EXPORTED = "exported";
+    private static final String OPTION_INTERACTIVE = "interactive";
+    private static final String OPTION_DEADLINE = "deadline";
+    private static final String CONTENT_NAME_PICTURE = "picture";
+    private static final String CONTENT_NAME_OPS = "ops";
+    private static final String OPTION_PIXELS = "pixels";
+    private static final String PIXELS_NAME_RAW = "raw";
+    private static final String PIXELS_NAME_LZ4 = "lz4";
+    private static final String OPTION_SESSION = "session";
+    private static final String OPTION_LOD = "lod";
+
+    // Default staleness allowed for a cached snapshot, in milliseconds.
+    private static final long DEFAULT_MAX_AGE = 5000;
+
+    private boolean mJson;
+    private boolean mStrict;
+    private int mCompression = COMPRESSION_NONE;
+    private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean mFresh;
+    private long mMaxAge = DEFAULT_MAX_AGE;
+    private long mMemoryBudget;
+    private int mContentMode = CONTENT_PNG;
+    private int mPixelFormat = PIXELS_PNG;
+    private String mSession;
+    private int mLevelOfDetail = 1;
+    private boolean mCaptureText;
+    private boolean mCaptureExported;
+    private boolean mMeasureContent;
+    private boolean mCaptureLayers = true;
+    private int mPriority = UiScheduler.PRIORITY_BULK;
+    private long mDeadline;
+
+    private RequestOptions() {
+    }
+
+    /**
+     * Parses the parameters of a command.
+     *
+     * @param parameters The part of the request following the command name.
+     * @return The options, never null.
+     */
+    static RequestOptions parse(String parameters) {
+        final RequestOptions options = new RequestOptions();
+        if (parameters == null) {
+            return options;
+        }
+
+        for (String token : parameters.trim().split("\\s+")) {
+            String key = token;
+            String value = null;
+
+            final int index = token.indexOf('=');
+            if (index != -1) {
+                key = token.substring(0, index);
+                value = token.substring(index + 1);
+            }
+
+            if (OPTION_JSON.equalsIgnoreCase(key)) {
+                options.mJson = true;
+            } else if (OPTION_STRICT.equalsIgnoreCase(key)) {
+                // Implies JSON.
+                options.mJson = true;
+                options.mStrict = true;
+            } else if (OPTION_DEFLATE.equalsIgnoreCase(key)) {
+                options.mCompression = COMPRESSION_DEFLATE;
+            } else if (OPTION_GZIP.equalsIgnoreCase(key)) {
+                options.mCompression = COMPRESSION_GZIP;
+            } else if (OPTION_LEVEL.equalsIgnoreCase(key)) {
+                final int level = parseInt(value, Deflater.DEFAULT_COMPRESSION);
+                if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION) {
+                    options.mCompressionLevel = level;
+                }
+            } else if (OPTION_FRESH.equalsIgnoreCase(key)) {
+                options.mFresh = true;
+            } else if (OPTION_MAX_AGE.equalsIgnoreCase(key)) {
+                options.mMaxAge = Math.max(0, parseInt(value, (int) DEFAULT_MAX_AGE));
+            } else if (OPTION_BUDGET.equalsIgnoreCase(key)) {
+                // In kilobytes.
+                options.mMemoryBudget = Math.max(0, parseInt(value, 0)) * 1024L;
+            } else if (OPTION_TEXT.equalsIgnoreCase(key)) {
+                options.mCaptureText = true;
+            } else if (OPTION_EXPORTED.equalsIgnoreCase(key)) {
+                options.mCaptureExported = true;
+            } else if (OPTION_INTERACTIVE.equalsIgnoreCase(key)) {
+                options.mPriority = UiScheduler.PRIORITY_INTERACTIVE;
+            } else if (OPTION_DEADLINE.equalsIgnoreCase(key)) {
+                // In milliseconds from now.
+                final int deadline = parseInt(value, 0);
+                if (deadline > 0) {
+                    options.mDeadline = SystemClock.uptimeMillis() + deadline;
+                }
+            } else if (OPTION_CONTENT.equalsIgnoreCase(key)) {
+                if (CONTENT_NAME_PICTURE.equalsIgnoreCase(value)) {
+                    options.mContentMode = CONTENT_PICTURE;
+                } else if (CONTENT_NAME_OPS.equalsIgnoreCase(value)) {
+                    options.mContentMode = CONTENT_OPS;
+                } else {
+                    options.mContentMode = CONTENT_PNG;
+                }
+            } else if (OPTION_PIXELS.equalsIgnoreCase(key)) {
+                if (PIXELS_NAME_RAW.equalsIgnoreCase(value)) {
+                    options.mPixelFormat = PIXELS_RAW;
+                } else if (PIXELS_NAME_LZ4.equalsIgnoreCase(value)) {
+                    options.mPixelFormat = PIXELS_LZ4;
+                } else {
+                    options.mPixelFormat = PIXELS_PNG;
+                }
+            } else if (OPTION_LOD.equalsIgnoreCase(key)) {
+                // Layers are downscaled by 1, 2 or 4.
+                final int level = parseInt(value, 1);
+                if (level == 1 || level == 2 || level == 4) {
+                    options.mLevelOfDetail = level;
+                }
+            } else if (OPTION_SESSION.equalsIgnoreCase(key)) {
+                if (value != null && value.length() > 0) {
+                    options.mSession = value;
+                }
+            }
+        }
+
+        // Sessions send the pixels of layers as tiles, which are not PNGs.
+        if (options.mSession != null && options.mPixelFormat == PIXELS_PNG) {
+            options.mPixelFormat = PIXELS_LZ4;
+        }
+
+        return options;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean isJson() {
+        return mJson;
+    }
+
+    /**
+     * Returns true if the JSON should be strict, with double quotes, instead
+     * of the single quotes that older clients expect.
+     */
+    public boolean isStrict() {
+        return mStrict;
+    }
+
+    /**
+     * Returns the quote of the keys and strings of JSON responses.
+     */
+    public char getQuote() {
+        return mStrict ? '"' : '\'';
+    }
+
+    public int getCompression() {
+        return mCompression;
+    }
+
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Returns true if the request asks for a fresh capture, instead of
+     * a cached snapshot.
+     */
+    public boolean isFresh() {
+        return mFresh;
+    }
+
+    /**
+     * Returns the maximum age of a cached snapshot that can be served
+     * for this request, in milliseconds.
+     */
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Returns the memory the capture may use for its layers in bytes,
+     * or 0 for the default.
+     */
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * Returns how content layers are captured: {@link #CONTENT_PNG},
+     * {@link #CONTENT_PICTURE} or {@link #CONTENT_OPS}.
+     */
+    public int getContentMode() {
+        return mContentMode;
+    }
+
+    /**
+     * Returns how the pixels of layers are sent: as PNGs in the document
+     * ({@link #PIXELS_PNG}), or as blobs after the document, either as they
+     * are ({@link #PIXELS_RAW}) or compressed ({@link #PIXELS_LZ4}).
+     */
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    /**
+     * Returns the factor the layers are downscaled by: 1 for full scale,
+     * 2 for half scale, or 4 for quarter scale.
+     */
+    public int getLevelOfDetail() {
+        return mLevelOfDetail;
+    }
+
+    /**
+     * Returns the name of the session of the client, or null if it has none.
+     * Successive requests of a session only send the tiles of the layers that
+     * changed, and send the pixels of layers as blobs.
+     */
+    public String getSession() {
+        return mSession;
+    }
+
+    /**
+     * Returns true if the pixels of the layers should be split in tiles.
+     */
+    public boolean isTiling() {
+        return mSession != null;
+    }
+
+    /**
+     * Returns true if the text of text views should be captured as text,
+     * instead of as their content.
+     */
+    public boolean isCapturingText() {
+        return mCaptureText;
+    }
+
+    /**
+     * Returns true if the fields and getters of views annotated as exported
+     * properties for ViewDebug should be captured.
+     */
+    public boolean isCapturingExported() {
+        return mCaptureExported;
+    }
+
+    /**
+     * Returns true if the capture should measure the region drawn by the
+     * content layers, for the overdraw command. Layers are then only
+     * measured: their pixels are not kept.
+     */
+    public boolean isMeasuringContent() {
+        return mMeasureContent;
+    }
+
+    void setMeasuringContent(boolean measure) {
+        mMeasureContent = measure;
+    }
+
+    /**
+     * Returns true if the capture should rasterize the backgrounds and the
+     * content of the views, and not only capture their properties.
+     */
+    public boolean isCapturingLayers() {
+        return mCaptureLayers;
+    }
+
+    void setCapturingLayers(boolean capture) {
+        mCaptureLayers = capture;
+    }
+
+    /**
+     * Returns the priority of the work of the capture on the UI thread:
+     * {@link UiScheduler#PRIORITY_INTERACTIVE} or {@link UiScheduler#PRIORITY_BULK}.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Returns the time by which the request should be answered, with the
+     * nodes captured so far, in uptime milliseconds. Returns 0 if the request
+     * has no deadline.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns a key made of the options that change what gets captured.
+     * Requests with the same key can share a capture. Output options, like
+     * the format or the compression, are not a part of it.
+     */
+    public String getCaptureKey() {
+        StringBuilder key = new StringBuilder();
+        if (mMemoryBudget != 0) {
+            key.append(OPTION_BUDGET).append('=').append(mMemoryBudget).append(' ');
+        }
+        if (mContentMode != CONTENT_PNG) {
+            key.append(OPTION_CONTENT).append('=').append(mContentMode).append(' ');
+        }
+        if (mPixelFormat != PIXELS_PNG) {
+            key.append(OPTION_PIXELS).append('=').append(mPixelFormat).append(' ');
+        }
+        if (mLevelOfDetail != 1) {
+            key.append(OPTION_LOD).append('=').append(mLevelOfDetail).append(' ');
+        }
+        if (isTiling()) {
+            key.append("tiles ");
+        }
+        if (mCaptureText) {
+            key.append(OPTION_TEXT).append(' ');
+        }
+        if (mCaptureExported) {
+            key.append(OPTION_EXPORTED).append(' ');
+        }
+        if (mMeasureContent) {
+            key.append("measure ");
+        }
+        if (!mCaptureLayers) {
+            key.append("properties ");
+        }
+        if (mDeadline != 0) {
+            // Captures with a deadline may be partial. Which of them a
+            // request can join depends on their deadlines.
+            key.append(OPTION_DEADLINE).append(' ');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,194 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * The writer used to send a response back to the client. Depending on the
+ * request, the response is compressed as a deflate or gzip stream.
+ *
+ * Responses are encoded in UTF-8.
+ */
+final class ResponseWriter extends BufferedWriter {
+    // Marks the end of the document, when blobs follow it.
+    private static final int END_OF_DOCUMENT = 0;
+
+    // Flags of the blobs.
+    private static final int BLOB_COMPRESSED = 1;
+    private static final int BLOB_TILED = 2;
+
+    private final OutputStream mOut;
+    private final CompressingOutputStream mCompressor;
+
+    // The session of the client, if any, to send only the tiles that changed.
+    private TileSession mSession;
+
+    private ResponseWriter(OutputStream out, CompressingOutputStream compressor) throws IOException {
+        super(new OutputStreamWriter(out, "UTF-8"));
+        mOut = out;
+        mCompressor = compressor;
+    }
+
+    /**
+     * Creates a writer for the response to a request.
+     *
+     * @param out The stream to the client.
+     * @param options The options sent with the request.
+     */
+    static ResponseWriter open(OutputStream out, RequestOptions options) throws IOException {
+        CompressingOutputStream compressor = null;
+        if (options.getCompression() != RequestOptions.COMPRESSION_NONE) {
+            compressor = new CompressingOutputStream(out, options.getCompression(),
+                    options.getCompressionLevel());
+            out = compressor;
+        }
+
+        return new ResponseWriter(out, compressor);
+    }
+
+    /**
+     * Sets the session of the client, so that the tiles it already has
+     * are not sent again.
+     */
+    void setTileSession(TileSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Writes an encoded layer. Encoded PNGs are already compressed, and are
+     * written as payloads that are not compressed again.
+     *
+     * @param layer The layer, as a data URI.
+     */
+    void writeLayer(String layer) throws IOException {
+        if (layer.startsWith(ViewCapture.BASE64_IDENTIFIER)) {
+            writePayload(layer);
+        } else {
+            write(layer);
+        }
+    }
+
+    /**
+     * Writes the blobs of a snapshot after the document, if it has any. The
+     * document is followed by a 0 byte and the number of blobs, then each
+     * blob is written as its id, width, height, stride and flags, followed
+     * by the length of its data and its data. The flags are 1 if the data
+     * is compressed, plus 2 if the blob is tiled.
+     *
+     * Tiled blobs have the size of their tiles instead of a stride, and
+     * are followed by the number of tiles sent instead of a length. Each tile
+     * is written as its left, top, width, height, the length of its data and
+     * its data. Numbers are big endian, 4 byte integers, except for the
+     * flags, which are a byte.
+     *
+     * @param snapshot The snapshot, whose layers reference the blobs.
+     */
+    void writeBlobs(Snapshot snapshot) throws IOException {
+        writeBlobs(snapshot, null);
+    }
+
+    /**
+     * Writes some of the blobs of a snapshot after the document, as
+     * {@link #writeBlobs(Snapshot)} does.
+     *
+     * @param snapshot The snapshot, whose layers reference the blobs.
+     * @param ids The ids of the blobs to write, or null to write all of them.
+     */
+    void writeBlobs(Snapshot snapshot, int[] ids) throws IOException {
+        final Snapshot.Blob[] blobs = snapshot.getBlobs();
+        final int count = (ids == null) ? blobs.length : ids.length;
+        if (count == 0) {
+            return;
+        }
+
+        flush();
+        final DataOutputStream out = new DataOutputStream(mOut);
+        out.writeByte(END_OF_DOCUMENT);
+        out.writeInt(count);
+        for (int n = 0; n < count; n++) {
+            final int i = (ids == null) ? n : ids[n];
+            final Snapshot.Blob blob = blobs[i];
+            out.writeInt(i);
+            out.writeInt(blob.width);
+            out.writeInt(blob.height);
+            if (!blob.isTiled()) {
+                out.writeInt(blob.stride);
+                out.writeByte(blob.isCompressed ? BLOB_COMPRESSED : 0);
+                writeData(out, blob.data, blob.isCompressed);
+                continue;
+            }
+
+            out.writeInt(blob.tileSize);
+            out.writeByte((blob.isCompressed ? BLOB_COMPRESSED : 0) | BLOB_TILED);
+
+            final boolean[] changed = (mSession == null) ? null : mSession.update(blob);
+            int tiles = 0;
+            for (int tile = 0; tile < blob.tiles.length; tile++) {
+                if (changed == null || changed[tile]) {
+                    tiles++;
+                }
+            }
+            out.writeInt(tiles);
+
+            final int columns = (blob.width + blob.tileSize - 1) / blob.tileSize;
+            for (int tile = 0; tile < blob.tiles.length; tile++) {
+                if (changed != null && !changed[tile]) {
+                    continue;
+                }
+
+                final int left = (tile % columns) * blob.tileSize;
+                final int top = (tile / columns) * blob.tileSize;
+                out.writeInt(left);
+                out.writeInt(top);
+                out.writeInt(Math.min(blob.tileSize, blob.width - left));
+                out.writeInt(Math.min(blob.tileSize, blob.height - top));
+                writeData(out, blob.tiles[tile], blob.isCompressed);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the length of some data, and the data. Compressed data is not
+     * compressed again.
+     */
+    private void writeData(DataOutputStream out, byte[] data, boolean isCompressed) throws IOException {
+        out.writeInt(data.length);
+        if (!isCompressed || mCompressor == null) {
+            out.write(data);
+            return;
+        }
+
+        out.flush();
+        mCompressor.setStoring(true);
+        out.write(data);
+        out.flush();
+        mCompressor.setStoring(false);
+    }
+
+    /**
+     * Writes a payload that is already compressed, like an encoded image.
+     * Such payloads are not compressed again.
+     *
+     * @param payload The payload to write.
+     */
+    void writePayload(String payload) throws IOException {
+        if (mCompressor == null) {
+            write(payload);
+            return;
+        }
+
+        flush();
+        mCompressor.setStoring(true);
+        write(payload);
+        flush();
+        mCompressor.setStoring(false);
+    }
+}
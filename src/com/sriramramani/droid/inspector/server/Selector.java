@@ -0,0 +1,238 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.Arrays;
+
+import android.view.View;
+
+/**
+ * Selects nodes of a snapshot, for the find command. A selector is made of
+ * terms that all have to match:
+ *
+ *   class=<name>             The full or simple name of the class.
+ *   id=<name>                The full or entry name of the id, like
+ *                            "@app:id/price" or "price".
+ *   uid=<n>[,<n>...]         The ids of the views, as printed in earlier
+ *                            captures, see {@link ViewIds}.
+ *   visibility=<value>       visible, invisible or gone.
+ *   bounds=<x>,<y>,<w>,<h>   The absolute bounds of the node intersect
+ *                            this rectangle of the window.
+ *
+ * Class, id and uid terms are answered from the {@link QueryIndex} of the
+ * snapshot, and the other terms filter the nodes they return.
+ */
+final class Selector {
+    private String mClassName;
+    private String mIdName;
+    private int[] mUids;
+    private int mVisibility = -1;
+    private int[] mBounds;
+
+    private Selector() {
+    }
+
+    /**
+     * Parses the terms of a selector out of the parameters of a request.
+     * Other tokens are ignored.
+     *
+     * @return The selector, or null if the parameters don't have any valid term.
+     */
+    static Selector parse(String parameters) {
+        final Selector selector = new Selector();
+        boolean hasTerms = false;
+
+        for (String token : parameters.trim().split("\\s+")) {
+            final int index = token.indexOf('=');
+            if (index == -1) {
+                continue;
+            }
+
+            final String key = token.substring(0, index);
+            final String value = token.substring(index + 1);
+            if (value.length() == 0) {
+                continue;
+            }
+
+            if ("class".equals(key)) {
+                selector.mClassName = value;
+            } else if ("id".equals(key)) {
+                selector.mIdName = value;
+            } else if ("uid".equals(key)) {
+                selector.mUids = parseUids(value);
+                if (selector.mUids == null) {
+                    return null;
+                }
+            } else if ("visibility".equals(key)) {
+                selector.mVisibility = parseVisibility(value);
+                if (selector.mVisibility == -1) {
+                    return null;
+                }
+            } else if ("bounds".equals(key)) {
+                selector.mBounds = parseBounds(value);
+                if (selector.mBounds == null) {
+                    return null;
+                }
+            } else {
+                continue;
+            }
+
+            hasTerms = true;
+        }
+
+        return hasTerms ? selector : null;
+    }
+
+    private static int[] parseUids(String value) {
+        final String[] values = value.split(",");
+        final int[] uids = new int[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                uids[i] = Integer.parseInt(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return uids;
+    }
+
+    private static int parseVisibility(String value) {
+        if ("visible".equals(value)) {
+            return View.VISIBLE;
+        } else if ("invisible".equals(value)) {
+            return View.INVISIBLE;
+        } else if ("gone".equals(value)) {
+            return View.GONE;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses x,y,w,h into left, top, right and bottom.
+     */
+    private static int[] parseBounds(String value) {
+        final String[] values = value.split(",");
+        if (values.length != 4) {
+            return null;
+        }
+
+        try {
+            final int left = Integer.parseInt(values[0]);
+            final int top = Integer.parseInt(values[1]);
+            return new int[] {
+                left, top, left + Integer.parseInt(values[2]), top + Integer.parseInt(values[3])
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the nodes of a snapshot matching the selector, in pre-order.
+     * This waits for the capture to complete.
+     */
+    int[] find(Snapshot snapshot) throws InterruptedException {
+        final QueryIndex index = snapshot.getQueryIndex();
+
+        int[] candidates = null;
+        if (mClassName != null) {
+            candidates = index.getByClass(mClassName);
+        }
+
+        if (mIdName != null) {
+            final int[] ids = index.getById(mIdName);
+            candidates = (candidates == null) ? ids : intersect(candidates, ids);
+        }
+
+        if (mUids != null) {
+            final int[] nodes = getByUids(index);
+            candidates = (candidates == null) ? nodes : intersect(candidates, nodes);
+        }
+
+        final int count = (candidates == null) ? index.getNodeCount() : candidates.length;
+        if (mVisibility == -1 && mBounds == null) {
+            return (candidates == null) ? all(count) : candidates;
+        }
+
+        final SpatialIndex spatialIndex = (mBounds == null) ? null : snapshot.getSpatialIndex();
+        final int[] matches = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            final int node = (candidates == null) ? i : candidates[i];
+            if (mVisibility != -1 && snapshot.getVisibility(node) != mVisibility) {
+                continue;
+            }
+
+            if (spatialIndex != null
+                    && !spatialIndex.intersects(node, mBounds[0], mBounds[1], mBounds[2], mBounds[3])) {
+                continue;
+            }
+
+            matches[size++] = node;
+        }
+
+        final int[] result = new int[size];
+        System.arraycopy(matches, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Returns the nodes of the views of the uid term, sorted.
+     */
+    private int[] getByUids(QueryIndex index) {
+        final int[] nodes = new int[mUids.length];
+        int size = 0;
+        for (int uid : mUids) {
+            final int node = index.getByUid(uid);
+            if (node != -1) {
+                nodes[size++] = node;
+            }
+        }
+        Arrays.sort(nodes, 0, size);
+
+        // Views listed twice.
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || nodes[unique - 1] != nodes[i]) {
+                nodes[unique++] = nodes[i];
+            }
+        }
+
+        final int[] result = new int[unique];
+        System.arraycopy(nodes, 0, result, 0, unique);
+        return result;
+    }
+
+    private static int[] all(int count) {
+        final int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = i;
+        }
+        return nodes;
+    }
+
+    /**
+     * Intersects two sorted lists of nodes.
+     */
+    private static int[] intersect(int[] first, int[] second) {
+        final int[] nodes = new int[Math.min(first.length, second.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length;) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                nodes[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        final int[] result = new int[size];
+        System.arraycopy(nodes, 0, result, 0, size);
+        return result;
+    }
+}
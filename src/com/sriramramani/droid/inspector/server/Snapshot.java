@@ -0,0 +1,657 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * A captured view hierarchy. Nodes are stored in pre-order along with their
+ * depth, and are appended as the capture walks the hierarchy. Readers can
+ * start printing the first nodes while the rest are still being captured.
+ *
+ * The properties of the nodes are stored in columns of primitive arrays, by
+ * index, with class names and ids interned in a table of strings. Only the
+ * nodes with layers, text or extracted properties are kept as objects, so
+ * that large hierarchies captured without layers take little memory.
+ */
+final class Snapshot {
+
+    /**
+     * The captured state of a single view, filled by the capture before it
+     * is added to a snapshot.
+     */
+    static final class Node {
+        // Layers of a node, as flags.
+        static final int LAYER_BACKGROUND = 1;
+        static final int LAYER_CONTENT = 2;
+
+        int depth;
+
+        // Id of the captured view, stable across captures, see ViewIds.
+        int uid;
+
+        String className;
+        String idName;
+        int hashCode;
+
+        int left;
+        int top;
+        int width;
+        int height;
+
+        final int[] padding = new int[4];
+        int[] margin;
+        int[] drawablePadding;
+
+        int scrollX;
+        int scrollY;
+
+        boolean hasTransforms;
+        float scaleX;
+        float scaleY;
+        float rotationX;
+        float rotationY;
+        float translationX;
+        float translationY;
+
+        int visibility;
+
+        // Properties of the extractors, and the exported properties when
+        // asked for, as alternating names and values. See PropertyRegistry.
+        String[] properties;
+
+        boolean hasBackgroundColor;
+        int backgroundColor;
+        boolean isBackgroundOpaque;
+
+        // Encoded images, as data URIs.
+        String backgroundImage;
+        String content;
+
+        // Region drawn by the content, as left, top, right and bottom in
+        // the view. Only measured for rasterized content, when asked for.
+        int[] contentBounds;
+
+        // Draw operations of the content, see OpLog.
+        String ops;
+
+        // Text of the content, for text views.
+        Text text;
+
+        // Bitmaps drawn for the first time in the capture by the operations.
+        int[] bitmapIds;
+        String[] bitmaps;
+
+        // Layers that were degraded to stay within the memory budget.
+        int backgroundScale = 1;
+        int contentScale = 1;
+        int skippedLayers;
+
+        // Layers that were drawn but only measured, without keeping their
+        // pixels, see RequestOptions#isMeasuringContent().
+        int measuredLayers;
+
+        // Set if the UI thread didn't get to the node, or to some of its
+        // layers, before the deadline of the capture. A node that timed out
+        // only has its class name and uid.
+        boolean timedOut;
+        int timedOutLayers;
+
+        /**
+         * Returns true if the other node has the same depth and properties.
+         * Layers are not compared.
+         */
+        boolean hasSameProperties(Node other) {
+            return depth == other.depth
+                    && uid == other.uid
+                    && hashCode == other.hashCode
+                    && className.equals(other.className)
+                    && idName.equals(other.idName)
+                    && left == other.left
+                    && top == other.top
+                    && width == other.width
+                    && height == other.height
+                    && Arrays.equals(padding, other.padding)
+                    && Arrays.equals(margin, other.margin)
+                    && Arrays.equals(drawablePadding, other.drawablePadding)
+                    && scrollX == other.scrollX
+                    && scrollY == other.scrollY
+                    && hasTransforms == other.hasTransforms
+                    && scaleX == other.scaleX
+                    && scaleY == other.scaleY
+                    && rotationX == other.rotationX
+                    && rotationY == other.rotationY
+                    && translationX == other.translationX
+                    && translationY == other.translationY
+                    && visibility == other.visibility
+                    && Arrays.equals(properties, other.properties);
+        }
+
+        /**
+         * Returns true if the node has anything besides the properties kept
+         * in the columns of a snapshot: layers, text and the like.
+         */
+        boolean hasDetails() {
+            return properties != null
+                    || hasBackgroundColor
+                    || backgroundImage != null
+                    || content != null
+                    || contentBounds != null
+                    || ops != null
+                    || text != null
+                    || bitmaps != null
+                    || backgroundScale > 1
+                    || contentScale > 1
+                    || skippedLayers != 0
+                    || measuredLayers != 0
+                    || timedOutLayers != 0;
+        }
+
+        /**
+         * Returns the names of the given layers, separated by spaces.
+         */
+        static String getLayerNames(int layers) {
+            if (layers == (LAYER_BACKGROUND | LAYER_CONTENT)) {
+                return "background content";
+            }
+            return (layers == LAYER_BACKGROUND) ? "background" : "content";
+        }
+    }
+
+    /**
+     * The text drawn by a text view, captured instead of its content.
+     */
+    static final class Text {
+        // Each line is stored as: start, end, left, baseline, width.
+        static final int LINE_SIZE = 5;
+
+        String value;
+        float size;
+        int color;
+        String typeface;
+
+        // Origin of the text layout, in the view.
+        float x;
+        float y;
+
+        float[] lines;
+    }
+
+    /**
+     * The raw pixels of a layer, sent after the document instead of being
+     * encoded in it. Pixels are RGBA, with premultiplied alpha.
+     *
+     * The pixels of the background and content layers are split in square
+     * tiles when the request is part of a session, so that only the tiles
+     * that changed since the last capture are sent. Tiles on the right and
+     * bottom edges may be smaller. The rows of a tile are not padded.
+     */
+    static final class Blob {
+        final int width;
+        final int height;
+        final boolean isCompressed;
+
+        // Pixels of an untiled blob. Compressed as an LZ4 block, if isCompressed.
+        final int stride;
+        final byte[] data;
+
+        // Pixels of a tiled blob, row by row, and the layer they belong to,
+        // by the id of the view and the layer of the node.
+        final int tileSize;
+        final long[] tileHashes;
+        final byte[][] tiles;
+        final int uid;
+        final int layer;
+
+        Blob(int width, int height, int stride, boolean isCompressed, byte[] data) {
+            this.width = width;
+            this.height = height;
+            this.isCompressed = isCompressed;
+            this.stride = stride;
+            this.data = data;
+            tileSize = 0;
+            tileHashes = null;
+            tiles = null;
+            uid = ViewIds.NO_ID;
+            layer = 0;
+        }
+
+        Blob(int width, int height, boolean isCompressed, int tileSize, long[] tileHashes,
+                byte[][] tiles, int uid, int layer) {
+            this.width = width;
+            this.height = height;
+            this.isCompressed = isCompressed;
+            stride = 0;
+            data = null;
+            this.tileSize = tileSize;
+            this.tileHashes = tileHashes;
+            this.tiles = tiles;
+            this.uid = uid;
+            this.layer = layer;
+        }
+
+        boolean isTiled() {
+            return tiles != null;
+        }
+
+        /**
+         * Returns the number of bytes of pixels held by the blob.
+         */
+        long getSize() {
+            if (!isTiled()) {
+                return data.length;
+            }
+
+            long size = 0;
+            for (byte[] tile : tiles) {
+                size += tile.length;
+            }
+            return size;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Flags of the nodes.
+    private static final int FLAG_MARGIN = 1;
+    private static final int FLAG_TIMED_OUT = 2;
+    private static final int FLAG_DRAWABLE_PADDING = 4;
+    private static final int FLAG_TRANSFORMS = 8;
+
+    // Transforms of a node, in its column.
+    private static final int TRANSFORM_SIZE = 6;
+
+    // Properties of the nodes, by index. Boxes take four entries per node:
+    // left, top, width and height for the bounds, and left, top, right and
+    // bottom for the others. Transforms take six: scale, rotation and
+    // translation, along x then y.
+    private int mCount;
+    private int[] mDepths = new int[INITIAL_CAPACITY];
+    private int[] mParents = new int[INITIAL_CAPACITY];
+    private int[] mUids = new int[INITIAL_CAPACITY];
+    private int[] mHashCodes = new int[INITIAL_CAPACITY];
+    private int[] mClassNames = new int[INITIAL_CAPACITY];
+    private int[] mIdNames = new int[INITIAL_CAPACITY];
+    private int[] mBounds = new int[INITIAL_CAPACITY * 4];
+    private int[] mPaddings = new int[INITIAL_CAPACITY * 4];
+    private int[] mMargins = new int[INITIAL_CAPACITY * 4];
+    private int[] mDrawablePaddings = new int[INITIAL_CAPACITY * 4];
+    private float[] mTransforms = new float[INITIAL_CAPACITY * TRANSFORM_SIZE];
+    private int[] mScrolls = new int[INITIAL_CAPACITY * 2];
+    private int[] mVisibilities = new int[INITIAL_CAPACITY];
+    private int[] mFlags = new int[INITIAL_CAPACITY];
+
+    // The nodes with details, by index, or null.
+    private Node[] mDetails = new Node[INITIAL_CAPACITY];
+
+    // Index of the last node added at each depth, to find the parents.
+    private int[] mAncestors = new int[16];
+
+    // Class names and ids, by number.
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+    private final HashMap<String, Integer> mStringNumbers = new HashMap<String, Integer>();
+
+    private final ArrayList<Blob> mBlobs = new ArrayList<Blob>();
+    private boolean mComplete;
+    private boolean mTruncated;
+
+    // Layers captured again at other levels of detail, by level.
+    private final HashMap<Integer, LayerLevel> mLevels = new HashMap<Integer, LayerLevel>(4);
+
+    private final Object mIndexLock = new Object();
+    private SpatialIndex mSpatialIndex;
+    private QueryIndex mQueryIndex;
+
+    /**
+     * Appends a captured node. Its properties are copied, and the node is
+     * kept only if it has details.
+     */
+    synchronized void add(Node node) {
+        if (mCount == mDepths.length) {
+            grow(mCount * 2);
+        }
+
+        final int index = mCount;
+        final int depth = node.depth;
+        if (depth >= mAncestors.length) {
+            mAncestors = copyOf(mAncestors, Math.max(depth + 1, mAncestors.length * 2));
+        }
+        mAncestors[depth] = index;
+
+        mDepths[index] = depth;
+        mParents[index] = (depth == 0) ? -1 : mAncestors[depth - 1];
+        mUids[index] = node.uid;
+        mHashCodes[index] = node.hashCode;
+        mClassNames[index] = intern(node.className);
+        mIdNames[index] = intern(node.idName);
+
+        final int box = index * 4;
+        mBounds[box] = node.left;
+        mBounds[box + 1] = node.top;
+        mBounds[box + 2] = node.width;
+        mBounds[box + 3] = node.height;
+        System.arraycopy(node.padding, 0, mPaddings, box, 4);
+
+        int flags = 0;
+        if (node.margin != null) {
+            System.arraycopy(node.margin, 0, mMargins, box, 4);
+            flags |= FLAG_MARGIN;
+        }
+        if (node.drawablePadding != null) {
+            System.arraycopy(node.drawablePadding, 0, mDrawablePaddings, box, 4);
+            flags |= FLAG_DRAWABLE_PADDING;
+        }
+        if (node.hasTransforms) {
+            final int transform = index * TRANSFORM_SIZE;
+            mTransforms[transform] = node.scaleX;
+            mTransforms[transform + 1] = node.scaleY;
+            mTransforms[transform + 2] = node.rotationX;
+            mTransforms[transform + 3] = node.rotationY;
+            mTransforms[transform + 4] = node.translationX;
+            mTransforms[transform + 5] = node.translationY;
+            flags |= FLAG_TRANSFORMS;
+        }
+        if (node.timedOut) {
+            flags |= FLAG_TIMED_OUT;
+        }
+        mFlags[index] = flags;
+
+        mScrolls[index * 2] = node.scrollX;
+        mScrolls[index * 2 + 1] = node.scrollY;
+        mVisibilities[index] = node.visibility;
+        mDetails[index] = node.hasDetails() ? node : null;
+
+        mCount++;
+        notifyAll();
+    }
+
+    private void grow(int capacity) {
+        mDepths = copyOf(mDepths, capacity);
+        mParents = copyOf(mParents, capacity);
+        mUids = copyOf(mUids, capacity);
+        mHashCodes = copyOf(mHashCodes, capacity);
+        mClassNames = copyOf(mClassNames, capacity);
+        mIdNames = copyOf(mIdNames, capacity);
+        mBounds = copyOf(mBounds, capacity * 4);
+        mPaddings = copyOf(mPaddings, capacity * 4);
+        mMargins = copyOf(mMargins, capacity * 4);
+        mDrawablePaddings = copyOf(mDrawablePaddings, capacity * 4);
+
+        final float[] transforms = new float[capacity * TRANSFORM_SIZE];
+        System.arraycopy(mTransforms, 0, transforms, 0, mCount * TRANSFORM_SIZE);
+        mTransforms = transforms;
+        mScrolls = copyOf(mScrolls, capacity * 2);
+        mVisibilities = copyOf(mVisibilities, capacity);
+        mFlags = copyOf(mFlags, capacity);
+
+        final Node[] details = new Node[capacity];
+        System.arraycopy(mDetails, 0, details, 0, mCount);
+        mDetails = details;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private int intern(String value) {
+        final Integer number = mStringNumbers.get(value);
+        if (number != null) {
+            return number;
+        }
+
+        mStrings.add(value);
+        mStringNumbers.put(value, mStrings.size() - 1);
+        return mStrings.size() - 1;
+    }
+
+    /**
+     * Adds the pixels of a layer.
+     *
+     * @return The id of the blob, referenced by the layer.
+     */
+    synchronized int addBlob(Blob blob) {
+        mBlobs.add(blob);
+        return mBlobs.size() - 1;
+    }
+
+    /**
+     * Returns the blobs added so far, by id.
+     */
+    synchronized Blob[] getBlobs() {
+        return mBlobs.toArray(new Blob[mBlobs.size()]);
+    }
+
+    /**
+     * Returns the layers of the nodes captured again at a level of detail,
+     * which are kept as long as the snapshot.
+     *
+     * @param level The factor the layers are downscaled by.
+     */
+    synchronized LayerLevel getLevel(int level) {
+        LayerLevel layers = mLevels.get(level);
+        if (layers == null) {
+            layers = new LayerLevel(level);
+            mLevels.put(level, layers);
+        }
+        return layers;
+    }
+
+    /**
+     * Marks the end of the capture. No nodes are added after this.
+     */
+    synchronized void complete() {
+        mComplete = true;
+        notifyAll();
+    }
+
+    synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Marks that the capture stopped at its deadline, before capturing all
+     * the nodes.
+     */
+    synchronized void truncate() {
+        mTruncated = true;
+    }
+
+    synchronized boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Waits for the node at the given position in pre-order to be captured.
+     *
+     * @param index The position of the node.
+     * @return False if the capture completed with fewer nodes.
+     */
+    synchronized boolean waitForNode(int index) throws InterruptedException {
+        return waitForNode(index, 0);
+    }
+
+    /**
+     * Waits for the node at the given position in pre-order to be captured,
+     * until a deadline.
+     *
+     * @param index The position of the node.
+     * @param deadline The deadline in uptime milliseconds, or 0 to wait as
+     *        long as needed.
+     * @return False if the capture completed with fewer nodes, or if the
+     *         deadline passed.
+     */
+    synchronized boolean waitForNode(int index, long deadline) throws InterruptedException {
+        while (index >= mCount && !mComplete) {
+            if (deadline == 0) {
+                wait();
+                continue;
+            }
+
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+
+        return index < mCount;
+    }
+
+    /**
+     * Returns the number of nodes, waiting for the capture to complete.
+     */
+    synchronized int getNodeCount() throws InterruptedException {
+        while (!mComplete) {
+            wait();
+        }
+        return mCount;
+    }
+
+    /*
+     * The properties of a node, which must have been captured.
+     */
+
+    synchronized int getDepth(int index) {
+        return mDepths[index];
+    }
+
+    /**
+     * Returns the index of the parent of a node, or -1 for the root.
+     */
+    synchronized int getParent(int index) {
+        return mParents[index];
+    }
+
+    /**
+     * Returns the id of the view of a node, see {@link ViewIds}.
+     */
+    synchronized int getUid(int index) {
+        return mUids[index];
+    }
+
+    synchronized int getHashCode(int index) {
+        return mHashCodes[index];
+    }
+
+    synchronized String getClassName(int index) {
+        return mStrings.get(mClassNames[index]);
+    }
+
+    synchronized String getIdName(int index) {
+        return mStrings.get(mIdNames[index]);
+    }
+
+    /**
+     * Copies the left, top, width and height of a node.
+     */
+    synchronized void getBounds(int index, int[] bounds) {
+        System.arraycopy(mBounds, index * 4, bounds, 0, 4);
+    }
+
+    synchronized void getPadding(int index, int[] padding) {
+        System.arraycopy(mPaddings, index * 4, padding, 0, 4);
+    }
+
+    /**
+     * Copies the margin of a node, if its layout has margins.
+     *
+     * @return False if the node has no margin.
+     */
+    synchronized boolean getMargin(int index, int[] margin) {
+        if ((mFlags[index] & FLAG_MARGIN) == 0) {
+            return false;
+        }
+        System.arraycopy(mMargins, index * 4, margin, 0, 4);
+        return true;
+    }
+
+    /**
+     * Copies the padding of the background of a node, if it has one.
+     *
+     * @return False if the node has no background.
+     */
+    synchronized boolean getDrawablePadding(int index, int[] padding) {
+        if ((mFlags[index] & FLAG_DRAWABLE_PADDING) == 0) {
+            return false;
+        }
+        System.arraycopy(mDrawablePaddings, index * 4, padding, 0, 4);
+        return true;
+    }
+
+    /**
+     * Copies the scale, rotation and translation of a node, along x then y,
+     * if they were captured.
+     *
+     * @return False if the platform doesn't have transforms.
+     */
+    synchronized boolean getTransforms(int index, float[] transforms) {
+        if ((mFlags[index] & FLAG_TRANSFORMS) == 0) {
+            return false;
+        }
+        System.arraycopy(mTransforms, index * TRANSFORM_SIZE, transforms, 0, TRANSFORM_SIZE);
+        return true;
+    }
+
+    synchronized int getScrollX(int index) {
+        return mScrolls[index * 2];
+    }
+
+    synchronized int getScrollY(int index) {
+        return mScrolls[index * 2 + 1];
+    }
+
+    synchronized int getVisibility(int index) {
+        return mVisibilities[index];
+    }
+
+    /**
+     * Returns true if the UI thread didn't get to the node before the
+     * deadline of the capture, in which case only its uid and class name
+     * are known.
+     */
+    synchronized boolean isTimedOut(int index) {
+        return (mFlags[index] & FLAG_TIMED_OUT) != 0;
+    }
+
+    /**
+     * Returns the node with the layers, text and other details of a node,
+     * or null if it has none.
+     */
+    synchronized Node getDetails(int index) {
+        return mDetails[index];
+    }
+
+    /**
+     * Returns the spatial index of the nodes, building it on first use.
+     * This waits for the capture to complete.
+     */
+    SpatialIndex getSpatialIndex() throws InterruptedException {
+        synchronized (mIndexLock) {
+            if (mSpatialIndex == null) {
+                mSpatialIndex = new SpatialIndex(this);
+            }
+            return mSpatialIndex;
+        }
+    }
+
+    /**
+     * Returns the hash indexes of the nodes, building them on first use.
+     * This waits for the capture to complete.
+     */
+    QueryIndex getQueryIndex() throws InterruptedException {
+        synchronized (mIndexLock) {
+            if (mQueryIndex == null) {
+                mQueryIndex = new QueryIndex(this);
+            }
+            return mQueryIndex;
+        }
+    }
+}
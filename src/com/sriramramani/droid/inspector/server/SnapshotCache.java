@@ -0,0 +1,284 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Keeps the last snapshot captured for each window. A snapshot is served
+ * again as long as the window hasn't been laid out, drawn or scrolled since
+ * it was captured, and it isn't older than the staleness allowed by the
+ * request. Serving a cached snapshot doesn't touch the UI thread at all.
+ * The last snapshot is kept even once it's invalid, for the commands that
+ * only look at the latest known state of a window.
+ *
+ * Windows are weakly referenced, like in the {@link WindowRegistry}.
+ */
+final class SnapshotCache {
+    private final WeakHashMap<View, Entry> mEntries = new WeakHashMap<View, Entry>();
+
+    /**
+     * Returns the observer of a window, starting to observe it if needed.
+     *
+     * @param window The root view of the window.
+     */
+    WindowObserver observe(View window) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(window);
+            if (entry == null) {
+                entry = new Entry(new WindowObserver(window));
+                mEntries.put(window, entry);
+                entry.observer.attach();
+            }
+            return entry.observer;
+        }
+    }
+
+    /**
+     * Returns the cached snapshot of a window, if it's still valid.
+     *
+     * @param window The root view of the window.
+     * @param captureKey The capture key of the request.
+     * @param maxAge The maximum age of the snapshot, in milliseconds.
+     * @return The snapshot, or null if there is no valid snapshot.
+     */
+    Snapshot get(View window, String captureKey, long maxAge) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(window);
+            if (entry == null || entry.snapshot == null || !entry.captureKey.equals(captureKey)) {
+                return null;
+            }
+
+            final WindowObserver observer = entry.observer;
+            if (!observer.isAttached() || observer.getGeneration() != entry.generation) {
+                return null;
+            }
+
+            if (SystemClock.uptimeMillis() - entry.capturedAt > maxAge) {
+                return null;
+            }
+
+            return entry.snapshot;
+        }
+    }
+
+    /**
+     * Returns the last snapshot of a window, even if it's no longer valid.
+     *
+     * @param window The root view of the window.
+     * @return The snapshot, or null if the window hasn't been captured.
+     */
+    Snapshot getLatest(View window) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(window);
+            return entry != null ? entry.snapshot : null;
+        }
+    }
+
+    /**
+     * Returns true if a snapshot is the last one of a window, and the window
+     * hasn't changed since it was captured.
+     */
+    boolean isValid(View window, Snapshot snapshot) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(window);
+            if (entry == null || entry.snapshot != snapshot) {
+                return false;
+            }
+
+            final WindowObserver observer = entry.observer;
+            return observer.isAttached() && observer.getGeneration() == entry.generation;
+        }
+    }
+
+    /**
+     * Caches a complete snapshot. A snapshot of a window that changed while
+     * being captured is kept as the latest one, but is never valid.
+     *
+     * @param window The root view of the window.
+     * @param captureKey The capture key of the request.
+     * @param generation The generation of the window when the capture started.
+     * @param capturedAt The time the capture started, in uptime milliseconds.
+     * @param snapshot The snapshot.
+     */
+    void put(View window, String captureKey, int generation, long capturedAt, Snapshot snapshot) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(window);
+            if (entry == null) {
+                // The window was removed while being captured.
+                return;
+            }
+
+            entry.captureKey = captureKey;
+            entry.generation = generation;
+            entry.capturedAt = capturedAt;
+            entry.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Stops observing a window, and drops its snapshot.
+     */
+    void remove(View window) {
+        final Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.remove(window);
+        }
+
+        if (entry != null) {
+            entry.observer.detach();
+        }
+    }
+
+    /**
+     * Drops all snapshots, but keeps observing the windows.
+     */
+    void trim() {
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                entry.snapshot = null;
+            }
+        }
+    }
+
+    /**
+     * Stops observing all windows, and drops all snapshots.
+     */
+    void clear() {
+        final Entry[] entries;
+        synchronized (mEntries) {
+            entries = mEntries.values().toArray(new Entry[mEntries.size()]);
+            mEntries.clear();
+        }
+
+        for (Entry entry : entries) {
+            entry.observer.detach();
+        }
+    }
+
+    private static final class Entry {
+        final WindowObserver observer;
+
+        Snapshot snapshot;
+        String captureKey;
+        int generation;
+        long capturedAt;
+
+        Entry(WindowObserver observer) {
+            this.observer = observer;
+        }
+    }
+
+    /**
+     * Observes the layout, draw and scroll events of a window. Each event
+     * bumps the generation of the window, which invalidates its snapshot.
+     */
+    static final class WindowObserver implements ViewTreeObserver.OnGlobalLayoutListener,
+            ViewTreeObserver.OnPreDrawListener, ViewTreeObserver.OnScrollChangedListener {
+        private final WeakReference<View> mWindow;
+
+        private volatile int mGeneration;
+        private volatile boolean mAttached;
+
+        // Only accessed on the UI thread.
+        private ViewTreeObserver mObserver;
+        private boolean mIgnoreNextDraw;
+
+        WindowObserver(View window) {
+            mWindow = new WeakReference<View>(window);
+        }
+
+        int getGeneration() {
+            return mGeneration;
+        }
+
+        boolean isAttached() {
+            return mAttached;
+        }
+
+        /**
+         * Ignores the next draw of the window. This must be called on the UI
+         * thread, when the capture itself invalidates the window.
+         */
+        void ignoreNextDraw() {
+            mIgnoreNextDraw = true;
+        }
+
+        @Override
+        public void onGlobalLayout() {
+            mGeneration++;
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            if (mIgnoreNextDraw) {
+                mIgnoreNextDraw = false;
+            } else {
+                mGeneration++;
+            }
+            return true;
+        }
+
+        @Override
+        public void onScrollChanged() {
+            mGeneration++;
+        }
+
+        void attach() {
+            final View window = mWindow.get();
+            final Handler handler = window == null ? null : window.getHandler();
+            if (handler == null) {
+                return;
+            }
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final View window = mWindow.get();
+                    if (window == null) {
+                        return;
+                    }
+
+                    final ViewTreeObserver observer = window.getViewTreeObserver();
+                    observer.addOnGlobalLayoutListener(WindowObserver.this);
+                    observer.addOnPreDrawListener(WindowObserver.this);
+                    observer.addOnScrollChangedListener(WindowObserver.this);
+                    mObserver = observer;
+                    mAttached = true;
+                }
+            });
+        }
+
+        void detach() {
+            final View window = mWindow.get();
+            final Handler handler = window == null ? null : window.getHandler();
+            if (handler == null) {
+                mAttached = false;
+                return;
+            }
+
+            handler.post(new Runnable() {
+                @SuppressWarnings("deprecation")
+                @Override
+                public void run() {
+                    mAttached = false;
+                    final ViewTreeObserver observer = mObserver;
+                    if (observer != null && observer.isAlive()) {
+                        observer.removeGlobalOnLayoutListener(WindowObserver.this);
+                        observer.removeOnPreDrawListener(WindowObserver.this);
+                        observer.removeOnScrollChangedListener(WindowObserver.this);
+                    }
+                    mObserver = null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * An append-only store of printed snapshots on disk, to capture many states
+ * of an application and pull them later without keeping them in memory.
+ *
+ * Each revision is printed once, with the options of the request that stored
+ * it, into its own file. Files are named after the revision and its format,
+ * so that the index of revisions can be rebuilt from the directory. Stored
+ * revisions are sent back as they are, straight from the file to the client.
+ *
+ * The oldest revisions are deleted once the store holds more revisions, or
+ * more bytes, than its retention allows. The newest revision is always kept.
+ */
+final class SnapshotStore {
+    private static final String LOG_TAG = "DroidInspector";
+
+    private static final int DEFAULT_MAX_COUNT = 50;
+    private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private final Context mContext;
+    private final String mName;
+
+    // Resolved on first use, as it touches the disk.
+    private File mDirectory;
+
+    // Sorted by revision. Loaded from the directory on first use.
+    private ArrayList<Revision> mRevisions;
+    private int mNextRevision = 1;
+    private long mBytes;
+
+    private int mMaxCount = DEFAULT_MAX_COUNT;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * @param context The context of the application.
+     * @param name The name of the directory of the store, in the cache
+     *        directory of the application. It's created if needed.
+     */
+    SnapshotStore(Context context, String name) {
+        mContext = context;
+        mName = name;
+    }
+
+    /**
+     * Sets how many revisions, and how many bytes, the store keeps.
+     */
+    synchronized void setRetention(int maxCount, long maxBytes) {
+        mMaxCount = Math.max(1, maxCount);
+        mMaxBytes = Math.max(0, maxBytes);
+        if (mRevisions != null) {
+            trim();
+        }
+    }
+
+    /**
+     * Prints a snapshot into a new revision. This waits for the capture
+     * to complete.
+     *
+     * @param snapshot The snapshot to store.
+     * @param options The options of the request, for the format of the revision.
+     * @return The new revision.
+     */
+    Revision add(Snapshot snapshot, RequestOptions options) throws IOException, InterruptedException {
+        final Revision revision;
+        synchronized (this) {
+            load();
+            revision = new Revision(mNextRevision++, options.isJson(), options.getCompression());
+        }
+
+        final File temp = new File(mDirectory, revision.getFileName() + SUFFIX_TEMP);
+        final ResponseWriter out = ResponseWriter.open(new FileOutputStream(temp), options);
+        try {
+            if (options.isJson()) {
+                JsonPrinter.printHierarchy(out, options.getQuote(), snapshot);
+            } else {
+                XMLPrinter.printHierarchy(out, snapshot);
+            }
+        } finally {
+            out.close();
+        }
+
+        final File file = new File(mDirectory, revision.getFileName());
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not store revision " + revision.revision);
+        }
+
+        revision.time = file.lastModified();
+        revision.bytes = file.length();
+
+        synchronized (this) {
+            mRevisions.add(revision);
+            mBytes += revision.bytes;
+            trim();
+        }
+
+        return revision;
+    }
+
+    /**
+     * Returns the stored revisions, oldest first.
+     */
+    synchronized List<Revision> getRevisions() {
+        load();
+        return new ArrayList<Revision>(mRevisions);
+    }
+
+    /**
+     * Returns a stored revision.
+     *
+     * @return The revision, or null if it isn't stored.
+     */
+    synchronized Revision get(int revision) {
+        load();
+        for (Revision stored : mRevisions) {
+            if (stored.revision == revision) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a stored revision to a channel, as it was printed.
+     *
+     * @return False if the revision was deleted meanwhile.
+     */
+    boolean transferTo(Revision revision, WritableByteChannel target) throws IOException {
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(new File(mDirectory, revision.getFileName()));
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            for (long position = 0; position < size;) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Builds the index of revisions from the directory, the first time.
+     */
+    private void load() {
+        if (mRevisions != null) {
+            return;
+        }
+
+        mRevisions = new ArrayList<Revision>();
+        mDirectory = new File(mContext.getCacheDir(), mName);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Could not create the snapshot store: " + mDirectory);
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final Revision revision = Revision.parse(file.getName());
+            if (revision == null) {
+                // Left over by an interrupted store.
+                file.delete();
+                continue;
+            }
+
+            revision.time = file.lastModified();
+            revision.bytes = file.length();
+            mRevisions.add(revision);
+            mBytes += revision.bytes;
+            mNextRevision = Math.max(mNextRevision, revision.revision + 1);
+        }
+
+        Collections.sort(mRevisions, new Comparator<Revision>() {
+            @Override
+            public int compare(Revision first, Revision second) {
+                return first.revision < second.revision ? -1 : (first.revision == second.revision ? 0 : 1);
+            }
+        });
+
+        trim();
+    }
+
+    /**
+     * Deletes the oldest revisions until the store is within its retention.
+     */
+    private void trim() {
+        while (mRevisions.size() > 1 && (mRevisions.size() > mMaxCount || mBytes > mMaxBytes)) {
+            final Revision oldest = mRevisions.remove(0);
+            mBytes -= oldest.bytes;
+            new File(mDirectory, oldest.getFileName()).delete();
+        }
+    }
+
+    /**
+     * A stored revision. Its file is named "<revision>.<json|xml>", with
+     * a ".z" or ".gz" extension when it's compressed.
+     */
+    static final class Revision {
+        private static final String FORMAT_JSON = "json";
+        private static final String FORMAT_XML = "xml";
+        private static final String EXTENSION_DEFLATE = ".z";
+        private static final String EXTENSION_GZIP = ".gz";
+
+        final int revision;
+        final boolean isJson;
+        final int compression;
+
+        // Wall clock time it was stored at, and its size on disk.
+        long time;
+        long bytes;
+
+        Revision(int revision, boolean isJson, int compression) {
+            this.revision = revision;
+            this.isJson = isJson;
+            this.compression = compression;
+        }
+
+        String getFileName() {
+            final StringBuilder name = new StringBuilder(16);
+            name.append(revision).append('.').append(isJson ? FORMAT_JSON : FORMAT_XML);
+            if (compression == RequestOptions.COMPRESSION_DEFLATE) {
+                name.append(EXTENSION_DEFLATE);
+            } else if (compression == RequestOptions.COMPRESSION_GZIP) {
+                name.append(EXTENSION_GZIP);
+            }
+            return name.toString();
+        }
+
+        /**
+         * Parses the name of the file of a revision.
+         *
+         * @return The revision, or null if the name isn't one of a revision.
+         */
+        static Revision parse(String name) {
+            int compression = RequestOptions.COMPRESSION_NONE;
+            if (name.endsWith(EXTENSION_DEFLATE)) {
+                compression = RequestOptions.COMPRESSION_DEFLATE;
+                name = name.substring(0, name.length() - EXTENSION_DEFLATE.length());
+            } else if (name.endsWith(EXTENSION_GZIP)) {
+                compression = RequestOptions.COMPRESSION_GZIP;
+                name = name.substring(0, name.length() - EXTENSION_GZIP.length());
+            }
+
+            final int index = name.indexOf('.');
+            if (index == -1) {
+                return null;
+            }
+
+            final String format = name.substring(index + 1);
+            if (!FORMAT_JSON.equals(format) && !FORMAT_XML.equals(format)) {
+                return null;
+            }
+
+            try {
+                return new Revision(Integer.parseInt(name.substring(0, index)),
+                        FORMAT_JSON.equals(format), compression);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String getCompressionName() {
+            switch (compression) {
+                case RequestOptions.COMPRESSION_DEFLATE:
+                    return "deflate";
+                case RequestOptions.COMPRESSION_GZIP:
+                    return "gzip";
+                default:
+                    return "none";
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import android.view.View;
+
+/**
+ * A grid over the absolute bounds of the nodes of a snapshot, to find the
+ * node at a point without walking the hierarchy. Absolute bounds account
+ * for the scroll of the parents and the translation of the views.
+ *
+ * Each cell of the grid lists the visible nodes that overlap it, in pre-order.
+ * The node at a point is the last one of its cell that contains the point,
+ * since nodes later in pre-order are drawn on top.
+ */
+final class SpatialIndex {
+    private static final int CELL_SIZE = 64;
+    private static final int MAX_CELLS_PER_SIDE = 256;
+
+    private final int[] mParents;
+    private final int[] mLeft;
+    private final int[] mTop;
+    private final int[] mRight;
+    private final int[] mBottom;
+    private final boolean[] mVisible;
+
+    private final int mOriginX;
+    private final int mOriginY;
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mRows;
+    private final int[][] mCells;
+
+    /**
+     * Builds the index of a snapshot, waiting for it to be complete.
+     */
+    SpatialIndex(Snapshot snapshot) throws InterruptedException {
+        final int count = snapshot.getNodeCount();
+
+        mParents = new int[count];
+        mLeft = new int[count];
+        mTop = new int[count];
+        mRight = new int[count];
+        mBottom = new int[count];
+        final boolean[] visible = mVisible = new boolean[count];
+
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        final int[] bounds = new int[4];
+        final float[] transforms = new float[6];
+        for (int i = 0; i < count; i++) {
+            final int parent = snapshot.getParent(i);
+            mParents[i] = parent;
+
+            snapshot.getBounds(i, bounds);
+            float left = bounds[0];
+            float top = bounds[1];
+            if (snapshot.getTransforms(i, transforms)) {
+                left += transforms[4];
+                top += transforms[5];
+            }
+
+            if (parent != -1) {
+                left += mLeft[parent] - snapshot.getScrollX(parent);
+                top += mTop[parent] - snapshot.getScrollY(parent);
+            }
+
+            mLeft[i] = Math.round(left);
+            mTop[i] = Math.round(top);
+            mRight[i] = mLeft[i] + bounds[2];
+            mBottom[i] = mTop[i] + bounds[3];
+            visible[i] = snapshot.getVisibility(i) == View.VISIBLE && (parent == -1 || visible[parent]);
+
+            if (visible[i] && bounds[2] > 0 && bounds[3] > 0) {
+                minX = Math.min(minX, mLeft[i]);
+                minY = Math.min(minY, mTop[i]);
+                maxX = Math.max(maxX, mRight[i]);
+                maxY = Math.max(maxY, mBottom[i]);
+            }
+        }
+
+        if (minX > maxX) {
+            // Nothing to pick.
+            mOriginX = mOriginY = 0;
+            mCellSize = CELL_SIZE;
+            mColumns = mRows = 0;
+            mCells = new int[0][];
+            return;
+        }
+
+        final int extent = Math.max(maxX - minX, maxY - minY);
+        mCellSize = Math.max(CELL_SIZE, (extent + MAX_CELLS_PER_SIDE - 1) / MAX_CELLS_PER_SIDE);
+        mOriginX = minX;
+        mOriginY = minY;
+        mColumns = (maxX - minX) / mCellSize + 1;
+        mRows = (maxY - minY) / mCellSize + 1;
+
+        // Count the nodes of each cell first, then fill the cells.
+        final int[] sizes = new int[mColumns * mRows];
+        addToCells(count, visible, sizes, null);
+
+        mCells = new int[sizes.length][];
+        for (int cell = 0; cell < sizes.length; cell++) {
+            mCells[cell] = new int[sizes[cell]];
+            sizes[cell] = 0;
+        }
+        addToCells(count, visible, sizes, mCells);
+    }
+
+    /**
+     * Counts the visible nodes overlapping each cell into sizes, and adds
+     * them to the cells if given.
+     */
+    private void addToCells(int count, boolean[] visible, int[] sizes, int[][] cells) {
+        for (int i = 0; i < count; i++) {
+            if (!visible[i] || mRight[i] <= mLeft[i] || mBottom[i] <= mTop[i]) {
+                continue;
+            }
+
+            final int firstColumn = (mLeft[i] - mOriginX) / mCellSize;
+            final int lastColumn = (mRight[i] - 1 - mOriginX) / mCellSize;
+            final int firstRow = (mTop[i] - mOriginY) / mCellSize;
+            final int lastRow = (mBottom[i] - 1 - mOriginY) / mCellSize;
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    final int cell = row * mColumns + column;
+                    if (cells != null) {
+                        cells[cell][sizes[cell]] = i;
+                    }
+                    sizes[cell]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the topmost visible node at a point, or -1.
+     *
+     * @param x The horizontal position, in the coordinates of the window.
+     * @param y The vertical position, in the coordinates of the window.
+     */
+    int pick(int x, int y) {
+        if (x < mOriginX || y < mOriginY) {
+            return -1;
+        }
+
+        final int column = (x - mOriginX) / mCellSize;
+        final int row = (y - mOriginY) / mCellSize;
+        if (column >= mColumns || row >= mRows) {
+            return -1;
+        }
+
+        final int[] cell = mCells[row * mColumns + column];
+        for (int i = cell.length - 1; i >= 0; i--) {
+            if (containsInAncestors(cell[i], x, y)) {
+                return cell[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the node and all its ancestors contain the point,
+     * as parents clip their children.
+     */
+    private boolean containsInAncestors(int index, int x, int y) {
+        for (int i = index; i != -1; i = mParents[i]) {
+            if (x < mLeft[i] || x >= mRight[i] || y < mTop[i] || y >= mBottom[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the absolute bounds of a node clipped by its ancestors, if it's
+     * visible.
+     *
+     * @param index The index of the node.
+     * @param bounds Receives the left, top, right and bottom of the node.
+     * @return False if the node or an ancestor isn't visible, or if nothing is
+     *         left of the node once clipped.
+     */
+    boolean getVisibleBounds(int index, int[] bounds) {
+        if (!mVisible[index]) {
+            return false;
+        }
+
+        bounds[0] = mLeft[index];
+        bounds[1] = mTop[index];
+        bounds[2] = mRight[index];
+        bounds[3] = mBottom[index];
+        for (int i = mParents[index]; i != -1; i = mParents[i]) {
+            bounds[0] = Math.max(bounds[0], mLeft[i]);
+            bounds[1] = Math.max(bounds[1], mTop[i]);
+            bounds[2] = Math.min(bounds[2], mRight[i]);
+            bounds[3] = Math.min(bounds[3], mBottom[i]);
+        }
+        return bounds[0] < bounds[2] && bounds[1] < bounds[3];
+    }
+
+    int getLeft(int index) {
+        return mLeft[index];
+    }
+
+    int getTop(int index) {
+        return mTop[index];
+    }
+
+    int getRight(int index) {
+        return mRight[index];
+    }
+
+    int getBottom(int index) {
+        return mBottom[index];
+    }
+
+    /**
+     * Returns true if the absolute bounds of a node intersect a rectangle.
+     */
+    boolean intersects(int index, int left, int top, int right, int bottom) {
+        return mLeft[index] < right && left < mRight[index]
+                && mTop[index] < bottom && top < mBottom[index];
+    }
+
+    /**
+     * Marks the given nodes and all their ancestors.
+     *
+     * @param nodes Indices of the nodes.
+     * @return Whether each node of the snapshot is marked, by index.
+     */
+    boolean[] getAncestry(int[] nodes) {
+        final boolean[] marked = new boolean[mParents.length];
+        for (int node : nodes) {
+            for (int i = node; i != -1 && !marked[i]; i = mParents[i]) {
+                marked[i] = true;
+            }
+        }
+        return marked;
+    }
+}
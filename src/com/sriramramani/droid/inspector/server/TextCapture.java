@@ -0,0 +1,158 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.HashMap;
+
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.view.Gravity;
+import android.widget.TextView;
+
+/**
+ * Captures the text of a {@link TextView} as text, instead of rasterizing it.
+ * This only applies to plain text drawn by the framework: text with style
+ * spans, compound drawables, shadows or views that draw on their own are
+ * rasterized as usual.
+ */
+final class TextCapture {
+    // Whether a TextView class overrides onDraw(), only accessed on the UI thread.
+    private static final HashMap<Class<?>, Boolean> sCustomDrawing = new HashMap<Class<?>, Boolean>();
+
+    private TextCapture() {
+        // .xXx.
+    }
+
+    /**
+     * Captures the text of a view. This must be called on the UI thread.
+     *
+     * @param view The view to capture.
+     * @return The text, or null if the view has to be rasterized.
+     */
+    static Snapshot.Text capture(TextView view) {
+        if (hasCustomDrawing(view.getClass())) {
+            return null;
+        }
+
+        final Layout layout = view.getLayout();
+        if (layout == null) {
+            return null;
+        }
+
+        // The displayed text, after transformations like all caps or passwords.
+        final CharSequence text = layout.getText();
+        if (text == null || text.length() == 0) {
+            // The hint is drawn instead.
+            return null;
+        }
+
+        if (text instanceof Spanned && hasStyleSpans((Spanned) text)) {
+            return null;
+        }
+
+        for (Drawable drawable : view.getCompoundDrawables()) {
+            if (drawable != null) {
+                return null;
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= 16 && view.getShadowRadius() > 0) {
+            return null;
+        }
+
+        final Snapshot.Text result = new Snapshot.Text();
+        result.value = text.toString();
+        result.size = view.getTextSize();
+        result.color = view.getCurrentTextColor();
+        result.typeface = getTypefaceName(view.getTypeface());
+        result.x = view.getCompoundPaddingLeft();
+        result.y = view.getExtendedPaddingTop() + getVerticalOffset(view, layout);
+
+        final int count = layout.getLineCount();
+        result.lines = new float[count * Snapshot.Text.LINE_SIZE];
+        for (int i = 0; i < count; i++) {
+            final int offset = i * Snapshot.Text.LINE_SIZE;
+            result.lines[offset] = layout.getLineStart(i);
+            result.lines[offset + 1] = layout.getLineEnd(i);
+            result.lines[offset + 2] = layout.getLineLeft(i);
+            result.lines[offset + 3] = layout.getLineBaseline(i);
+            result.lines[offset + 4] = layout.getLineWidth(i);
+        }
+
+        return result;
+    }
+
+    private static boolean hasCustomDrawing(Class<?> clazz) {
+        Boolean custom = sCustomDrawing.get(clazz);
+        if (custom == null) {
+            custom = Boolean.FALSE;
+            for (Class<?> c = clazz; c != TextView.class; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("onDraw", Canvas.class);
+                    custom = Boolean.TRUE;
+                    break;
+                } catch (NoSuchMethodException e) {
+                }
+            }
+            sCustomDrawing.put(clazz, custom);
+        }
+        return custom;
+    }
+
+    private static boolean hasStyleSpans(Spanned text) {
+        final int length = text.length();
+        return text.getSpans(0, length, CharacterStyle.class).length > 0
+                || text.getSpans(0, length, ParagraphStyle.class).length > 0;
+    }
+
+    /**
+     * Returns the offset of the text within the padding box, for vertical gravities.
+     * This is what TextView uses to draw the text.
+     */
+    private static int getVerticalOffset(TextView view, Layout layout) {
+        final int gravity = view.getGravity() & Gravity.VERTICAL_GRAVITY_MASK;
+        if (gravity == Gravity.TOP) {
+            return 0;
+        }
+
+        final int boxHeight = view.getHeight() - view.getExtendedPaddingTop() - view.getExtendedPaddingBottom();
+        final int textHeight = layout.getHeight();
+        if (textHeight >= boxHeight) {
+            return 0;
+        }
+
+        return (gravity == Gravity.BOTTOM) ? boxHeight - textHeight : (boxHeight - textHeight) >> 1;
+    }
+
+    private static String getTypefaceName(Typeface typeface) {
+        if (typeface == null) {
+            return "sans-serif normal";
+        }
+
+        String family = "sans-serif";
+        if (typeface == Typeface.MONOSPACE) {
+            family = "monospace";
+        } else if (typeface == Typeface.SERIF) {
+            family = "serif";
+        }
+
+        switch (typeface.getStyle()) {
+            case Typeface.BOLD:
+                return family + " bold";
+            case Typeface.ITALIC:
+                return family + " italic";
+            case Typeface.BOLD_ITALIC:
+                return family + " bold-italic";
+            default:
+                return family + " normal";
+        }
+    }
+}
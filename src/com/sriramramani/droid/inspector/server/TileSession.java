@@ -0,0 +1,70 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Remembers the tiles of the layers sent to a client, so that successive
+ * captures only send the tiles that changed. The client keeps the tiles it
+ * was sent for each layer, keyed by the uid of the node and the layer, and
+ * draws the tiles that were not sent from its cache.
+ *
+ * Tiles are remembered as soon as they are written. A client that didn't
+ * read a whole response should start a new session.
+ */
+final class TileSession {
+    // Layers remembered at most. The session starts over past that.
+    private static final int MAX_LAYERS = 4096;
+
+    private final HashMap<Long, Layer> mLayers = new HashMap<Long, Layer>();
+
+    /**
+     * Returns the tiles of a layer that the client doesn't have, and
+     * remembers that it has all of them from now on.
+     *
+     * @param blob The tiled pixels of the layer.
+     * @return The tiles to send, by index.
+     */
+    synchronized boolean[] update(Snapshot.Blob blob) {
+        final boolean[] changed = new boolean[blob.tileHashes.length];
+        final Long key = getKey(blob.uid, blob.layer);
+        final Layer layer = mLayers.get(key);
+        if (layer == null || layer.width != blob.width || layer.height != blob.height) {
+            Arrays.fill(changed, true);
+        } else {
+            for (int i = 0; i < changed.length; i++) {
+                changed[i] = layer.tileHashes[i] != blob.tileHashes[i];
+            }
+        }
+
+        if (layer == null && mLayers.size() >= MAX_LAYERS) {
+            mLayers.clear();
+        }
+        mLayers.put(key, new Layer(blob.width, blob.height, blob.tileHashes));
+        return changed;
+    }
+
+    /**
+     * Returns the key of a layer. Hash codes would not do, as views may
+     * override them and different views may share one.
+     */
+    private static Long getKey(int uid, int layer) {
+        return Long.valueOf(((long) uid << 2) | layer);
+    }
+
+    private static final class Layer {
+        final int width;
+        final int height;
+        final long[] tileHashes;
+
+        Layer(int width, int height, long[] tileHashes) {
+            this.width = width;
+            this.height = height;
+            this.tileHashes = tileHashes;
+        }
+    }
+}
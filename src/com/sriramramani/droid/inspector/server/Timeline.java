@@ -0,0 +1,233 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A ring buffer of the recent revisions of a hierarchy, with the properties
+ * of the nodes only, under a fixed memory cap.
+ *
+ * The oldest revision is kept whole. Every other revision is stored as a
+ * delta against the previous one: runs of nodes copied from the previous
+ * revision, and the nodes that changed. Nodes are matched across revisions
+ * by the id of their view, see {@link ViewIds}. Once the buffer is full, the oldest
+ * revision is dropped and the next one is made whole.
+ */
+final class Timeline {
+    private static final int MAX_REVISIONS = 512;
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    // Rough sizes of the entries, to stay within the memory cap.
+    private static final int REVISION_SIZE = 48;
+    private static final int NODE_SIZE = 160;
+
+    private final Revision[] mRevisions = new Revision[MAX_REVISIONS];
+
+    // Position of the oldest revision, and number of revisions.
+    private int mFirst;
+    private int mSize;
+    private long mBytes;
+    private int mNextRevision = 1;
+
+    // The newest revision, whole, to compute the delta of the next one.
+    private Snapshot.Node[] mLatest;
+
+    /**
+     * Adds a revision, unless it has the same nodes as the newest one.
+     *
+     * @param time The time of the revision, in milliseconds.
+     * @param nodes The nodes of the revision, in pre-order.
+     * @return The number of the revision, or 0 if it wasn't added.
+     */
+    synchronized int add(long time, Snapshot.Node[] nodes) {
+        final Revision revision = new Revision(mNextRevision, time, nodes.length);
+        if (mSize == 0) {
+            revision.nodes = nodes;
+        } else if (!revision.diff(mLatest, nodes)) {
+            return 0;
+        }
+
+        if (mSize == MAX_REVISIONS) {
+            dropOldest();
+        }
+
+        mRevisions[(mFirst + mSize) % MAX_REVISIONS] = revision;
+        mSize++;
+        mBytes += revision.getSize();
+        mLatest = nodes;
+        mNextRevision++;
+
+        while (mSize > 1 && mBytes > MAX_BYTES) {
+            dropOldest();
+        }
+
+        return revision.revision;
+    }
+
+    private void dropOldest() {
+        final Revision oldest = mRevisions[mFirst];
+        mRevisions[mFirst] = null;
+        mFirst = (mFirst + 1) % MAX_REVISIONS;
+        mSize--;
+        mBytes -= oldest.getSize();
+
+        if (mSize > 0) {
+            final Revision next = mRevisions[mFirst];
+            mBytes -= next.getSize();
+            next.nodes = next.apply(oldest.nodes);
+            next.ops = null;
+            next.changed = null;
+            mBytes += next.getSize();
+        }
+    }
+
+    /**
+     * Returns the retained revisions, oldest first, as pairs of revision
+     * number and time.
+     */
+    synchronized List<long[]> getRevisions() {
+        final ArrayList<long[]> revisions = new ArrayList<long[]>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            final Revision revision = mRevisions[(mFirst + i) % MAX_REVISIONS];
+            revisions.add(new long[] { revision.revision, revision.time });
+        }
+        return revisions;
+    }
+
+    /**
+     * Reconstructs a retained revision.
+     *
+     * @param number The number of the revision.
+     * @return The nodes of the revision, or null if it isn't retained.
+     */
+    synchronized Snapshot.Node[] get(int number) {
+        if (mSize == 0) {
+            return null;
+        }
+
+        final int first = mRevisions[mFirst].revision;
+        if (number < first || number >= first + mSize) {
+            return null;
+        }
+
+        Snapshot.Node[] nodes = mRevisions[mFirst].nodes;
+        for (int i = 1; i <= number - first; i++) {
+            nodes = mRevisions[(mFirst + i) % MAX_REVISIONS].apply(nodes);
+        }
+        return nodes;
+    }
+
+    private static final class Revision {
+        // Marks the runs of changed nodes in the ops.
+        private static final int CHANGED = -1;
+
+        final int revision;
+        final long time;
+        final int nodeCount;
+
+        // Either all the nodes, or a delta against the previous revision.
+        Snapshot.Node[] nodes;
+
+        // The delta, as pairs of: the position of a run of nodes in the previous
+        // revision, or CHANGED for the next changed nodes, and the length of the run.
+        int[] ops;
+        Snapshot.Node[] changed;
+
+        Revision(int revision, long time, int nodeCount) {
+            this.revision = revision;
+            this.time = time;
+            this.nodeCount = nodeCount;
+        }
+
+        /**
+         * Computes the delta of the nodes against the previous revision. The
+         * nodes that didn't change are replaced by the previous ones, so that
+         * revisions share them.
+         *
+         * @return False if nothing changed.
+         */
+        boolean diff(Snapshot.Node[] previous, Snapshot.Node[] nodes) {
+            final HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>(previous.length * 2);
+            for (int i = 0; i < previous.length; i++) {
+                positions.put(previous[i].uid, i);
+            }
+
+            int[] ops = new int[16];
+            int size = 0;
+            final ArrayList<Snapshot.Node> changed = new ArrayList<Snapshot.Node>();
+
+            for (int i = 0; i < nodes.length; i++) {
+                final Snapshot.Node node = nodes[i];
+                final Integer position = positions.get(node.uid);
+                int start = CHANGED;
+                if (position != null && previous[position].hasSameProperties(node)) {
+                    start = position;
+                    nodes[i] = previous[position];
+                } else {
+                    changed.add(node);
+                }
+
+                // Extend the last run if possible.
+                if (size > 0 && (start == CHANGED ? ops[size - 2] == CHANGED
+                        : ops[size - 2] != CHANGED && ops[size - 2] + ops[size - 1] == start)) {
+                    ops[size - 1]++;
+                    continue;
+                }
+
+                if (size == ops.length) {
+                    final int[] grown = new int[size * 2];
+                    System.arraycopy(ops, 0, grown, 0, size);
+                    ops = grown;
+                }
+                ops[size++] = start;
+                ops[size++] = 1;
+            }
+
+            if (changed.isEmpty() && nodes.length == previous.length
+                    && (size == 0 || (size == 2 && ops[0] == 0))) {
+                return false;
+            }
+
+            this.ops = new int[size];
+            System.arraycopy(ops, 0, this.ops, 0, size);
+            this.changed = changed.toArray(new Snapshot.Node[changed.size()]);
+            return true;
+        }
+
+        /**
+         * Reconstructs the nodes of this revision from the previous one.
+         */
+        Snapshot.Node[] apply(Snapshot.Node[] previous) {
+            if (nodes != null) {
+                return nodes;
+            }
+
+            final Snapshot.Node[] result = new Snapshot.Node[nodeCount];
+            int position = 0;
+            int next = 0;
+            for (int i = 0; i < ops.length; i += 2) {
+                final int length = ops[i + 1];
+                if (ops[i] == CHANGED) {
+                    System.arraycopy(changed, next, result, position, length);
+                    next += length;
+                } else {
+                    System.arraycopy(previous, ops[i], result, position, length);
+                }
+                position += length;
+            }
+            return result;
+        }
+
+        long getSize() {
+            if (nodes != null) {
+                return REVISION_SIZE + (long) nodes.length * NODE_SIZE;
+            }
+            return REVISION_SIZE + ops.length * 4 + (long) changed.length * NODE_SIZE;
+        }
+    }
+}
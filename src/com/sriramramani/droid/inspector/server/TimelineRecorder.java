@@ -0,0 +1,177 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Records the revisions of a window into a {@link Timeline} as it changes.
+ * Layout, scroll and draw events of the window schedule a recording of the
+ * properties of its hierarchy. Draws catch the changes of visibility, alpha,
+ * translation and drawables, which don't cause a layout. Recordings walk the whole hierarchy on the UI
+ * thread, so they are rate limited, and run as bulk tasks of the
+ * {@link UiScheduler}, behind the messages of the application and the tasks
+ * of interactive captures.
+ */
+final class TimelineRecorder implements ViewTreeObserver.OnGlobalLayoutListener,
+        ViewTreeObserver.OnScrollChangedListener, ViewTreeObserver.OnPreDrawListener, Runnable {
+    // Minimum time between two recordings, in milliseconds.
+    private static final long MIN_INTERVAL = 100;
+
+    private final WeakReference<View> mWindow;
+    private final Timeline mTimeline;
+    private final PropertyRegistry mProperties;
+    private final ViewIds mIds;
+
+    // Run as a bulk task of the scheduler.
+    private final Runnable mRecording = new Runnable() {
+        @Override
+        public void run() {
+            record();
+        }
+    };
+
+    // Only accessed on the UI thread.
+    private ViewTreeObserver mObserver;
+    private Handler mHandler;
+    private UiScheduler.Client mClient;
+    private boolean mScheduled;
+    private long mLastRecording;
+
+    TimelineRecorder(View window, Timeline timeline, PropertyRegistry properties, ViewIds ids) {
+        mWindow = new WeakReference<View>(window);
+        mTimeline = timeline;
+        mProperties = properties;
+        mIds = ids;
+    }
+
+    boolean isRecording(View window) {
+        return mWindow.get() == window;
+    }
+
+    /**
+     * Starts listening to the window, from the UI thread.
+     */
+    void start() {
+        final View window = mWindow.get();
+        if (window == null || window.getHandler() == null) {
+            return;
+        }
+
+        window.post(new Runnable() {
+            @Override
+            public void run() {
+                final View window = mWindow.get();
+                if (window == null || mObserver != null) {
+                    return;
+                }
+
+                mHandler = window.getHandler();
+                mClient = UiScheduler.get(mHandler).newClient(UiScheduler.PRIORITY_BULK);
+                mObserver = window.getViewTreeObserver();
+                mObserver.addOnGlobalLayoutListener(TimelineRecorder.this);
+                mObserver.addOnScrollChangedListener(TimelineRecorder.this);
+                mObserver.addOnPreDrawListener(TimelineRecorder.this);
+
+                // Record the current state.
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Stops listening to the window, from the UI thread.
+     */
+    void stop() {
+        final View window = mWindow.get();
+        if (window == null) {
+            return;
+        }
+
+        window.post(new Runnable() {
+            @SuppressWarnings("deprecation")
+            @Override
+            public void run() {
+                if (mObserver == null) {
+                    return;
+                }
+
+                if (mObserver.isAlive()) {
+                    mObserver.removeGlobalOnLayoutListener(TimelineRecorder.this);
+                    mObserver.removeOnScrollChangedListener(TimelineRecorder.this);
+                    mObserver.removeOnPreDrawListener(TimelineRecorder.this);
+                }
+                mObserver = null;
+                mHandler.removeCallbacks(TimelineRecorder.this);
+                mClient.cancel();
+                mClient = null;
+                mScheduled = false;
+            }
+        });
+    }
+
+    @Override
+    public void onGlobalLayout() {
+        schedule();
+    }
+
+    @Override
+    public void onScrollChanged() {
+        schedule();
+    }
+
+    /**
+     * Called for every frame the window draws. Frames drawn while a
+     * recording is scheduled are covered by it.
+     */
+    @Override
+    public boolean onPreDraw() {
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (mScheduled || mObserver == null) {
+            return;
+        }
+
+        mScheduled = true;
+        final long delay = mLastRecording + MIN_INTERVAL - SystemClock.uptimeMillis();
+        mHandler.postDelayed(this, Math.max(0, delay));
+    }
+
+    /**
+     * Queues a recording once the interval has passed. Events until it runs
+     * are covered by it.
+     */
+    @Override
+    public void run() {
+        if (mClient != null) {
+            mClient.post(mRecording);
+        }
+    }
+
+    /**
+     * Records the current revision of the window.
+     */
+    private void record() {
+        mScheduled = false;
+        final View window = mWindow.get();
+        if (window == null || mObserver == null) {
+            return;
+        }
+
+        mLastRecording = SystemClock.uptimeMillis();
+        final ArrayList<Snapshot.Node> nodes = new ArrayList<Snapshot.Node>();
+        ViewCapture.captureProperties(window, 0, nodes, mProperties, mIds);
+        mTimeline.add(System.currentTimeMillis(), nodes.toArray(new Snapshot.Node[nodes.size()]));
+    }
+}
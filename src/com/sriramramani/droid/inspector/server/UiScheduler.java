@@ -0,0 +1,226 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Schedules the work of the captures on a UI thread. Only a few tasks are
+ * posted to the looper at once, so that the messages of the application are
+ * never stuck behind a capture. The other tasks wait here.
+ *
+ * Each capture is a client of the scheduler. Tasks of interactive clients are
+ * posted before the tasks of bulk clients, and clients of the same priority
+ * take turns, one task at a time. Cancelling a client removes its tasks from
+ * the queue of the looper, and cancels them if they are futures.
+ */
+final class UiScheduler {
+    static final int PRIORITY_INTERACTIVE = 0;
+    static final int PRIORITY_BULK = 1;
+
+    // Maximum number of tasks in the queue of the looper at once.
+    private static final int MAX_POSTED = 3;
+
+    private static final WeakHashMap<Looper, UiScheduler> sSchedulers = new WeakHashMap<Looper, UiScheduler>();
+
+    private final Target mTarget;
+
+    // Clients with waiting tasks, by priority, in turn order.
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final LinkedList<Client>[] mClients = new LinkedList[] {
+        new LinkedList<Client>(), new LinkedList<Client>()
+    };
+
+    private int mPosted;
+
+    UiScheduler(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * Returns the scheduler of the thread of a handler.
+     */
+    static UiScheduler get(Handler handler) {
+        synchronized (sSchedulers) {
+            final Looper looper = handler.getLooper();
+            UiScheduler scheduler = sSchedulers.get(looper);
+            if (scheduler == null) {
+                scheduler = new UiScheduler(new HandlerTarget(new Handler(looper)));
+                sSchedulers.put(looper, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Creates a client, for the tasks of a capture.
+     *
+     * @param priority Either {@link #PRIORITY_INTERACTIVE} or {@link #PRIORITY_BULK}.
+     */
+    Client newClient(int priority) {
+        return new Client(priority);
+    }
+
+    private synchronized void schedule() {
+        while (mPosted < MAX_POSTED) {
+            final Client client = next();
+            if (client == null) {
+                return;
+            }
+
+            final Runnable task = client.mTasks.removeFirst();
+            if (!client.mTasks.isEmpty()) {
+                // Back of the line.
+                mClients[client.mPriority].addLast(client);
+            }
+
+            final PostedTask posted = new PostedTask(client, task);
+            client.mPostedTasks.add(posted);
+            mPosted++;
+            mTarget.post(posted);
+        }
+    }
+
+    private static void cancelTask(Runnable task) {
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    private Client next() {
+        for (LinkedList<Client> clients : mClients) {
+            if (!clients.isEmpty()) {
+                return clients.removeFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Where the tasks are posted to: the looper of the UI thread, or a plain
+     * queue in tests.
+     */
+    interface Target {
+        void post(Runnable task);
+
+        void remove(Runnable task);
+    }
+
+    private static final class HandlerTarget implements Target {
+        private final Handler mHandler;
+
+        HandlerTarget(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void post(Runnable task) {
+            mHandler.post(task);
+        }
+
+        @Override
+        public void remove(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    }
+
+    /**
+     * A task posted to the looper.
+     */
+    private final class PostedTask implements Runnable {
+        private final Client mClient;
+        private final Runnable mTask;
+
+        PostedTask(Client client, Runnable task) {
+            mClient = client;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (UiScheduler.this) {
+                if (!mClient.mPostedTasks.remove(this)) {
+                    // Cancelled meanwhile.
+                    return;
+                }
+            }
+
+            try {
+                mTask.run();
+            } finally {
+                synchronized (UiScheduler.this) {
+                    mPosted--;
+                    schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * The tasks of a capture, run in order.
+     */
+    final class Client {
+        private final int mPriority;
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        private final LinkedList<PostedTask> mPostedTasks = new LinkedList<PostedTask>();
+        private boolean mCancelled;
+
+        private Client(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Runs a task on the UI thread, once it's the turn of this client.
+         * The task is cancelled right away if the client is.
+         */
+        void post(Runnable task) {
+            synchronized (UiScheduler.this) {
+                if (mCancelled) {
+                    cancelTask(task);
+                    return;
+                }
+
+                mTasks.addLast(task);
+                if (mTasks.size() == 1) {
+                    mClients[mPriority].addLast(this);
+                }
+                schedule();
+            }
+        }
+
+        /**
+         * Cancels the tasks of the client that haven't run yet, and removes
+         * them from the queue of the looper.
+         */
+        void cancel() {
+            synchronized (UiScheduler.this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+
+                mClients[mPriority].remove(this);
+                for (Runnable task : mTasks) {
+                    cancelTask(task);
+                }
+                mTasks.clear();
+
+                for (PostedTask posted : mPostedTasks) {
+                    mTarget.remove(posted);
+                    cancelTask(posted.mTask);
+                    mPosted--;
+                }
+                mPostedTasks.clear();
+
+                schedule();
+            }
+        }
+    }
+}
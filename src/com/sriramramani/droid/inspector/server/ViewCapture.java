@@ -0,0 +1,958 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
+import android.view.ViewGroup.MarginLayoutParams;
+import android.widget.TextView;
+
+/**
+ * Captures a view hierarchy into a {@link Snapshot}.
+ */
+final class ViewCapture {
+    private static final String LOG_TAG = "DroidInspector";
+
+    // PhoneWindow class
+    private static final String PHONE_WINDOW = "PhoneWindow";
+
+    // Identifier for base64 encoding.
+    static final String BASE64_IDENTIFIER = "data:image/png;base64,";
+
+    // Identifier for the layers sent as blobs after the document, followed by their id.
+    static final String BLOB_IDENTIFIER = "blob:";
+
+    // Identifier for base64 encoded, serialized pictures.
+    static final String PICTURE_IDENTIFIER = "data:image/x-skia-picture;base64,";
+
+    // Size of the tiles of the layers, in pixels, when the request is part of a session.
+    private static final int TILE_SIZE = 64;
+
+    // Cleared if pictures can't be serialized on this platform.
+    private static volatile boolean sCanSerializePictures = true;
+
+    // Size of a serialized empty picture, which doesn't depend on its bounds.
+    // Computed on first use, as serializing pictures may not be supported.
+    private static volatile int sEmptyPictureSize = -1;
+
+    private static final View[] NO_CHILDREN = new View[0];
+
+    private final View mRoot;
+    private final RequestOptions mOptions;
+    private final SnapshotCache.WindowObserver mObserver;
+    private final MemoryBudget.Allowance mAllowance;
+    private final PropertyRegistry mProperties;
+    private final ViewIds mIds;
+    private final Cancellation mCancellation;
+
+    // Ids of the bitmaps drawn by the views, only accessed on the UI thread.
+    private final IdentityHashMap<Bitmap, Integer> mBitmapIds = new IdentityHashMap<Bitmap, Integer>();
+
+    // The snapshot being captured, which the blobs are added to.
+    private Snapshot mSnapshot;
+
+    // Only accessed on the capturing thread.
+    private UiScheduler.Client mClient;
+
+    // Reused for the pixels of each layer, only accessed on the UI thread.
+    private ByteBuffer mPixels;
+    private ByteBuffer mTile;
+    private BlockCompressor mCompressor;
+
+    // Set once the deadline of the request passed, only accessed on the
+    // capturing thread.
+    private boolean mTimedOut;
+
+    /**
+     * @param root The root view of the window to capture.
+     * @param options The options of the request.
+     * @param observer The observer of the window, told about the draws
+     *                 caused by the capture itself.
+     * @param allowance The memory the capture may use for its layers.
+     * @param properties The extractors of the extra properties of views.
+     * @param ids The ids of the views.
+     * @param cancellation Cancelled when the capture is no longer needed.
+     */
+    ViewCapture(View root, RequestOptions options, SnapshotCache.WindowObserver observer,
+            MemoryBudget.Allowance allowance, PropertyRegistry properties, ViewIds ids,
+            Cancellation cancellation) {
+        mRoot = root;
+        mOptions = options;
+        mObserver = observer;
+        mAllowance = allowance;
+        mProperties = properties;
+        mIds = ids;
+        mCancellation = cancellation;
+    }
+
+    /**
+     * Captures the hierarchy, appending the nodes to the snapshot. The snapshot
+     * is not marked complete by this method.
+     *
+     * If the request has a deadline and the UI thread doesn't get to the
+     * capture in time, the node being captured is added with a timeout marker,
+     * the tasks still waiting for the UI thread are dropped, and the snapshot
+     * is truncated.
+     *
+     * @param snapshot The snapshot to add the captured nodes to.
+     * @throws CancellationException If the capture was cancelled. Its tasks
+     *         that were still waiting for the UI thread are dropped.
+     */
+    void capture(Snapshot snapshot) throws InterruptedException {
+        final Handler handler = mRoot.getHandler();
+        if (handler == null) {
+            Log.w(LOG_TAG, "Window is not attached: " + mRoot);
+            return;
+        }
+
+        mSnapshot = snapshot;
+        final UiScheduler.Client client = getClient(handler);
+        capture(snapshot, client, mRoot, 0);
+
+        if (mTimedOut) {
+            client.cancel();
+            snapshot.truncate();
+        }
+    }
+
+    /**
+     * Captures the layers of a view of the window again, at the level of
+     * detail of the request.
+     *
+     * @param view The view, which was captured in an earlier snapshot.
+     * @param blobs The snapshot to add the blobs of the layers to.
+     * @return The node, with only its uid, its hash code and its layers, or
+     *         null if the window is not attached.
+     * @throws CancellationException If the capture was cancelled.
+     */
+    Snapshot.Node captureLayers(final View view, Snapshot blobs) throws InterruptedException {
+        final Handler handler = mRoot.getHandler();
+        if (handler == null) {
+            Log.w(LOG_TAG, "Window is not attached: " + mRoot);
+            return null;
+        }
+
+        if (mCancellation.poll()) {
+            throw new CancellationException();
+        }
+
+        mSnapshot = blobs;
+        final UiScheduler.Client client = getClient(handler);
+        final Snapshot.Node node = new Snapshot.Node();
+        node.uid = mIds.getId(view);
+
+        final FutureTask<Void> background = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                node.hashCode = view.hashCode();
+                getBackground(view, node);
+                return null;
+            }
+        });
+
+        final FutureTask<Void> content = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                node.content = getContent(view, node);
+                return null;
+            }
+        });
+
+        client.post(background);
+        client.post(content);
+
+        if (!waitFor(background)) {
+            node.timedOutLayers |= Snapshot.Node.LAYER_BACKGROUND;
+        }
+        if (!waitFor(content)) {
+            node.timedOutLayers |= Snapshot.Node.LAYER_CONTENT;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the client of the scheduler for the tasks of this capture,
+     * which is cancelled along with the capture.
+     */
+    private UiScheduler.Client getClient(Handler handler) {
+        if (mClient == null) {
+            final UiScheduler.Client client = UiScheduler.get(handler).newClient(mOptions.getPriority());
+            mCancellation.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    client.cancel();
+                }
+            });
+            mClient = client;
+        }
+        return mClient;
+    }
+
+    private void capture(Snapshot snapshot, UiScheduler.Client client, final View view, int depth)
+            throws InterruptedException {
+        /*
+         * Note: The methods on a view should always be called on the UI thread.
+         * This method will be called from a background thread, and waits for the
+         * UI thread to be done with a view before moving on to its children.
+         */
+        // Before posting the tasks of each node.
+        if (mCancellation.poll()) {
+            throw new CancellationException();
+        }
+
+        if (mTimedOut) {
+            return;
+        }
+
+        final Snapshot.Node node = new Snapshot.Node();
+        node.depth = depth;
+        node.uid = mIds.getId(view);
+
+        final FutureTask<View[]> properties = new FutureTask<View[]>(new Callable<View[]>() {
+            @Override
+            public View[] call() throws Exception {
+                getProperties(view, node, mProperties, mOptions.isCapturingExported());
+                return getChildren(view);
+            }
+        });
+
+        final FutureTask<Void> background = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                getBackground(view, node);
+                return null;
+            }
+        });
+
+        final FutureTask<Void> content = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                node.content = getContent(view, node);
+                return null;
+            }
+        });
+
+        // Requests that only need the properties don't rasterize anything.
+        final boolean isCapturingLayers = mOptions.isCapturingLayers();
+        client.post(properties);
+        if (isCapturingLayers) {
+            client.post(background);
+            client.post(content);
+        }
+
+        final View[] children;
+        try {
+            // Keep waiting.
+            children = await(properties);
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Could not capture " + view, e);
+            background.cancel(false);
+            content.cancel(false);
+            return;
+        } catch (TimeoutException e) {
+            // The UI thread may still be writing into the node, so the marker
+            // only has what can be read from any thread. Its hash code can't
+            // be, the uid identifies it.
+            final Snapshot.Node marker = new Snapshot.Node();
+            marker.depth = depth;
+            marker.uid = node.uid;
+            marker.className = view.getClass().getName();
+            marker.idName = "";
+            marker.timedOut = true;
+            snapshot.add(marker);
+            mTimedOut = true;
+            return;
+        }
+
+        if (isCapturingLayers && !waitFor(background)) {
+            node.timedOutLayers |= Snapshot.Node.LAYER_BACKGROUND;
+        }
+        if (isCapturingLayers && !waitFor(content)) {
+            node.timedOutLayers |= Snapshot.Node.LAYER_CONTENT;
+        }
+
+        snapshot.add(node);
+        if (mTimedOut) {
+            return;
+        }
+
+        for (View child : children) {
+            capture(snapshot, client, child, depth + 1);
+        }
+    }
+
+    /**
+     * Waits for a layer to be captured.
+     *
+     * @return False if the deadline passed first.
+     */
+    private boolean waitFor(FutureTask<?> task) throws InterruptedException {
+        try {
+            await(task);
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Could not capture layer", e);
+        } catch (CancellationException e) {
+            if (!mTimedOut) {
+                throw e;
+            }
+            // Dropped once the deadline passed.
+            return false;
+        } catch (TimeoutException e) {
+            mTimedOut = true;
+            task.cancel(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a task to run on the UI thread, until the deadline of the
+     * request, if any.
+     */
+    private <T> T await(FutureTask<T> task)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = mOptions.getDeadline();
+        if (deadline == 0) {
+            return task.get();
+        }
+
+        if (mTimedOut && !task.isDone()) {
+            throw new TimeoutException();
+        }
+        return task.get(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Captures the properties of a hierarchy, without its layers. This must be
+     * called on the UI thread.
+     *
+     * @param view The root of the hierarchy.
+     * @param depth The depth of the root.
+     * @param nodes The list to add the nodes to, in pre-order.
+     * @param properties The extractors of the extra properties of views.
+     * @param ids The ids of the views.
+     */
+    static void captureProperties(View view, int depth, List<Snapshot.Node> nodes,
+            PropertyRegistry properties, ViewIds ids) {
+        final Snapshot.Node node = new Snapshot.Node();
+        node.depth = depth;
+        node.uid = ids.getId(view);
+        getProperties(view, node, properties, false);
+        nodes.add(node);
+
+        for (View child : getChildren(view)) {
+            captureProperties(child, depth + 1, nodes, properties, ids);
+        }
+    }
+
+    private static View[] getChildren(View view) {
+        if (!(view instanceof ViewGroup)) {
+            return NO_CHILDREN;
+        }
+
+        final ViewGroup group = (ViewGroup) view;
+        final int count = group.getChildCount();
+        final View[] children = new View[count];
+        for (int i=0; i < count; i++) {
+            children[i] = group.getChildAt(i);
+        }
+        return children;
+    }
+
+    /**
+     * Get the properties of the view.
+     *
+     * @param view View for getting the properties.
+     * @param node Node to store the properties in.
+     * @param properties The extractors of the extra properties of views.
+     * @param exported Whether to capture the exported properties.
+     */
+    private static void getProperties(View view, Snapshot.Node node, PropertyRegistry properties,
+            boolean exported) {
+        node.className = view.getClass().getName();
+        node.idName = getIdName(view);
+        node.hashCode = view.hashCode();
+
+        node.left = view.getLeft();
+        node.top = view.getTop();
+        node.width = view.getWidth();
+        node.height = view.getHeight();
+
+        node.padding[0] = view.getPaddingLeft();
+        node.padding[1] = view.getPaddingTop();
+        node.padding[2] = view.getPaddingRight();
+        node.padding[3] = view.getPaddingBottom();
+
+        final LayoutParams params = view.getLayoutParams();
+        if (params instanceof MarginLayoutParams) {
+            MarginLayoutParams margin = (MarginLayoutParams) params;
+            node.margin = new int[] {
+                margin.leftMargin, margin.topMargin, margin.rightMargin, margin.bottomMargin
+            };
+        }
+
+        final Drawable background = view.getBackground();
+        if (background != null) {
+            Rect padding = new Rect();
+            background.getPadding(padding);
+            node.drawablePadding = new int[] {
+                padding.left, padding.top, padding.right, padding.bottom
+            };
+        }
+
+        node.scrollX = view.getScrollX();
+        node.scrollY = view.getScrollY();
+
+        if (Build.VERSION.SDK_INT >= 11) {
+            node.hasTransforms = true;
+            node.scaleX = view.getScaleX();
+            node.scaleY = view.getScaleY();
+            node.rotationX = view.getRotationX();
+            node.rotationY = view.getRotationY();
+            node.translationX = view.getTranslationX();
+            node.translationY = view.getTranslationY();
+        }
+
+        node.visibility = view.getVisibility();
+        node.properties = properties.extract(view, exported);
+    }
+
+    private static String getIdName(View view) {
+        StringBuffer idName = new StringBuffer(20);
+        final int id = view.getId();
+        if (id != View.NO_ID) {
+            final Resources res = view.getResources();
+            if (id != 0 && res != null) {
+                try {
+                    String pkg;
+                    switch (id & 0xff000000) {
+                        case 0x7f000000:
+                            pkg = "app";
+                            break;
+                        case 0x01000000:
+                            pkg = "android";
+                            break;
+                        default:
+                            pkg = res.getResourcePackageName(id);
+                            break;
+                    }
+                    String typename = res.getResourceTypeName(id);
+                    String entryname = res.getResourceEntryName(id);
+                    idName.append("[");
+                    idName.append("@");
+                    idName.append(pkg);
+                    idName.append(":");
+                    idName.append(typename);
+                    idName.append("/");
+                    idName.append(entryname);
+                    idName.append("]");
+                } catch (Resources.NotFoundException e) {
+                }
+            }
+        }
+        return idName.toString();
+    }
+
+    private void getBackground(View view, Snapshot.Node node) throws Exception {
+        if (view.getVisibility() != View.VISIBLE) {
+            return;
+        }
+
+        final Drawable background = view.getBackground();
+        if (background == null) {
+            return;
+        }
+
+        if (background instanceof ColorDrawable && Build.VERSION.SDK_INT >= 11) {
+            ColorDrawable colorDrawable = (ColorDrawable) background;
+            final int color = colorDrawable.getColor();
+            if (color != 0) {
+                node.hasBackgroundColor = true;
+                node.backgroundColor = color;
+                node.isBackgroundOpaque = (color >>> 24) == 0xFF;
+            }
+            return;
+        }
+
+        node.isBackgroundOpaque = background.getOpacity() == PixelFormat.OPAQUE;
+
+        // Backgrounds cover the whole view, there's nothing to measure.
+        if (mOptions.isMeasuringContent()) {
+            node.measuredLayers |= Snapshot.Node.LAYER_BACKGROUND;
+            return;
+        }
+
+        Bitmap bitmap = getBitmap(view, node, Snapshot.Node.LAYER_BACKGROUND);
+        if (bitmap == null)
+            return;
+
+        final Canvas canvas = new Canvas(bitmap);
+        if (node.backgroundScale > 1) {
+            canvas.scale(1f / node.backgroundScale, 1f / node.backgroundScale);
+        }
+
+        final int scrollX = view.getScrollX();
+        final int scrollY = view.getScrollY();
+
+        background.setBounds(0, 0, view.getRight() - view.getLeft(), view.getBottom() - view.getTop());
+
+        if ((scrollX | scrollY) == 0) {
+            background.draw(canvas);
+        } else {
+            canvas.translate(scrollX, scrollY);
+            background.draw(canvas);
+            canvas.translate(-scrollX, -scrollY);
+        }
+
+        node.backgroundImage = compressBitmapToString(bitmap, node, Snapshot.Node.LAYER_BACKGROUND);
+    }
+
+    private String getContent(View view, Snapshot.Node node) throws Exception {
+        if (isPhoneWindow(view.getClass().getName()) || view.getVisibility() != View.VISIBLE) {
+            return null;
+        }
+
+        if (mOptions.isCapturingText() && view instanceof TextView) {
+            node.text = TextCapture.capture((TextView) view);
+            if (node.text != null) {
+                return null;
+            }
+        }
+
+        // Only rasterized content can be measured.
+        final boolean isMeasuring = mOptions.isMeasuringContent();
+        if (mOptions.getContentMode() == RequestOptions.CONTENT_OPS && !isMeasuring) {
+            recordOps(view, node);
+            return null;
+        }
+
+        if (mOptions.getContentMode() == RequestOptions.CONTENT_PICTURE && sCanSerializePictures
+                && !isMeasuring) {
+            try {
+                return recordContent(view, node);
+            } catch (NoSuchMethodError e) {
+                // Fall back to rasterizing.
+                sCanSerializePictures = false;
+            }
+        }
+
+        Bitmap bitmap = getBitmap(view, node, Snapshot.Node.LAYER_CONTENT);
+        if (bitmap == null) {
+            return null;
+        }
+
+        final ProxyCanvas canvas = new ProxyCanvas(bitmap, node.contentScale);
+        bitmap.eraseColor(0x0);
+
+        drawContent(view, canvas);
+
+        if (!canvas.wasTouched()) {
+            recycle(bitmap);
+            return null;
+        }
+
+        if (isMeasuring) {
+            // The pixels are not kept.
+            node.contentBounds = measure(bitmap, node.contentScale);
+            node.measuredLayers |= Snapshot.Node.LAYER_CONTENT;
+            recycle(bitmap);
+            return null;
+        }
+
+        return compressBitmapToString(bitmap, node, Snapshot.Node.LAYER_CONTENT);
+    }
+
+    /**
+     * Returns the bounds of the pixels that aren't transparent in a bitmap,
+     * in the coordinates of the view, or null if all of them are.
+     */
+    private static int[] measure(Bitmap bitmap, int scale) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] row = new int[width];
+
+        int left = width;
+        int top = height;
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                if ((row[x] >>> 24) != 0) {
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                    top = Math.min(top, y);
+                    bottom = y;
+                }
+            }
+        }
+
+        if (right == -1) {
+            return null;
+        }
+
+        return new int[] { left * scale, top * scale, (right + 1) * scale, (bottom + 1) * scale };
+    }
+
+    /**
+     * Records the content of a view into a picture, instead of rasterizing it.
+     * The serialized picture can be replayed by the client at any zoom.
+     */
+    private String recordContent(View view, Snapshot.Node node) throws IOException {
+        final int width = view.getWidth();
+        final int height = view.getHeight();
+        if (width == 0 || height == 0) {
+            return null;
+        }
+
+        if (mAllowance.isSkipping(true)) {
+            node.skippedLayers |= Snapshot.Node.LAYER_CONTENT;
+            return null;
+        }
+
+        final Picture picture = new Picture();
+        drawContent(view, picture.beginRecording(width, height));
+        picture.endRecording();
+
+        final byte[] bytes = serialize(picture);
+
+        // Nothing was drawn if it's the same size as an empty picture.
+        if (bytes.length <= getEmptyPictureSize()) {
+            return null;
+        }
+
+        final String encoded = PICTURE_IDENTIFIER + Base64.encodeToString(bytes, Base64.NO_PADDING | Base64.NO_WRAP);
+        mAllowance.retain(2L * encoded.length());
+        return encoded;
+    }
+
+    /**
+     * Records the draw operations of the content of a view, instead of rasterizing it.
+     * The bitmaps drawn for the first time in this capture are encoded along with them.
+     */
+    private void recordOps(View view, Snapshot.Node node) throws IOException {
+        final int width = view.getWidth();
+        final int height = view.getHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        if (mAllowance.isSkipping(true)) {
+            node.skippedLayers |= Snapshot.Node.LAYER_CONTENT;
+            return;
+        }
+
+        final OpLog log = new OpLog(mBitmapIds);
+        drawContent(view, new ProxyCanvas(width, height, log));
+        if (log.isEmpty()) {
+            return;
+        }
+
+        node.ops = log.toString();
+        mAllowance.retain(2L * node.ops.length());
+
+        final List<Bitmap> bitmaps = log.getNewBitmaps();
+        final int count = bitmaps.size();
+        if (count == 0) {
+            return;
+        }
+
+        node.bitmapIds = new int[count];
+        node.bitmaps = new String[count];
+        for (int i = 0; i < count; i++) {
+            final Bitmap bitmap = bitmaps.get(i);
+            node.bitmapIds[i] = mBitmapIds.get(bitmap);
+
+            // The bitmap belongs to the app, and must not be recycled.
+            if (!bitmap.isRecycled() && !mAllowance.isSkipping(true)) {
+                node.bitmaps[i] = encodeLayer(bitmap, node, 0);
+            }
+        }
+    }
+
+    private static int getEmptyPictureSize() {
+        if (sEmptyPictureSize < 0) {
+            final Picture empty = new Picture();
+            empty.beginRecording(1, 1);
+            empty.endRecording();
+            sEmptyPictureSize = serialize(empty).length;
+        }
+        return sEmptyPictureSize;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static byte[] serialize(Picture picture) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        picture.writeToStream(stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Draws the content of a view, without its children.
+     */
+    private void drawContent(View view, Canvas canvas) {
+        int visibilities[] = null;
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            final int count = group.getChildCount();
+
+            // This would fail for List dividers as they look for visible items.
+            visibilities = new int[count];
+            for (int i=0; i < count; i++) {
+                View child = group.getChildAt(i);
+                visibilities[i] = child.getVisibility();
+                if (visibilities[i] == View.VISIBLE) {
+                    child.setVisibility(View.INVISIBLE);
+
+                    // Toggling the visibility redraws the window, which isn't a change.
+                    mObserver.ignoreNextDraw();
+                }
+            }
+        }
+
+        Class<?> clazz = view.getClass();
+        while (clazz != View.class) {
+            try {
+                Method method = clazz.getDeclaredMethod("onDraw", Canvas.class);
+                method.setAccessible(true);
+                method.invoke(view, canvas);
+                break;
+            } catch (NoSuchMethodException e) {
+                clazz = clazz.getSuperclass();
+            } catch (Exception e) {
+            }
+        }
+
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            final int count = group.getChildCount();
+
+            if (count > 0) {
+                for (int i=0; i < count; i++) {
+                    group.getChildAt(i).setVisibility(visibilities[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the bitmap for a layer, within the memory budget. The layer may be
+     * downscaled or skipped, in which case this is marked on the node.
+     *
+     * @param view The view of the layer.
+     * @param node The node of the view.
+     * @param layer Either {@link Snapshot.Node#LAYER_BACKGROUND} or {@link Snapshot.Node#LAYER_CONTENT}.
+     * @return The bitmap, or null if the layer is skipped.
+     */
+    private Bitmap getBitmap(View view, Snapshot.Node node, int layer) {
+        if (view.getWidth() == 0 || view.getHeight() == 0) {
+            return null;
+        }
+
+        final boolean isContent = (layer == Snapshot.Node.LAYER_CONTENT);
+        final int scale = mAllowance.reserveLayer(view.getWidth(), view.getHeight(), isContent,
+                mOptions.getLevelOfDetail());
+        if (scale == 0) {
+            node.skippedLayers |= layer;
+            return null;
+        }
+
+        final int width = Math.max(view.getWidth() / scale, 1);
+        final int height = Math.max(view.getHeight() / scale, 1);
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } catch(OutOfMemoryError e) {
+            mAllowance.release(MemoryBudget.getBitmapSize(width, height));
+            mAllowance.degrade();
+            node.skippedLayers |= layer;
+            return null;
+        }
+
+        if (isContent) {
+            node.contentScale = scale;
+        } else {
+            node.backgroundScale = scale;
+        }
+        return bitmap;
+    }
+
+    private void recycle(Bitmap bitmap) {
+        final long size = MemoryBudget.getBitmapSize(bitmap.getWidth(), bitmap.getHeight());
+        bitmap.recycle();
+        mAllowance.release(size);
+    }
+
+    private String compressBitmapToString(Bitmap bitmap, Snapshot.Node node, int layer) throws IOException {
+        final String encoded = encodeLayer(bitmap, node, layer);
+        recycle(bitmap);
+        return encoded;
+    }
+
+    /**
+     * Encodes the pixels of a layer in the format of the request, and
+     * accounts for the memory they use.
+     *
+     * @param bitmap The pixels of the layer.
+     * @param node The node the layer belongs to.
+     * @param layer The layer, or 0 for the bitmaps drawn by the content,
+     *        which are never tiled.
+     * @return The layer as a data URI, or as the reference to a blob.
+     */
+    private String encodeLayer(Bitmap bitmap, Snapshot.Node node, int layer) {
+        if (mOptions.getPixelFormat() == RequestOptions.PIXELS_PNG) {
+            final String encoded = encodeBitmap(bitmap);
+
+            // Strings take two bytes per character.
+            mAllowance.retain(2L * encoded.length());
+            return encoded;
+        }
+
+        final Snapshot.Blob blob = copyPixels(bitmap, node, layer);
+        if (blob == null) {
+            return null;
+        }
+
+        mAllowance.retain(blob.getSize());
+        return BLOB_IDENTIFIER + mSnapshot.addBlob(blob);
+    }
+
+    /**
+     * Copies the pixels of a bitmap into a blob, without encoding them.
+     *
+     * @return The blob, or null if the bitmap couldn't be converted to RGBA.
+     */
+    private Snapshot.Blob copyPixels(Bitmap bitmap, Snapshot.Node node, int layer) {
+        Bitmap source = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            source = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            if (source == null) {
+                return null;
+            }
+        }
+
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int stride = source.getRowBytes();
+        final int size = stride * height;
+        if (mPixels == null || mPixels.capacity() < size) {
+            mPixels = ByteBuffer.allocateDirect(size);
+        }
+        mPixels.clear();
+        source.copyPixelsToBuffer(mPixels);
+
+        if (source != bitmap) {
+            source.recycle();
+        }
+
+        final boolean isCompressed = (mOptions.getPixelFormat() == RequestOptions.PIXELS_LZ4);
+        if (mOptions.isTiling() && layer != 0) {
+            return copyTiles(width, height, stride, isCompressed, node, layer);
+        }
+
+        return new Snapshot.Blob(width, height, stride, isCompressed, copyBytes(mPixels, size, isCompressed));
+    }
+
+    /**
+     * Splits the pixels of a layer in tiles, and hashes each of them.
+     */
+    private Snapshot.Blob copyTiles(int width, int height, int stride, boolean isCompressed,
+            Snapshot.Node node, int layer) {
+        final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        final long[] hashes = new long[columns * rows];
+        final byte[][] tiles = new byte[columns * rows][];
+
+        if (mTile == null) {
+            mTile = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 4);
+        }
+
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                final int left = column * TILE_SIZE;
+                final int top = row * TILE_SIZE;
+                final int tileWidth = Math.min(TILE_SIZE, width - left);
+                final int tileHeight = Math.min(TILE_SIZE, height - top);
+
+                // FNV-1a, over the pixels.
+                long hash = 0xcbf29ce484222325L;
+                int out = 0;
+                for (int y = top; y < top + tileHeight; y++) {
+                    final int start = y * stride + left * 4;
+                    for (int offset = start; offset < start + tileWidth * 4; offset += 4) {
+                        final int pixel = mPixels.getInt(offset);
+                        mTile.putInt(out, pixel);
+                        out += 4;
+                        hash = (hash ^ pixel) * 0x100000001b3L;
+                    }
+                }
+
+                final int tile = row * columns + column;
+                hashes[tile] = hash;
+                tiles[tile] = copyBytes(mTile, out, isCompressed);
+            }
+        }
+
+        return new Snapshot.Blob(width, height, isCompressed, TILE_SIZE, hashes, tiles,
+                node.uid, layer);
+    }
+
+    /**
+     * Copies the start of a buffer, compressing it if needed.
+     */
+    private byte[] copyBytes(ByteBuffer buffer, int length, boolean isCompressed) {
+        if (isCompressed) {
+            if (mCompressor == null) {
+                mCompressor = new BlockCompressor();
+            }
+            return mCompressor.compress(buffer, length);
+        }
+
+        final byte[] data = new byte[length];
+        buffer.position(0);
+        buffer.get(data);
+        return data;
+    }
+
+    private static String encodeBitmap(Bitmap bitmap) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        byte[] bytes = stream.toByteArray();
+
+        return BASE64_IDENTIFIER + Base64.encodeToString(bytes, Base64.NO_PADDING | Base64.NO_WRAP);
+    }
+
+    static boolean isPhoneWindow(String className) {
+        return className.contains(PHONE_WINDOW);
+    }
+}
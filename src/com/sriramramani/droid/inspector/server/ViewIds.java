@@ -0,0 +1,101 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+import android.view.View;
+
+/**
+ * Assigns ids to views, which identify them in every capture for as long
+ * as they live. Unlike hash codes, which views may override, ids are unique
+ * and never reused, so clients can match nodes across captures and address
+ * them in later commands.
+ *
+ * Views are only weakly referenced, and compared by identity. Collected
+ * views are purged whenever an id is assigned.
+ */
+final class ViewIds {
+    // Ids start at 1, 0 means that a node has no id.
+    static final int NO_ID = 0;
+
+    private final HashMap<ViewReference, Integer> mIds = new HashMap<ViewReference, Integer>();
+    private final HashMap<Integer, ViewReference> mViews = new HashMap<Integer, ViewReference>();
+    private final ReferenceQueue<View> mQueue = new ReferenceQueue<View>();
+    private int mNextId = 1;
+
+    /**
+     * Returns the id of a view, assigning it the first time.
+     */
+    synchronized int getId(View view) {
+        final Integer id = mIds.get(new ViewReference(view, 0, null));
+        if (id != null) {
+            return id;
+        }
+
+        purge();
+        final int newId = mNextId++;
+        final ViewReference reference = new ViewReference(view, newId, mQueue);
+        mIds.put(reference, newId);
+        mViews.put(newId, reference);
+        return newId;
+    }
+
+    /**
+     * Returns the view with an id, or null if it was collected.
+     */
+    synchronized View getView(int id) {
+        final ViewReference reference = mViews.get(id);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Removes the views that were collected.
+     */
+    private void purge() {
+        Reference<? extends View> reference;
+        while ((reference = mQueue.poll()) != null) {
+            final ViewReference view = (ViewReference) reference;
+            mIds.remove(view);
+            mViews.remove(view.id);
+        }
+    }
+
+    /**
+     * A weak reference to a view, compared by the identity of the view.
+     */
+    private static final class ViewReference extends WeakReference<View> {
+        final int id;
+        private final int mHashCode;
+
+        ViewReference(View view, int id, ReferenceQueue<View> queue) {
+            super(view, queue);
+            this.id = id;
+            mHashCode = System.identityHashCode(view);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+
+            if (!(o instanceof ViewReference)) {
+                return false;
+            }
+
+            final View view = get();
+            return view != null && view == ((ViewReference) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
@@ -5,25 +5,40 @@
 package com.sriramramani.droid.inspector.server;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -36,6 +51,12 @@ import android.view.View;
  *
  * <p>To use this, your application must require the INTERNET permission.</p>
  *
+ * <p>The server also listens on a local socket in the abstract namespace,
+ * named "droid-inspector-" followed by the id of the process, so that several
+ * processes can be inspected at once without sharing a port. Commands are the
+ * same on both transports. For example:
+ * <code>adb forward tcp:4546 localabstract:droid-inspector-1234</code></p>
+ *
  * <p>The recommended way to use this API is to register activities when
  * they are created, and to unregister them when they get destroyed:</p>
  *
@@ -65,6 +86,12 @@ public class ViewServer implements Runnable {
      */
     private static final int VIEW_SERVER_DEFAULT_PORT = 4545;
     private static final int VIEW_SERVER_MAX_CONNECTIONS = 10;
+
+    // Prefix of the name of the local socket, followed by the process id.
+    private static final String LOCAL_SOCKET_PREFIX = "droid-inspector-";
+
+    // Time after which idle worker threads are stopped, in seconds.
+    private static final long WORKER_KEEP_ALIVE = 30;
     private static final String BUILD_TYPE_USER = "user";
 
     // Debug facility
@@ -72,21 +99,75 @@ public class ViewServer implements Runnable {
 
     // Prints the hierarchy
     private static final String COMMAND_PRINT_HIERARCHY = "print";
+    private static final String COMMAND_PICK = "pick";
+    private static final String COMMAND_FIND = "find";
+    private static final String COMMAND_STORE = "store";
+    private static final String COMMAND_REVISIONS = "revisions";
+    private static final String COMMAND_LOAD = "load";
+    private static final String COMMAND_TIMELINE = "timeline";
+    private static final String COMMAND_OVERDRAW = "overdraw";
+    private static final String COMMAND_LAYERS = "layers";
+
+    // Arguments of the timeline command.
+    private static final String TIMELINE_START = "start";
+    private static final String TIMELINE_STOP = "stop";
+
+    // Sessions kept at most.
+    private static final int MAX_SESSIONS = 8;
 
-    private ServerSocket mServer;
+    // Minimum time between two polls of a connection, in milliseconds.
+    private static final long POLL_INTERVAL = 50;
+
+    // Directory of the snapshot store, in the cache directory.
+    private static final String STORE_DIRECTORY = "droid-inspector";
+
+    private volatile ServerSocket mServer;
     private final int mPort;
 
-    private Thread mThread;
-    private ExecutorService mThreadPool;
+    private volatile Thread mThread;
+
+    // Listens on the local socket, alongside the thread of the server.
+    private volatile LocalServerSocket mLocalServer;
+    private volatile Thread mLocalThread;
+
+    // Created when the first client connects.
+    private volatile ExecutorService mThreadPool;
+    private volatile ExecutorService mCaptureThreadPool;
+    private volatile CaptureCoordinator mCaptures;
 
     private final List<WindowListener> mListeners =
         new CopyOnWriteArrayList<ViewServer.WindowListener>();
 
-    private final HashMap<View, String> mWindows = new HashMap<View, String>();
-    private final ReentrantReadWriteLock mWindowsLock = new ReentrantReadWriteLock();
+    private final WindowRegistry mWindows = new WindowRegistry();
 
-    private View mFocusedWindow;
-    private final ReentrantReadWriteLock mFocusLock = new ReentrantReadWriteLock();
+    // Sessions of the clients, by name, least recently used first.
+    private final LinkedHashMap<String, TileSession> mSessions =
+        new LinkedHashMap<String, TileSession>(MAX_SESSIONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TileSession> eldest) {
+                return size() > MAX_SESSIONS;
+            }
+        };
+
+    private final MemoryBudget mBudget = new MemoryBudget(MemoryBudget.getDefaultLimit());
+    private final PropertyRegistry mProperties = new PropertyRegistry();
+    private final ViewIds mIds = new ViewIds();
+
+    // The application, and what the server creates with it once it starts
+    // listening, see initialize().
+    private Context mContext;
+    private SnapshotStore mStore;
+
+    // Retention of the store, until it's created. Negative if not set.
+    private int mStoreMaxCount = -1;
+    private long mStoreMaxBytes;
+
+    // When start() was last called, in uptime milliseconds.
+    private volatile long mStartTime;
+
+    // The timeline of the window recorded last, if any.
+    private volatile Timeline mTimeline;
+    private volatile TimelineRecorder mRecorder;
 
     private static ViewServer sServer;
 
@@ -100,28 +181,42 @@ public class ViewServer implements Runnable {
      * be a dummy object that does not do anything. This allows you to use
      * the same code in debug and release versions of your application.
      *
+     * The server doesn't slow down the startup of your application: it starts
+     * listening once the main thread is idle, and creates its snapshot store
+     * then, off the main thread. Its worker threads are created when the
+     * first client connects.
+     *
      * @param context A Context used to check whether the application is
      *                debuggable, this can be the application context
      */
     public static ViewServer get(Context context) {
-        ApplicationInfo info = context.getApplicationInfo();
-//        if (BUILD_TYPE_USER.equals(Build.TYPE) &&
-        if ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
-            if (sServer == null) {
+        // Timed on creation, which is what applications pay at startup.
+        final long startNanos = (sServer == null) ? System.nanoTime() : 0;
+        if (sServer == null) {
+            ApplicationInfo info = context.getApplicationInfo();
+//            if (BUILD_TYPE_USER.equals(Build.TYPE) &&
+            if ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
                 sServer = new ViewServer(ViewServer.VIEW_SERVER_DEFAULT_PORT);
+                sServer.mContext = context.getApplicationContext();
+            } else {
+                sServer = new NoopViewServer();
             }
+        }
 
-            if (!sServer.isRunning()) {
-                try {
-                    sServer.start();
-                } catch (IOException e) {
-                    Log.d(LOG_TAG, "Error:", e);
-                }
+        if (!sServer.isRunning()) {
+            try {
+                sServer.start();
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Error:", e);
             }
-        } else {
-            sServer = new NoopViewServer();
         }
 
+        // Logged in both modes, to compare them.
+        if (startNanos != 0) {
+            Log.d(LOG_TAG, "get() took " + (System.nanoTime() - startNanos) / 1000
+                    + "us on the calling thread"
+                    + ((sServer instanceof NoopViewServer) ? ", with the no-op server" : ""));
+        }
         return sServer;
     }
 
@@ -142,7 +237,8 @@ public class ViewServer implements Runnable {
     }
 
     /**
-     * Starts the server.
+     * Starts the server. When called on the main thread, the server starts
+     * listening once the main thread is idle.
      *
      * @return True if the server was successfully created, or false if it already exists.
      * @throws IOException If the server cannot be created.
@@ -157,13 +253,57 @@ public class ViewServer implements Runnable {
             return false;
         }
 
-        mThread = new Thread(this, "Local View Server [port=" + mPort + "]");
-        mThreadPool = Executors.newFixedThreadPool(VIEW_SERVER_MAX_CONNECTIONS);
-        mThread.start();
+        final Thread thread = new Thread(this, "Local View Server [port=" + mPort + "]");
+        mThread = thread;
+        mStartTime = SystemClock.uptimeMillis();
+
+        final Looper looper = Looper.myLooper();
+        if (looper != null && looper == Looper.getMainLooper()) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    // Unless the server was stopped meanwhile.
+                    if (mThread == thread) {
+                        thread.start();
+                    }
+                    return false;
+                }
+            });
+        } else {
+            thread.start();
+        }
 
         return true;
     }
 
+    /**
+     * Returns the pool of the workers, creating the pools and the capture
+     * coordinator the first time.
+     *
+     * @param server The thread of the server that accepted the client.
+     * @return The pool, or null if the server was stopped.
+     */
+    private synchronized ExecutorService getThreadPool(Thread server) {
+        if (mThread != server) {
+            return null;
+        }
+
+        if (mThreadPool == null) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(VIEW_SERVER_MAX_CONNECTIONS,
+                    VIEW_SERVER_MAX_CONNECTIONS, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            if (Build.VERSION.SDK_INT >= 9) {
+                pool.allowCoreThreadTimeOut(true);
+            }
+
+            mCaptureThreadPool = Executors.newCachedThreadPool();
+            mCaptures = new CaptureCoordinator(mCaptureThreadPool, mBudget, mProperties, mIds);
+            mThreadPool = pool;
+        }
+
+        return mThreadPool;
+    }
+
     /**
      * Stops the server.
      *
@@ -174,7 +314,7 @@ public class ViewServer implements Runnable {
      * @see #isRunning()
      * @see WindowManagerService#stopViewServer()
      */
-    public boolean stop() {
+    public synchronized boolean stop() {
         if (mThread != null) {
             mThread.interrupt();
             if (mThreadPool != null) {
@@ -185,9 +325,34 @@ public class ViewServer implements Runnable {
                 }
             }
 
+            if (mCaptureThreadPool != null) {
+                try {
+                    mCaptureThreadPool.shutdownNow();
+                } catch (SecurityException e) {
+                    Log.w(LOG_TAG, "Could not stop all capture threads");
+                }
+            }
+
+            if (mCaptures != null) {
+                mCaptures.clear();
+            }
+
+            stopRecording();
+            stopLocalServer();
+            synchronized (mSessions) {
+                mSessions.clear();
+            }
+
             mThreadPool = null;
+            mCaptureThreadPool = null;
+            mCaptures = null;
             mThread = null;
 
+            // Not listening yet, if the main thread was never idle.
+            if (mServer == null) {
+                return true;
+            }
+
             try {
                 mServer.close();
                 mServer = null;
@@ -197,19 +362,7 @@ public class ViewServer implements Runnable {
             }
         }
 
-        mWindowsLock.writeLock().lock();
-        try {
-            mWindows.clear();
-        } finally {
-            mWindowsLock.writeLock().unlock();
-        }
-
-        mFocusLock.writeLock().lock();
-        try {
-            mFocusedWindow = null;
-        } finally {
-            mFocusLock.writeLock().unlock();
-        }
+        mWindows.clear();
 
         return false;
     }
@@ -224,7 +377,8 @@ public class ViewServer implements Runnable {
      * @see WindowManagerService#isViewServerRunning()
      */
     public boolean isRunning() {
-        return mThread != null && mThread.isAlive();
+        final Thread localThread = mLocalThread;
+        return mThread != null && (mThread.isAlive() || (localThread != null && localThread.isAlive()));
     }
 
     /**
@@ -267,12 +421,7 @@ public class ViewServer implements Runnable {
      * @see #removeWindow(View)
      */
     public void addWindow(View view, String name) {
-        mWindowsLock.writeLock().lock();
-        try {
-            mWindows.put(view.getRootView(), name);
-        } finally {
-            mWindowsLock.writeLock().unlock();
-        }
+        mWindows.add(view.getRootView(), name);
         fireWindowsChangedEvent();
     }
 
@@ -284,11 +433,17 @@ public class ViewServer implements Runnable {
      * @see #addWindow(View, String)
      */
     public void removeWindow(View view) {
-        mWindowsLock.writeLock().lock();
-        try {
-            mWindows.remove(view.getRootView());
-        } finally {
-            mWindowsLock.writeLock().unlock();
+        final View window = view.getRootView();
+        mWindows.remove(window);
+
+        final TimelineRecorder recorder = mRecorder;
+        if (recorder != null && recorder.isRecording(window)) {
+            stopRecording();
+        }
+
+        final CaptureCoordinator captures = mCaptures;
+        if (captures != null) {
+            captures.forget(window);
         }
         fireWindowsChangedEvent();
     }
@@ -310,21 +465,132 @@ public class ViewServer implements Runnable {
      *             or null to remove focus
      */
     public void setFocusedWindow(View view) {
-        mFocusLock.writeLock().lock();
-        try {
-            mFocusedWindow = view == null ? null : view.getRootView();
-        } finally {
-            mFocusLock.writeLock().unlock();
-        }
+        mWindows.setFocusedWindow(view == null ? null : view.getRootView());
         fireFocusChangedEvent();
     }
 
+    /**
+     * Sets the memory that all captures in flight may use together, for the
+     * bitmaps being rasterized and the encoded layers. Captures that run out
+     * of memory downscale their layers, then skip content layers, then skip
+     * backgrounds. By default this is an eighth of the heap.
+     *
+     * @param bytes The memory budget, in bytes.
+     */
+    public void setMemoryBudget(long bytes) {
+        mBudget.setLimit(bytes);
+    }
+
+    /**
+     * Sets how many snapshots the store keeps, by count and by size. The oldest
+     * snapshots are deleted first, and the newest one is always kept.
+     *
+     * @param maxCount The maximum number of snapshots.
+     * @param maxBytes The maximum size of the snapshots on disk, in bytes.
+     */
+    public synchronized void setSnapshotRetention(int maxCount, long maxBytes) {
+        if (mStore != null) {
+            mStore.setRetention(maxCount, maxBytes);
+        } else {
+            mStoreMaxCount = maxCount;
+            mStoreMaxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Creates the snapshot store, and registers for the memory callbacks of
+     * the application, the first time the server starts listening. This runs
+     * on the thread of the server, after the startup of the application.
+     */
+    private synchronized void initialize() {
+        if (mContext == null || mStore != null) {
+            return;
+        }
+
+        mStore = new SnapshotStore(mContext, STORE_DIRECTORY);
+        if (mStoreMaxCount >= 0) {
+            mStore.setRetention(mStoreMaxCount, mStoreMaxBytes);
+        }
+        if (Build.VERSION.SDK_INT >= 14) {
+            mContext.registerComponentCallbacks(new TrimMemoryCallbacks());
+        }
+    }
+
+    /**
+     * Registers an extractor for the properties of a type of view, and of its
+     * subclasses. The properties are captured along with the bounds of each
+     * view of the type. Snapshots that are already cached don't have them.
+     *
+     * @param type The type of view.
+     * @param extractor The extractor, called on the UI thread.
+     */
+    public <T extends View> void addPropertyExtractor(Class<T> type, PropertyExtractor<? super T> extractor) {
+        mProperties.register(type, extractor);
+    }
+
+    /**
+     * Starts recording the revisions of a window into the timeline, instead
+     * of the window recorded so far.
+     */
+    private synchronized void startRecording(View window) {
+        stopRecording();
+        mTimeline = new Timeline();
+        mRecorder = new TimelineRecorder(window, mTimeline, mProperties, mIds);
+        mRecorder.start();
+    }
+
+    private synchronized void stopRecording() {
+        if (mRecorder != null) {
+            mRecorder.stop();
+            mRecorder = null;
+        }
+    }
+
+    /**
+     * Returns the session of a client, creating it the first time.
+     */
+    private TileSession getTileSession(String name) {
+        synchronized (mSessions) {
+            TileSession session = mSessions.get(name);
+            if (session == null) {
+                session = new TileSession();
+                mSessions.put(name, session);
+            }
+            return session;
+        }
+    }
+
     /**
      * Main server loop.
      */
     public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        initialize();
+        startLocalServer();
+
         try {
-            mServer = new ServerSocket(mPort, VIEW_SERVER_MAX_CONNECTIONS, InetAddress.getLocalHost());
+            // Opened through a channel, so that stored snapshots can be sent
+            // to clients straight from their files. The streams of its sockets
+            // share a lock, which is fine as nothing reads the socket while
+            // the response is written.
+            final ServerSocket server = ServerSocketChannel.open().socket();
+            try {
+                server.bind(new InetSocketAddress(InetAddress.getLocalHost(), mPort), VIEW_SERVER_MAX_CONNECTIONS);
+            } catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            synchronized (this) {
+                if (mThread != Thread.currentThread()) {
+                    // Stopped while binding.
+                    server.close();
+                    return;
+                }
+                mServer = server;
+            }
+            Log.d(LOG_TAG, "listening on port " + mPort + ", "
+                    + (SystemClock.uptimeMillis() - mStartTime) + "ms after start()");
         } catch (Exception e) {
             Log.w(LOG_TAG, "Starting ServerSocket error: ", e);
         }
@@ -333,8 +599,9 @@ public class ViewServer implements Runnable {
             // Any uncaught exception will crash the system process
             try {
                 Socket client = mServer.accept();
-                if (mThreadPool != null) {
-                    mThreadPool.submit(new ViewServerWorker(client));
+                final ExecutorService pool = getThreadPool(Thread.currentThread());
+                if (pool != null) {
+                    pool.submit(new ViewServerWorker(Connection.of(client)));
                 } else {
                     try {
                         client.close();
@@ -348,6 +615,97 @@ public class ViewServer implements Runnable {
         }
     }
 
+    /**
+     * Starts listening on the local socket of the process, on its own thread.
+     * The server keeps running on TCP if the local socket can't be bound.
+     */
+    private void startLocalServer() {
+        final Thread server = Thread.currentThread();
+        final LocalServerSocket localServer;
+        try {
+            localServer = new LocalServerSocket(getLocalSocketName());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Starting LocalServerSocket error: ", e);
+            return;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                while (mLocalServer == localServer && mThread == server) {
+                    try {
+                        final LocalSocket client = localServer.accept();
+                        final ExecutorService pool = getThreadPool(server);
+                        if (pool != null && mLocalServer == localServer) {
+                            pool.submit(new ViewServerWorker(Connection.of(client)));
+                        } else {
+                            client.close();
+                        }
+                    } catch (Exception e) {
+                        if (mLocalServer == localServer) {
+                            Log.w(LOG_TAG, "Connection error: ", e);
+                        }
+                    }
+                }
+            }
+        }, "Local View Server [" + getLocalSocketName() + "]");
+
+        synchronized (this) {
+            if (mThread != server) {
+                // Stopped while binding.
+                closeQuietly(localServer);
+                return;
+            }
+            mLocalServer = localServer;
+            mLocalThread = thread;
+        }
+        thread.start();
+        Log.i(LOG_TAG, "listening on localabstract:" + getLocalSocketName());
+    }
+
+    private synchronized void stopLocalServer() {
+        final LocalServerSocket localServer = mLocalServer;
+        if (localServer == null) {
+            return;
+        }
+        mLocalServer = null;
+        mLocalThread = null;
+
+        // Closing doesn't wake up a thread blocked in accept() on all
+        // versions, so connect to it as well.
+        final LocalSocket wakeUp = new LocalSocket();
+        try {
+            wakeUp.connect(new LocalSocketAddress(getLocalSocketName()));
+        } catch (IOException e) {
+            // Not listening anymore.
+        } finally {
+            try {
+                wakeUp.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        closeQuietly(localServer);
+    }
+
+    private static void closeQuietly(LocalServerSocket localServer) {
+        try {
+            localServer.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close the local view server");
+        }
+    }
+
+    /**
+     * Returns the name of the local socket of this process, in the abstract
+     * namespace.
+     */
+    private static String getLocalSocketName() {
+        return LOCAL_SOCKET_PREFIX + Process.myPid();
+    }
+
     private void fireWindowsChangedEvent() {
         for (WindowListener listener : mListeners) {
             listener.windowsChanged();
@@ -360,6 +718,31 @@ public class ViewServer implements Runnable {
         }
     }
 
+    /**
+     * Shrinks the memory budget, and drops the cached snapshots, when the
+     * system is low on memory.
+     */
+    private class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            mBudget.onTrimMemory(level);
+
+            final CaptureCoordinator captures = mCaptures;
+            if (captures != null) {
+                captures.onTrimMemory(level);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
     private interface WindowListener {
         void windowsChanged();
         void focusChanged();
@@ -449,22 +832,75 @@ public class ViewServer implements Runnable {
         public void setFocusedWindow(View view) {
         }
 
+        @Override
+        public void setMemoryBudget(long bytes) {
+        }
+
+        @Override
+        public void setSnapshotRetention(int maxCount, long maxBytes) {
+        }
+
+        @Override
+        public <T extends View> void addPropertyExtractor(Class<T> type,
+                PropertyExtractor<? super T> extractor) {
+        }
+
         @Override
         public void run() {
         }
     }
 
     private class ViewServerWorker implements Runnable {
-        private Socket mClient;
+        private final Connection mClient;
+
+        // Cancelled once the request is done, or when the client closed the
+        // connection, as polled by the captures of the request.
+        private final Cancellation mCancellation = new Cancellation();
+
+        // Uptime before which the connection is not polled again.
+        private long mNextPoll;
 
-        public ViewServerWorker(Socket client) {
+        public ViewServerWorker(Connection client) {
             mClient = client;
+            mCancellation.onPoll(new Runnable() {
+                @Override
+                public void run() {
+                    pollClient();
+                }
+            });
+        }
+
+        /**
+         * Cancels the request if the client closed the connection. Polling
+         * takes a few system calls, so it happens at most every
+         * {@link #POLL_INTERVAL} milliseconds.
+         */
+        private void pollClient() {
+            synchronized (this) {
+                final long now = SystemClock.uptimeMillis();
+                if (now < mNextPoll) {
+                    return;
+                }
+                mNextPoll = now + POLL_INTERVAL;
+            }
+
+            boolean isClosed;
+            try {
+                isClosed = mClient.isClosedByClient();
+            } catch (IOException e) {
+                isClosed = true;
+            }
+
+            if (isClosed) {
+                Log.i(LOG_TAG, "client closed the connection");
+                mCancellation.cancel();
+            }
         }
 
         @Override
         public void run() {
             BufferedReader in = null;
-            BufferedWriter out = null;
+            ResponseWriter out = null;
             try {
                 in = new BufferedReader(new InputStreamReader(mClient.getInputStream()), 1024);
                 final String request = in.readLine();
@@ -481,25 +917,48 @@ public class ViewServer implements Runnable {
                     parameters = request.substring(index + 1);
                 }
 
-                boolean isJson = false;
-                if (parameters != null && parameters.equalsIgnoreCase("json")) {
-                    isJson = true;
-                }
+                final RequestOptions options = RequestOptions.parse(parameters);
 
                 boolean result = false;
                 if (COMMAND_PRINT_HIERARCHY.equalsIgnoreCase(command)) {
-                    if (!mClient.isOutputShutdown()) {
-                        out = new BufferedWriter(new OutputStreamWriter(new UncloseableOuputStream(mClient.getOutputStream())));
+                    final View window = mWindows.getFocusedWindow();
+                    final CaptureCoordinator captures = mCaptures;
+                    if (window == null || captures == null) {
+                        Log.i(LOG_TAG, "no focused window");
+                    } else if (!mClient.isOutputShutdown()) {
+                        // Joins a capture of the same window in flight, if any.
+                        final Snapshot snapshot = captures.capture(window, options, mCancellation);
+                        out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+                        if (options.getSession() != null) {
+                            out.setTileSession(getTileSession(options.getSession()));
+                        }
 
-                        // Print hierarchy.
-                        if (isJson) {
-                            result = JsonPrinter.printHierarchy(out, mFocusedWindow);
+                        // Print hierarchy, with what was captured by the deadline, if any.
+                        if (options.isJson()) {
+                            result = JsonPrinter.printHierarchy(out, options.getQuote(), snapshot,
+                                    options.getDeadline());
                         } else {
-                            result = XMLPrinter.printHierarchy(out, mFocusedWindow);
+                            result = XMLPrinter.printHierarchy(out, snapshot, options.getDeadline());
                         }
                     } else {
                         Log.i(LOG_TAG, "output is shutdown");
                     }
+                } else if (COMMAND_PICK.equalsIgnoreCase(command)) {
+                    result = pick(parameters, options);
+                } else if (COMMAND_FIND.equalsIgnoreCase(command)) {
+                    result = find(parameters, options);
+                } else if (COMMAND_STORE.equalsIgnoreCase(command)) {
+                    result = store(options);
+                } else if (COMMAND_REVISIONS.equalsIgnoreCase(command)) {
+                    result = printRevisions(options);
+                } else if (COMMAND_LOAD.equalsIgnoreCase(command)) {
+                    result = load(parameters);
+                } else if (COMMAND_TIMELINE.equalsIgnoreCase(command)) {
+                    result = timeline(parameters, options);
+                } else if (COMMAND_OVERDRAW.equalsIgnoreCase(command)) {
+                    result = overdraw(parameters, options);
+                } else if (COMMAND_LAYERS.equalsIgnoreCase(command)) {
+                    result = layers(parameters, options);
                 }
 
                 if (!result) {
@@ -524,6 +983,320 @@ public class ViewServer implements Runnable {
                         Log.i(LOG_TAG, "exception while closing output stream");
                     }
                 }
+                try {
+                    mClient.close();
+                } catch (IOException e) {
+                    Log.i(LOG_TAG, "exception while closing the connection");
+                }
+                mCancellation.cancel();
+            }
+        }
+
+        /**
+         * Prints the path to the node at a point of the focused window, from
+         * its last snapshot. This never captures the window: the client is
+         * expected to have printed the hierarchy before.
+         *
+         * @param parameters The parameters of the request, starting with the
+         *        coordinates of the point in the window.
+         */
+        private boolean pick(String parameters, RequestOptions options)
+                throws IOException, InterruptedException {
+            final String[] tokens = parameters.trim().split("\\s+");
+            final int x;
+            final int y;
+            try {
+                x = Integer.parseInt(tokens[0]);
+                y = Integer.parseInt(tokens[1]);
+            } catch (RuntimeException e) {
+                Log.i(LOG_TAG, "invalid point: " + parameters);
+                return false;
+            }
+
+            final View window = mWindows.getFocusedWindow();
+            final CaptureCoordinator captures = mCaptures;
+            final Snapshot snapshot = (window == null || captures == null) ? null : captures.getLatest(window);
+            if (snapshot == null) {
+                Log.i(LOG_TAG, "no snapshot of the focused window");
+                return false;
+            }
+
+            final int node = snapshot.getSpatialIndex().pick(x, y);
+            return printMatches(snapshot, (node == -1) ? new int[0] : new int[] { node }, options);
+        }
+
+        /**
+         * Prints the nodes of the focused window matching a selector, along
+         * with their ancestors. See {@link Selector} for the terms. Only the
+         * properties of the views are captured, as selectors don't need their
+         * layers, and the snapshot is served from the cache when it's still
+         * valid.
+         */
+        private boolean find(String parameters, RequestOptions options)
+                throws IOException, InterruptedException {
+            final Selector selector = Selector.parse(parameters);
+            if (selector == null) {
+                Log.i(LOG_TAG, "invalid selector: " + parameters);
+                return false;
+            }
+
+            final View window = mWindows.getFocusedWindow();
+            final CaptureCoordinator captures = mCaptures;
+            if (window == null || captures == null) {
+                Log.i(LOG_TAG, "no focused window");
+                return false;
+            }
+
+            options.setCapturingLayers(false);
+            final Snapshot snapshot = captures.capture(window, options, mCancellation);
+            return printMatches(snapshot, selector.find(snapshot), options);
+        }
+
+        /**
+         * Captures the focused window into a new revision of the store, and
+         * prints the revision. The revision is printed with the options of
+         * this request.
+         */
+        private boolean store(RequestOptions options) throws IOException, InterruptedException {
+            final View window = mWindows.getFocusedWindow();
+            final CaptureCoordinator captures = mCaptures;
+            if (window == null || captures == null || mStore == null) {
+                Log.i(LOG_TAG, "no focused window");
+                return false;
+            }
+
+            final Snapshot snapshot = captures.capture(window, options, mCancellation);
+            final SnapshotStore.Revision revision = mStore.add(snapshot, options);
+
+            final List<SnapshotStore.Revision> revisions = new ArrayList<SnapshotStore.Revision>(1);
+            revisions.add(revision);
+            return printRevisions(revisions, options);
+        }
+
+        private boolean printRevisions(RequestOptions options) throws IOException {
+            if (mStore == null) {
+                return false;
+            }
+
+            return printRevisions(mStore.getRevisions(), options);
+        }
+
+        private boolean printRevisions(List<SnapshotStore.Revision> revisions, RequestOptions options)
+                throws IOException {
+            final ResponseWriter out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+            try {
+                if (options.isJson()) {
+                    return JsonPrinter.printRevisions(out, options.getQuote(), revisions);
+                } else {
+                    return XMLPrinter.printRevisions(out, revisions);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Sends a stored revision, as it was printed when it was stored.
+         *
+         * @param parameters The parameters of the request, starting with the revision.
+         */
+        private boolean load(String parameters) throws IOException {
+            final SnapshotStore.Revision revision;
+            try {
+                revision = (mStore == null) ? null : mStore.get(Integer.parseInt(parameters.trim().split("\\s+")[0]));
+            } catch (NumberFormatException e) {
+                Log.i(LOG_TAG, "invalid revision: " + parameters);
+                return false;
+            }
+
+            if (revision == null) {
+                Log.i(LOG_TAG, "no such revision: " + parameters);
+                return false;
+            }
+
+            // TCP sockets are accepted through a channel, and are sent the
+            // file without copies. Local sockets have no channel.
+            WritableByteChannel target = mClient.getChannel();
+            if (target == null) {
+                target = Channels.newChannel(new UncloseableOuputStream(mClient.getOutputStream()));
+            }
+
+            return mStore.transferTo(revision, target);
+        }
+
+        /**
+         * Controls the timeline. "timeline start" records the revisions of the
+         * focused window, and "timeline stop" stops recording. "timeline" lists
+         * the retained revisions, and "timeline <revision>" prints one of them.
+         */
+        private boolean timeline(String parameters, RequestOptions options)
+                throws IOException, InterruptedException {
+            final String argument = parameters.trim().split("\\s+")[0];
+            if (TIMELINE_START.equalsIgnoreCase(argument)) {
+                final View window = mWindows.getFocusedWindow();
+                if (window == null) {
+                    Log.i(LOG_TAG, "no focused window");
+                    return false;
+                }
+
+                startRecording(window);
+                return true;
+            } else if (TIMELINE_STOP.equalsIgnoreCase(argument)) {
+                stopRecording();
+                return true;
+            }
+
+            int number = 0;
+            try {
+                number = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                // Lists the revisions.
+            }
+
+            final Timeline timeline = mTimeline;
+            final ResponseWriter out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+            try {
+                if (number == 0) {
+                    final List<long[]> revisions = (timeline == null)
+                            ? new ArrayList<long[]>() : timeline.getRevisions();
+                    if (options.isJson()) {
+                        return JsonPrinter.printTimeline(out, options.getQuote(), revisions);
+                    } else {
+                        return XMLPrinter.printTimeline(out, revisions);
+                    }
+                }
+
+                final Snapshot.Node[] nodes = (timeline == null) ? null : timeline.get(number);
+                if (nodes == null) {
+                    Log.i(LOG_TAG, "no such revision: " + number);
+                    return false;
+                }
+
+                final Snapshot snapshot = new Snapshot();
+                for (Snapshot.Node node : nodes) {
+                    snapshot.add(node);
+                }
+                snapshot.complete();
+
+                if (options.isJson()) {
+                    return JsonPrinter.printHierarchy(out, options.getQuote(), snapshot);
+                } else {
+                    return XMLPrinter.printHierarchy(out, snapshot);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Prints the overdraw of the focused window, computed from a capture
+         * that measures the region drawn by the content layers. The size of
+         * the cells of the heatmap can be set with cell=<pixels>, from 1 to
+         * the size of the window.
+         */
+        private boolean overdraw(String parameters, RequestOptions options)
+                throws IOException, InterruptedException {
+            int cellSize = Overdraw.DEFAULT_CELL_SIZE;
+            for (String token : parameters.trim().split("\\s+")) {
+                if (token.startsWith("cell=")) {
+                    try {
+                        cellSize = Integer.parseInt(token.substring(5));
+                    } catch (NumberFormatException e) {
+                        Log.i(LOG_TAG, "invalid cell size: " + token);
+                        return false;
+                    }
+                }
+            }
+
+            final View window = mWindows.getFocusedWindow();
+            final CaptureCoordinator captures = mCaptures;
+            if (window == null || captures == null) {
+                Log.i(LOG_TAG, "no focused window");
+                return false;
+            }
+
+            final int maxCellSize = Math.max(1, Math.max(window.getWidth(), window.getHeight()));
+            if (cellSize < 1 || cellSize > maxCellSize) {
+                Log.i(LOG_TAG, "cell size out of range [1, " + maxCellSize + "]: " + cellSize);
+                return false;
+            }
+
+            options.setMeasuringContent(true);
+            final Snapshot snapshot = captures.capture(window, options, mCancellation);
+            final Overdraw overdraw = new Overdraw(snapshot, cellSize);
+
+            final ResponseWriter out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+            try {
+                if (options.isJson()) {
+                    return JsonPrinter.printOverdraw(out, options.getQuote(), snapshot, overdraw);
+                } else {
+                    return XMLPrinter.printOverdraw(out, snapshot, overdraw);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Prints the layers of the nodes of the last snapshot of the focused
+         * window at the level of detail of the request, for instance the nodes
+         * of a region with "layers bounds=0,0,320,240 lod=1". The nodes are
+         * selected like with "find", or all of them without a selector. The
+         * layers can't be captured again once the window changed.
+         */
+        private boolean layers(String parameters, RequestOptions options)
+                throws IOException, InterruptedException {
+            final View window = mWindows.getFocusedWindow();
+            final CaptureCoordinator captures = mCaptures;
+            final Snapshot snapshot = (window == null || captures == null) ? null : captures.getLatest(window);
+            if (snapshot == null) {
+                Log.i(LOG_TAG, "no snapshot of the focused window");
+                return false;
+            }
+
+            final Selector selector = Selector.parse(parameters);
+            final int[] nodes;
+            if (selector != null) {
+                nodes = selector.find(snapshot);
+            } else {
+                nodes = new int[snapshot.getQueryIndex().getNodeCount()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = i;
+                }
+            }
+
+            final LayerLevel level = captures.captureLayers(window, snapshot, nodes, options, mCancellation);
+            if (level == null) {
+                Log.i(LOG_TAG, "the focused window changed since its last snapshot");
+                return false;
+            }
+
+            final ResponseWriter out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+            if (options.getSession() != null) {
+                out.setTileSession(getTileSession(options.getSession()));
+            }
+            try {
+                if (options.isJson()) {
+                    return JsonPrinter.printLevel(out, options.getQuote(), level, nodes);
+                } else {
+                    return XMLPrinter.printLevel(out, level, nodes);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private boolean printMatches(Snapshot snapshot, int[] matches, RequestOptions options)
+                throws IOException, InterruptedException {
+            final ResponseWriter out = ResponseWriter.open(new UncloseableOuputStream(mClient.getOutputStream()), options);
+            try {
+                if (options.isJson()) {
+                    return JsonPrinter.printMatches(out, options.getQuote(), snapshot, matches);
+                } else {
+                    return XMLPrinter.printMatches(out, snapshot, matches);
+                }
+            } finally {
+                out.close();
             }
         }
     }
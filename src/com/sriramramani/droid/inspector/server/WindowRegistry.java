@@ -0,0 +1,108 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.view.View;
+
+/**
+ * The windows registered with the server, and the focused one.
+ *
+ * Windows are only weakly referenced, so that an activity that is never
+ * unregistered can still be collected. Collected windows are purged from the
+ * registry whenever it is modified. Reading the focused window never locks,
+ * and registering a window never waits for a reader.
+ */
+final class WindowRegistry {
+    private final ConcurrentHashMap<WindowReference, String> mWindows =
+        new ConcurrentHashMap<WindowReference, String>();
+    private final ReferenceQueue<View> mQueue = new ReferenceQueue<View>();
+
+    private volatile WeakReference<View> mFocusedWindow;
+
+    /**
+     * Registers a window.
+     *
+     * @param window The root view of the window.
+     * @param name The name of the window.
+     */
+    void add(View window, String name) {
+        purge();
+        mWindows.put(new WindowReference(window, mQueue), name);
+    }
+
+    /**
+     * Unregisters a window.
+     *
+     * @param window The root view of the window.
+     */
+    void remove(View window) {
+        purge();
+        mWindows.remove(new WindowReference(window, null));
+    }
+
+    void setFocusedWindow(View window) {
+        mFocusedWindow = window == null ? null : new WeakReference<View>(window);
+    }
+
+    /**
+     * Returns the focused window, or null if there is none or it was collected.
+     */
+    View getFocusedWindow() {
+        final WeakReference<View> focused = mFocusedWindow;
+        return focused == null ? null : focused.get();
+    }
+
+    void clear() {
+        mWindows.clear();
+        mFocusedWindow = null;
+        purge();
+    }
+
+    /**
+     * Removes the windows that were collected.
+     */
+    private void purge() {
+        Reference<? extends View> reference;
+        while ((reference = mQueue.poll()) != null) {
+            mWindows.remove(reference);
+        }
+    }
+
+    /**
+     * A weak reference to a window, compared by the identity of the window.
+     */
+    private static final class WindowReference extends WeakReference<View> {
+        private final int mHashCode;
+
+        WindowReference(View window, ReferenceQueue<View> queue) {
+            super(window, queue);
+            mHashCode = System.identityHashCode(window);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+
+            if (!(o instanceof WindowReference)) {
+                return false;
+            }
+
+            final View window = get();
+            return window != null && window == ((WindowReference) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
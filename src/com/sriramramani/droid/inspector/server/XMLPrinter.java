@@ -4,190 +4,283 @@
 
 package com.sriramramani.droid.inspector.server;
 
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-
-import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Rect;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.Build;
-import android.os.Handler;
+import java.util.Arrays;
+import java.util.List;
+
 import android.util.Base64;
 import android.view.View;
-import android.view.ViewGroup;
-import android.view.ViewGroup.LayoutParams;
-import android.view.ViewGroup.MarginLayoutParams;
 
 final class XMLPrinter {
-
-    // PhoneWindow class
-    private static final String PHONE_WINDOW = "PhoneWindow";
-
-    // Identifier for base64 encoding.
-    private static final String BASE64_IDENTIFIER = "data:image/png;base64,";
+    // Replaces the characters that XML doesn't allow.
+    private static final String REPLACEMENT = "\ufffd";
 
     private XMLPrinter() {
         // .xXx.
     }
 
     /**
-     * Prints the hierarchy of a view to the output stream.
+     * Prints the hierarchy of a snapshot to the output stream. Nodes are
+     * printed as soon as they are captured.
      *
-     * @param out BufferedWriter to write the contents.
-     * @param view View for capturing layers.
+     * @param out ResponseWriter to write the contents.
+     * @param snapshot Snapshot of the hierarchy.
      */
-    public static boolean printHierarchy(BufferedWriter out, final View view) throws IOException {
+    public static boolean printHierarchy(ResponseWriter out, Snapshot snapshot)
+            throws IOException, InterruptedException {
+        return printHierarchy(out, snapshot, 0);
+    }
+
+    /**
+     * Prints the hierarchy of a snapshot to the output stream, until a
+     * deadline. If the capture is not complete by then, or if it was
+     * truncated, the nodes whose children may be missing are marked.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param deadline The deadline in uptime milliseconds, or 0 for none.
+     */
+    public static boolean printHierarchy(ResponseWriter out, Snapshot snapshot, long deadline)
+            throws IOException, InterruptedException {
         /*
          * Note: Always the writing should happen in the thread this method was called on.
-         * This method will be called from one of the background threads from the ViewServer.
-         * The methods on a view should always be called on the UI thread.
-         * And, never write from the UI thread! :sigh:
+         * This method will be called from one of the background threads from the ViewServer,
+         * while the snapshot is being captured on another.
          */
-        if (isPhoneWindow(view)) {
-            out.write("<?xml version='1.0' encoding='UTF-8' ?>");
-        }
+        int openDepth = -1;
+        for (int i = 0; snapshot.waitForNode(i, deadline); i++) {
+            if (i == 0 && ViewCapture.isPhoneWindow(snapshot.getClassName(i))) {
+                out.write("<?xml version='1.0' encoding='UTF-8' ?>");
+            }
 
-        final Handler handler = view.getHandler();
-        final FutureTask<String> properties = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getProperties(view);
+            final int depth = snapshot.getDepth(i);
+            for (; openDepth >= depth; openDepth--) {
+                out.write("</node>");
             }
-        });
 
-        final FutureTask<String> background = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getBackground(view);
+            printProperties(out, snapshot, i);
+            final Snapshot.Node details = snapshot.getDetails(i);
+            if (details != null) {
+                printLayers(out, details);
             }
-        });
 
-        final FutureTask<String> content = new FutureTask<String>(new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                return getContent(view);
+            out.write(">");
+            if (details != null) {
+                printExtraProperties(out, details);
             }
-        });
+            out.flush();
+            openDepth = depth;
+        }
 
-        handler.post(properties);
-        handler.post(background);
-        handler.post(content);
+        final boolean isTruncated = snapshot.isTruncated() || !snapshot.isComplete();
+        for (; openDepth >= 0; openDepth--) {
+            out.write(isTruncated ? "<truncated /></node>" : "</node>");
+        }
 
-        try {
-            // Keep waiting.
-            String result;
-            result = properties.get();
-            out.write(result);
+        // The pixels of the layers, if they are sent as blobs.
+        out.writeBlobs(snapshot);
 
-            result = background.get();
-            if (result != null) {
-                out.write(result);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Prints the given nodes of a snapshot along with their ancestors, nested
+     * like in the hierarchy. Only the properties of the nodes are printed.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param matches Indices of the nodes, in pre-order.
+     */
+    public static boolean printMatches(ResponseWriter out, Snapshot snapshot, int[] matches)
+            throws IOException, InterruptedException {
+        final boolean[] included = snapshot.getSpatialIndex().getAncestry(matches);
+
+        int openDepth = -1;
+        for (int i = 0; i < included.length; i++) {
+            if (!included[i]) {
+                continue;
             }
 
-            result = content.get();
-            if (result != null) {
-                out.write(result);
+            final int depth = snapshot.getDepth(i);
+            for (; openDepth >= depth; openDepth--) {
+                out.write("</node>");
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+
+            printProperties(out, snapshot, i);
+            out.write(" index='" + i + "'");
+            if (Arrays.binarySearch(matches, i) >= 0) {
+                out.write(" match='true'");
+            }
+
+            out.write(">");
+            final Snapshot.Node details = snapshot.getDetails(i);
+            if (details != null) {
+                printExtraProperties(out, details);
+            }
+            openDepth = depth;
+        }
+
+        for (; openDepth >= 0; openDepth--) {
+            out.write("</node>");
         }
 
-        out.write(">");
         out.flush();
+        return true;
+    }
 
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-            for (int i=0; i < count; i++)
-                printHierarchy(out, group.getChildAt(i));
+    /**
+     * Prints the revisions of a snapshot store.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param revisions The revisions, oldest first.
+     */
+    public static boolean printRevisions(ResponseWriter out, List<SnapshotStore.Revision> revisions)
+            throws IOException {
+        out.write("<revisions>");
+        for (SnapshotStore.Revision revision : revisions) {
+            out.write("<revision id='" + revision.revision + "'");
+            out.write(" time='" + revision.time + "'");
+            out.write(" bytes='" + revision.bytes + "'");
+            out.write(" format='" + (revision.isJson ? "json" : "xml") + "'");
+            out.write(" compression='" + revision.getCompressionName() + "'/>");
         }
+        out.write("</revisions>");
 
-        out.write("</node>");
         out.flush();
         return true;
     }
 
     /**
-     * Get the properties of the view.
+     * Prints the revisions of a timeline.
      *
-     * @param view View for getting the properties.
-     * @result Return a string of the properties.
+     * @param out ResponseWriter to write the contents.
+     * @param revisions The revisions, oldest first, as pairs of number and time.
      */
-    private static String getProperties(View view) {
-        StringBuffer buffer = new StringBuffer(200);
-        String className = view.getClass().getName();
-
-        StringBuffer idName = new StringBuffer(20);
-        final int id = view.getId();
-        if (id != View.NO_ID) {
-            final Resources res = view.getResources();
-            if (id != 0 && res != null) {
-                try {
-                    String pkg;
-                    switch (id & 0xff000000) {
-                        case 0x7f000000:
-                            pkg = "app";
-                            break;
-                        case 0x01000000:
-                            pkg = "android";
-                            break;
-                        default:
-                            pkg = res.getResourcePackageName(id);
-                            break;
-                    }
-                    String typename = res.getResourceTypeName(id);
-                    String entryname = res.getResourceEntryName(id);
-                    idName.append("[");
-                    idName.append("@");
-                    idName.append(pkg);
-                    idName.append(":");
-                    idName.append(typename);
-                    idName.append("/");
-                    idName.append(entryname);
-                    idName.append("]");
-                } catch (Resources.NotFoundException e) {
-                }
+    public static boolean printTimeline(ResponseWriter out, List<long[]> revisions)
+            throws IOException {
+        out.write("<timeline>");
+        for (long[] revision : revisions) {
+            out.write("<revision id='" + revision[0] + "' time='" + revision[1] + "'/>");
+        }
+        out.write("</timeline>");
+
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Prints the overdraw of a snapshot: the number of layers drawn in each
+     * cell, base64 encoded row by row, and the scores of the nodes that drew
+     * over other layers, or that were covered by opaque backgrounds.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param snapshot Snapshot of the hierarchy.
+     * @param overdraw Overdraw of the snapshot.
+     */
+    public static boolean printOverdraw(ResponseWriter out, Snapshot snapshot, Overdraw overdraw)
+            throws IOException, InterruptedException {
+        out.write("<overdraw cellSize='" + overdraw.cellSize + "'");
+        out.write(" columns='" + overdraw.columns + "'");
+        out.write(" rows='" + overdraw.rows + "'");
+        out.write(" heatmap='" + Base64.encodeToString(overdraw.getHeatmap(), Base64.NO_WRAP) + "'>");
+
+        for (int i = 0; i < overdraw.overdrawn.length; i++) {
+            if (overdraw.overdrawn[i] == 0 && overdraw.hidden[i] == 0) {
+                continue;
             }
+
+            out.write("<node index='" + i + "'");
+            out.write(" name='" + escape(snapshot.getClassName(i)) + "'");
+            out.write(" id='" + escape(snapshot.getIdName(i)) + "'");
+            out.write(" hashCode='" + snapshot.getHashCode(i) + "'");
+            out.write(" uid='" + snapshot.getUid(i) + "'");
+            out.write(" overdraw='" + overdraw.overdrawn[i] + "'");
+            out.write(" hidden='" + overdraw.hidden[i] + "'/>");
         }
+        out.write("</overdraw>");
 
-        buffer.append("<node name='" + className + "'");
-        buffer.append(" id='" + idName.toString() + "'");
-        buffer.append(" hashCode='" + view.hashCode() + "'");
-        buffer.append(" bounds='[" + view.getLeft() + "," + view.getTop() + "][" + view.getWidth() + "," + view.getHeight() + "]'");
-        buffer.append(" padding='[" + view.getPaddingLeft() + "," + view.getPaddingTop() + "][" + view.getPaddingRight() + "," + view.getPaddingBottom() + "]'");
+        out.flush();
+        return true;
+    }
 
-        final LayoutParams params = view.getLayoutParams();
-        if (params instanceof MarginLayoutParams) {
-            MarginLayoutParams margin = (MarginLayoutParams) params;
-            buffer.append(" margin='[" + margin.leftMargin + "," + margin.topMargin + "][" + margin.rightMargin + "," + margin.bottomMargin + "]'");
+    /**
+     * Prints the layers of some nodes of a snapshot, captured again at a
+     * level of detail. Only the uid, the hash code and the layers of the
+     * nodes are printed, along with their index in the snapshot.
+     *
+     * @param out ResponseWriter to write the contents.
+     * @param level The layers at the level of detail.
+     * @param nodes Indices of the nodes in the snapshot.
+     */
+    public static boolean printLevel(ResponseWriter out, LayerLevel level, int[] nodes)
+            throws IOException {
+        out.write("<level lod='" + level.level + "'>");
+        for (int index : nodes) {
+            final Snapshot.Node node = level.get(index);
+            if (node == null) {
+                continue;
+            }
+
+            out.write("<layers index='" + index + "' uid='" + node.uid + "' hashCode='" + node.hashCode + "'");
+            printLayers(out, node);
+            out.write("/>");
         }
+        out.write("</level>");
 
-        final Drawable background = view.getBackground();
-        if (background != null) {
-            Rect padding = new Rect();
-            background.getPadding(padding);
-            buffer.append(" drawable-padding='[" + padding.left + "," + padding.top + "][" + padding.right + "," + padding.bottom + "]'");
+        out.writeBlobs(level.getBlobs(), level.getBlobIds(nodes));
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Print the properties of a node.
+     *
+     * @param out ResponseWriter to write the properties.
+     * @param snapshot Snapshot holding the properties.
+     * @param index Index of the node in the snapshot.
+     */
+    private static void printProperties(ResponseWriter out, Snapshot snapshot, int index)
+            throws IOException {
+        StringBuffer buffer = new StringBuffer(200);
+
+        buffer.append("<node name='" + escape(snapshot.getClassName(index)) + "'");
+        buffer.append(" id='" + escape(snapshot.getIdName(index)) + "'");
+        buffer.append(" uid='" + snapshot.getUid(index) + "'");
+
+        if (snapshot.isTimedOut(index)) {
+            // Nothing else is known about the node.
+            buffer.append(" timed-out='true'");
+            out.write(buffer.toString());
+            return;
         }
 
-        buffer.append(" scroll-x='" + view.getScrollX() + "' scroll-y='" + view.getScrollY() + "'");
+        buffer.append(" hashCode='" + snapshot.getHashCode(index) + "'");
+
+        final int[] box = new int[4];
+        snapshot.getBounds(index, box);
+        buffer.append(" bounds='[" + box[0] + "," + box[1] + "][" + box[2] + "," + box[3] + "]'");
+        snapshot.getPadding(index, box);
+        buffer.append(" padding='[" + box[0] + "," + box[1] + "][" + box[2] + "," + box[3] + "]'");
 
-        if (Build.VERSION.SDK_INT >= 11) {
-            buffer.append(" scale-x='" + view.getScaleX() + "' scale-y='" + view.getScaleY() + "'");
-            buffer.append(" rotation-x='" + view.getRotationX() + "' rotation-y='" + view.getRotationY() + "'");
-            buffer.append(" translation-x='" + view.getTranslationX() + "' translation-y='" + view.getTranslationY() + "'");
+        if (snapshot.getMargin(index, box)) {
+            buffer.append(" margin='[" + box[0] + "," + box[1] + "][" + box[2] + "," + box[3] + "]'");
         }
 
-        int visibility = view.getVisibility();
+        if (snapshot.getDrawablePadding(index, box)) {
+            buffer.append(" drawable-padding='[" + box[0] + "," + box[1] + "][" + box[2] + "," + box[3] + "]'");
+        }
+
+        buffer.append(" scroll-x='" + snapshot.getScrollX(index) + "' scroll-y='" + snapshot.getScrollY(index) + "'");
+
+        final float[] transforms = new float[6];
+        if (snapshot.getTransforms(index, transforms)) {
+            buffer.append(" scale-x='" + transforms[0] + "' scale-y='" + transforms[1] + "'");
+            buffer.append(" rotation-x='" + transforms[2] + "' rotation-y='" + transforms[3] + "'");
+            buffer.append(" translation-x='" + transforms[4] + "' translation-y='" + transforms[5] + "'");
+        }
+
+        int visibility = snapshot.getVisibility(index);
         if (visibility == View.VISIBLE) {
             buffer.append(" visibility='1'");
         } else if (visibility == View.INVISIBLE) {
@@ -196,141 +289,170 @@ final class XMLPrinter {
             buffer.append(" visibility='0'");
         }
 
-        return buffer.toString();
+        out.write(buffer.toString());
     }
 
-    private static String getBackground(View view) throws Exception {
-        if (view.getVisibility() != View.VISIBLE) {
-            return null;
+    /**
+     * Print the properties of the extractors and the exported properties of
+     * a node, as elements before its children, since their names are not
+     * valid attribute names.
+     */
+    private static void printExtraProperties(ResponseWriter out, Snapshot.Node node) throws IOException {
+        final String[] properties = node.properties;
+        if (properties == null) {
+            return;
         }
 
-        final Drawable background = view.getBackground();
-        if (background == null) {
-            return null;
+        for (int i = 0; i < properties.length; i += 2) {
+            out.write("<property name='" + escape(properties[i]) + "' value='" + escape(properties[i + 1]) + "'/>");
         }
+    }
 
-        if (background instanceof ColorDrawable && Build.VERSION.SDK_INT >= 11) {
-            ColorDrawable colorDrawable = (ColorDrawable) background;
-            final int color = colorDrawable.getColor();
-            return (color == 0) ? null : " background='#" + Integer.toHexString(color) + "'";
+    /**
+     * Print the background and the content of a node.
+     */
+    private static void printLayers(ResponseWriter out, Snapshot.Node node) throws IOException {
+        if (node.hasBackgroundColor) {
+            out.write(" background='#" + Integer.toHexString(node.backgroundColor) + "'");
+        } else if (node.backgroundImage != null) {
+            out.write(" background='");
+            out.writeLayer(node.backgroundImage);
+            out.write("'");
         }
 
-        Bitmap bitmap = getBitmap(view);
-        if (bitmap == null)
-            return null;
-
-        final Canvas canvas = new Canvas(bitmap);
-
-        final int scrollX = view.getScrollX();
-        final int scrollY = view.getScrollY();
-
-        background.setBounds(0, 0, view.getRight() - view.getLeft(), view.getBottom() - view.getTop());
-
-        if ((scrollX | scrollY) == 0) {
-            background.draw(canvas);
-        } else {
-            canvas.translate(scrollX, scrollY);
-            background.draw(canvas);
-            canvas.translate(-scrollX, -scrollY);
+        if (node.content != null) {
+            out.write(" content='");
+            out.writeLayer(node.content);
+            out.write("'");
         }
 
-        final StringBuffer buffer = new StringBuffer();
-        buffer.append(" background='");
-        compressBitmapToString(buffer, bitmap, canvas);
-        buffer.append("'");
-        return buffer.toString();
-    }
-
-    private static String getContent(View view) throws Exception {
-        if (isPhoneWindow(view) || view.getVisibility() != View.VISIBLE) {
-            return null;
+        if (node.text != null) {
+            printText(out, node.text);
         }
 
-        Bitmap bitmap = getBitmap(view);
-        if (bitmap == null) {
-            return null;
+        if (node.ops != null) {
+            // Quotes and markup characters are already escaped in the ops.
+            out.write(" ops='" + node.ops + "'");
         }
 
-        final ProxyCanvas canvas = new ProxyCanvas(bitmap);
-        bitmap.eraseColor(0x0);
-
-        int visibilities[] = null;
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-
-            // This would fail for List dividers as they look for visible items.
-            visibilities = new int[count];
-            for (int i=0; i < count; i++) {
-                View child = group.getChildAt(i);
-                visibilities[i] = child.getVisibility();
-                if (visibilities[i] == View.VISIBLE) {
-                    child.setVisibility(View.INVISIBLE);
+        if (node.bitmaps != null) {
+            // Space separated id:data pairs.
+            out.write(" bitmaps='");
+            for (int i = 0; i < node.bitmaps.length; i++) {
+                if (i > 0) {
+                    out.write(" ");
+                }
+                out.write(node.bitmapIds[i] + ":");
+                if (node.bitmaps[i] != null) {
+                    out.writeLayer(node.bitmaps[i]);
                 }
             }
+            out.write("'");
         }
 
-        Class<?> clazz = view.getClass();
-        while (clazz != View.class) {
-            try {
-                Method method = clazz.getDeclaredMethod("onDraw", Canvas.class);
-                method.setAccessible(true);
-                method.invoke(view, canvas);
-                break;
-            } catch (NoSuchMethodException e) {
-                clazz = clazz.getSuperclass();
-            } catch (Exception e) {
-            }
+        // Layers degraded to stay within the memory budget.
+        if (node.backgroundScale > 1) {
+            out.write(" background-scale='" + node.backgroundScale + "'");
         }
 
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            final int count = group.getChildCount();
-
-            if (count > 0) {
-                for (int i=0; i < count; i++) {
-                    group.getChildAt(i).setVisibility(visibilities[i]);
-                }
-            }
+        if (node.contentScale > 1) {
+            out.write(" content-scale='" + node.contentScale + "'");
         }
 
-        if (!canvas.wasTouched()) {
-            return null;
+        if (node.skippedLayers != 0) {
+            out.write(" skipped='" + Snapshot.Node.getLayerNames(node.skippedLayers) + "'");
         }
 
-        final StringBuffer buffer = new StringBuffer();
-        buffer.append(" content='");
-        compressBitmapToString(buffer, bitmap, canvas);
-        buffer.append("'");
-        return buffer.toString();
+        // Layers the UI thread didn't get to before the deadline.
+        if (node.timedOutLayers != 0) {
+            out.write(" timed-out-layers='" + Snapshot.Node.getLayerNames(node.timedOutLayers) + "'");
+        }
     }
 
-    private static Bitmap getBitmap(View view) {
-        if (view.getWidth() == 0 || view.getHeight() == 0) {
-            return null;
-        }
+    private static void printText(ResponseWriter out, Snapshot.Text text) throws IOException {
+        StringBuffer buffer = new StringBuffer(100 + text.value.length());
+
+        buffer.append(" text='" + escape(text.value) + "'");
+        buffer.append(" text-size='" + text.size + "'");
+        buffer.append(" text-color='#" + Integer.toHexString(text.color) + "'");
+        buffer.append(" typeface='" + escape(text.typeface) + "'");
+        buffer.append(" text-origin='[" + text.x + "," + text.y + "]'");
 
-        Bitmap bitmap = null;
-        try {
-            bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.ARGB_8888);
-        } catch(OutOfMemoryError e) {
-            android.util.Log.i("Sriram", "OOOOM");
+        // Lines as [start,end][left,baseline,width].
+        buffer.append(" text-lines='");
+        for (int i = 0; i < text.lines.length; i += Snapshot.Text.LINE_SIZE) {
+            buffer.append("[" + (int) text.lines[i] + "," + (int) text.lines[i + 1] + "]["
+                    + text.lines[i + 2] + "," + (int) text.lines[i + 3] + "," + text.lines[i + 4] + "]");
         }
+        buffer.append("'");
 
-        return bitmap;
+        out.write(buffer.toString());
     }
 
-    private static void compressBitmapToString(StringBuffer out, Bitmap bitmap, Canvas canvas) throws IOException {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        byte[] bytes = stream.toByteArray();
-        bitmap.recycle();
+    /**
+     * Escapes a string for an attribute value. Characters that XML 1.0
+     * doesn't allow, even as references, are replaced.
+     */
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
 
-        out.append(BASE64_IDENTIFIER);
-        out.append(Base64.encodeToString(bytes, Base64.NO_PADDING | Base64.NO_WRAP));
-    }
+        StringBuilder buffer = null;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            String escaped;
+            switch (c) {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '\'':
+                    escaped = "&apos;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    // Kept as references, so that they are not normalized to spaces.
+                    escaped = "&#" + (int) c + ";";
+                    break;
+                default:
+                    escaped = null;
+                    if (c < 0x20 || c == '\ufffe' || c == '\uffff') {
+                        escaped = REPLACEMENT;
+                    } else if (Character.isHighSurrogate(c)) {
+                        if (i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            if (buffer != null) {
+                                buffer.append(c);
+                            }
+                            continue;
+                        }
+                        escaped = REPLACEMENT;
+                    } else if (Character.isLowSurrogate(c)
+                            && (i == 0 || !Character.isHighSurrogate(value.charAt(i - 1)))) {
+                        escaped = REPLACEMENT;
+                    }
+                    break;
+            }
 
-    private static boolean isPhoneWindow(View view) {
-        return view.getClass().getName().contains(PHONE_WINDOW);
+            if (escaped != null) {
+                if (buffer == null) {
+                    buffer = new StringBuilder(value.length() + 16);
+                    buffer.append(value, 0, i);
+                }
+                buffer.append(escaped);
+            } else if (buffer != null) {
+                buffer.append(c);
+            }
+        }
+        return (buffer == null) ? value : buffer.toString();
     }
 }
@@ -0,0 +1,134 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockCompressorTest {
+
+    @Test
+    public void roundTripsShortBlocks() {
+        final BlockCompressor compressor = new BlockCompressor();
+        for (int length = 0; length <= 32; length++) {
+            assertRoundTrip(compressor, filled(length, (byte) 7));
+        }
+    }
+
+    @Test
+    public void roundTripsRepetitivePixels() {
+        // Rows of opaque pixels, with a few changes, like a flat background.
+        final byte[] pixels = filled(4 * 1080 * 16, (byte) 0xff);
+        for (int i = 0; i < pixels.length; i += 997) {
+            pixels[i] = (byte) i;
+        }
+
+        final byte[] block = assertRoundTrip(new BlockCompressor(), pixels);
+        assertTrue(block.length < pixels.length / 10);
+    }
+
+    @Test
+    public void roundTripsIncompressibleData() {
+        final byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        final byte[] block = assertRoundTrip(new BlockCompressor(), data);
+        assertTrue(block.length <= BlockCompressor.getMaxCompressedLength(data.length));
+    }
+
+    @Test
+    public void roundTripsLongLiteralsAndMatches() {
+        // Literal and match lengths over 15 and 270, which take extra bytes.
+        final byte[] data = new byte[2000];
+        final Random random = new Random(7);
+        random.nextBytes(data);
+        System.arraycopy(data, 0, data, 300, 600);
+        System.arraycopy(data, 300, data, 1300, 20);
+
+        assertRoundTrip(new BlockCompressor(), data);
+    }
+
+    @Test
+    public void reusesTheCompressor() {
+        final BlockCompressor compressor = new BlockCompressor();
+        final Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            final byte[] data = new byte[random.nextInt(5000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) random.nextInt(4);
+            }
+            assertRoundTrip(compressor, data);
+        }
+    }
+
+    private static byte[] assertRoundTrip(BlockCompressor compressor, byte[] data) {
+        final byte[] block = compressor.compress(ByteBuffer.wrap(data), data.length);
+        assertArrayEquals(data, decompress(block, data.length));
+        return block;
+    }
+
+    private static byte[] filled(int length, byte value) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = value;
+        }
+        return data;
+    }
+
+    /**
+     * Decodes an LZ4 block, as clients do.
+     */
+    private static byte[] decompress(byte[] block, int length) {
+        final byte[] output = new byte[length];
+        int in = 0;
+        int out = 0;
+        while (in < block.length) {
+            final int token = block[in++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    extra = block[in++] & 0xff;
+                    literals += extra;
+                } while (extra == 255);
+            }
+            System.arraycopy(block, in, output, out, literals);
+            in += literals;
+            out += literals;
+
+            if (in == block.length) {
+                break;
+            }
+
+            final int offset = (block[in] & 0xff) | ((block[in + 1] & 0xff) << 8);
+            in += 2;
+
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    extra = block[in++] & 0xff;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += 4;
+
+            // Matches may overlap the bytes they produce.
+            for (int i = 0; i < matchLength; i++, out++) {
+                output[out] = output[out - offset];
+            }
+        }
+
+        assertEquals(length, out);
+        return output;
+    }
+}
@@ -0,0 +1,86 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CaptureCoordinatorTest {
+    private final CaptureCoordinator mCoordinator = new CaptureCoordinator(null, null, null, null);
+
+    @Test
+    public void joinsCapturesWithTheSameKey() {
+        final CaptureCoordinator.Capture first = join("a", 0, new Cancellation());
+        assertSame(first, join("a", 0, new Cancellation()));
+        assertNotSame(first, join("b", 0, new Cancellation()));
+    }
+
+    @Test
+    public void cancelsTheCaptureWithItsLastSubscriber() {
+        final Cancellation first = new Cancellation();
+        final Cancellation second = new Cancellation();
+        final CaptureCoordinator.Capture capture = join("a", 0, first);
+        join("a", 0, second);
+
+        first.cancel();
+        assertFalse(capture.cancellation.isCancelled());
+
+        second.cancel();
+        assertTrue(capture.cancellation.isCancelled());
+        assertNotSame(capture, join("a", 0, new Cancellation()));
+    }
+
+    @Test
+    public void joinsOnlyCapturesThatEndLateEnough() {
+        final CaptureCoordinator.Capture capture = join("a", 100, new Cancellation());
+        assertSame(capture, join("a", 100, new Cancellation()));
+        assertSame(capture, join("a", 50, new Cancellation()));
+
+        // A capture that ends earlier would cut the request short.
+        final CaptureCoordinator.Capture later = join("a", 200, new Cancellation());
+        assertNotSame(capture, later);
+        assertSame(later, join("a", 150, new Cancellation()));
+    }
+
+    @Test
+    public void replacedCapturesGoOnForTheirSubscribers() {
+        final Cancellation request = new Cancellation();
+        final CaptureCoordinator.Capture capture = join("a", 100, request);
+        join("a", 200, new Cancellation());
+        assertFalse(capture.cancellation.isCancelled());
+
+        request.cancel();
+        assertTrue(capture.cancellation.isCancelled());
+    }
+
+    @Test
+    public void pollsTheSubscribersOfACapture() {
+        final Cancellation gone = new Cancellation();
+        gone.onPoll(new Runnable() {
+            @Override
+            public void run() {
+                gone.cancel();
+            }
+        });
+        final Cancellation waiting = new Cancellation();
+        final CaptureCoordinator.Capture capture = join("a", 0, gone);
+        join("a", 0, waiting);
+
+        assertFalse(capture.cancellation.poll());
+        assertTrue(gone.isCancelled());
+
+        waiting.cancel();
+        assertTrue(capture.cancellation.poll());
+    }
+
+    private CaptureCoordinator.Capture join(String options, long deadline, Cancellation request) {
+        return mCoordinator.join(new CaptureCoordinator.Key(null, options),
+                new CaptureCoordinator.Capture(deadline), request);
+    }
+}
@@ -0,0 +1,101 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionTest {
+    private ServerSocket mServer;
+    private Socket mClient;
+    private Connection mConnection;
+
+    @Before
+    public void connect() throws IOException {
+        mServer = ServerSocketChannel.open().socket();
+        mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mConnection = Connection.of(mServer.accept());
+    }
+
+    @After
+    public void close() throws IOException {
+        mClient.close();
+        mConnection.close();
+        mServer.close();
+    }
+
+    @Test
+    public void sendsFilesThroughTheChannel() throws IOException {
+        final WritableByteChannel target = mConnection.getChannel();
+        assertNotNull(target);
+
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final File file = File.createTempFile("revision", ".json");
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(data);
+            out.close();
+
+            final FileInputStream in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            for (long position = 0; position < data.length;) {
+                position += channel.transferTo(position, data.length - position, target);
+            }
+            in.close();
+        } finally {
+            file.delete();
+        }
+
+        final byte[] received = new byte[data.length];
+        new DataInputStream(mClient.getInputStream()).readFully(received);
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void noticesTheClientClosingTheConnection() throws IOException, InterruptedException {
+        assertFalse(mConnection.isClosedByClient());
+
+        mClient.close();
+        // The end of the input may take a moment to arrive.
+        for (int i = 0; i < 100 && !mConnection.isClosedByClient(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(mConnection.isClosedByClient());
+    }
+
+    @Test
+    public void keepsWritingAfterPolling() throws IOException {
+        mClient.getOutputStream().write("more".getBytes("UTF-8"));
+        assertFalse(mConnection.isClosedByClient());
+
+        mConnection.getOutputStream().write(42);
+        mConnection.getOutputStream().flush();
+        assertEquals(42, mClient.getInputStream().read());
+    }
+}
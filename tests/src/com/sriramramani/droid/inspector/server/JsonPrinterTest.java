@@ -0,0 +1,66 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JsonPrinterTest {
+
+    @Test
+    public void keepsPlainStrings() {
+        final String value = "TextView \u00e9\ud83d\ude00";
+        assertSame(value, JsonPrinter.escape(value));
+    }
+
+    @Test
+    public void escapesNull() {
+        assertEquals("", JsonPrinter.escape(null));
+    }
+
+    @Test
+    public void escapesQuotesAndBackslashes() {
+        assertEquals("\\\"a\\u0027b\\\\", JsonPrinter.escape("\"a'b\\"));
+    }
+
+    @Test
+    public void escapesControlCharacters() {
+        assertEquals("\\b\\f\\n\\r\\t\\u0000\\u001f", JsonPrinter.escape("\b\f\n\r\t\u0000\u001f"));
+    }
+
+    @Test
+    public void escapesLineSeparators() {
+        assertEquals("a\\u2028b\\u2029", JsonPrinter.escape("a\u2028b\u2029"));
+    }
+
+    @Test
+    public void escapesUnpairedSurrogates() {
+        assertEquals("\\ud83da", JsonPrinter.escape("\ud83da"));
+        assertEquals("a\\ude00", JsonPrinter.escape("a\ude00"));
+        assertEquals("\\ud83d", JsonPrinter.escape("\ud83d"));
+        assertEquals("\\ude00\ud83d\ude00", JsonPrinter.escape("\ude00\ud83d\ude00"));
+    }
+
+    @Test
+    public void printsWithTheQuoteOfTheRequest() throws IOException {
+        assertEquals("[{ 'revision':1, 'time':2}]", printTimeline("json"));
+        assertEquals("[{ \"revision\":1, \"time\":2}]", printTimeline("json strict"));
+    }
+
+    private static String printTimeline(String parameters) throws IOException {
+        final RequestOptions options = RequestOptions.parse(parameters);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ResponseWriter out = ResponseWriter.open(bytes, options);
+        JsonPrinter.printTimeline(out, options.getQuote(), Arrays.asList(new long[] { 1, 2 }));
+        out.close();
+        return bytes.toString("UTF-8");
+    }
+}
@@ -0,0 +1,107 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+
+public class MemoryBudgetTest {
+    // A 10x10 layer, and the same layer downscaled.
+    private static final long LAYER = MemoryBudget.getBitmapSize(10, 10);
+    private static final long DOWNSCALED_LAYER = MemoryBudget.getBitmapSize(5, 5);
+
+    @Test
+    public void reservesLayersInFull() {
+        final MemoryBudget.Allowance allowance = new MemoryBudget(4 * LAYER).newAllowance(2 * LAYER);
+        assertEquals(1, allowance.reserveLayer(10, 10, true, 1));
+        assertEquals(1, allowance.reserveLayer(10, 10, false, 1));
+    }
+
+    @Test
+    public void downscalesBeforeSkipping() {
+        final MemoryBudget.Allowance allowance =
+                new MemoryBudget(4 * LAYER).newAllowance(LAYER + DOWNSCALED_LAYER);
+        assertEquals(1, allowance.reserveLayer(10, 10, true, 1));
+        assertEquals(2, allowance.reserveLayer(10, 10, true, 1));
+
+        // Degradation doesn't go back once memory is released.
+        allowance.release(LAYER);
+        assertEquals(2, allowance.reserveLayer(10, 10, true, 1));
+    }
+
+    @Test
+    public void keepsTheScaleOfTheRequest() {
+        final long quarterLayer = MemoryBudget.getBitmapSize(2, 2);
+        final MemoryBudget.Allowance allowance =
+                new MemoryBudget(4 * LAYER).newAllowance(LAYER + DOWNSCALED_LAYER + quarterLayer);
+        assertEquals(1, allowance.reserveLayer(10, 10, true, 1));
+        assertEquals(2, allowance.reserveLayer(10, 10, true, 1));
+
+        // Not less downscaled than the request asked for.
+        assertEquals(4, allowance.reserveLayer(10, 10, true, 4));
+    }
+
+    @Test
+    public void skipsContentBeforeBackgrounds() {
+        final MemoryBudget.Allowance allowance =
+                new MemoryBudget(4 * LAYER).newAllowance(LAYER + DOWNSCALED_LAYER);
+        assertEquals(1, allowance.reserveLayer(10, 10, false, 1));
+
+        assertEquals(0, allowance.reserveLayer(20, 20, true, 1));
+        assertEquals(2, allowance.reserveLayer(10, 10, false, 1));
+
+        assertEquals(0, allowance.reserveLayer(10, 10, false, 1));
+    }
+
+    @Test
+    public void sharesTheGlobalLimit() {
+        final MemoryBudget budget = new MemoryBudget(2 * LAYER);
+        final MemoryBudget.Allowance first = budget.newAllowance(0);
+        final MemoryBudget.Allowance second = budget.newAllowance(0);
+        assertEquals(1, first.reserveLayer(10, 10, true, 1));
+        assertEquals(1, second.reserveLayer(10, 10, true, 1));
+
+        final MemoryBudget.Allowance third = budget.newAllowance(0);
+        assertEquals(0, third.reserveLayer(10, 10, true, 1));
+
+        first.close();
+        assertEquals(1, budget.newAllowance(0).reserveLayer(10, 10, true, 1));
+    }
+
+    @Test
+    public void degradesWhenRetainedLayersGoOverBudget() {
+        final MemoryBudget.Allowance allowance = new MemoryBudget(8 * LAYER).newAllowance(4 * LAYER);
+        allowance.retain(4 * LAYER);
+        allowance.release(4 * LAYER);
+        assertEquals(1, allowance.reserveLayer(10, 10, true, 1));
+        allowance.release(LAYER);
+
+        allowance.retain(5 * LAYER);
+        allowance.release(5 * LAYER);
+        assertEquals(2, allowance.reserveLayer(10, 10, true, 1));
+        allowance.release(DOWNSCALED_LAYER);
+
+        allowance.retain(5 * LAYER);
+        allowance.release(5 * LAYER);
+        assertEquals(0, allowance.reserveLayer(10, 10, true, 1));
+        assertEquals(2, allowance.reserveLayer(10, 10, false, 1));
+    }
+
+    @Test
+    public void shrinksTheLimitWhenMemoryIsLow() {
+        final MemoryBudget budget = new MemoryBudget(1000);
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(250, budget.getLimit());
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(500, budget.getLimit());
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(1000, budget.getLimit());
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(250, budget.getLimit());
+    }
+}
@@ -0,0 +1,126 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import android.view.View;
+
+public class OverdrawTest {
+
+    @Test
+    public void roundsTheGridUp() throws InterruptedException {
+        final Overdraw overdraw = compute(8, background(0, 0, 0, 100, 50, true));
+        assertEquals(13, overdraw.columns);
+        assertEquals(7, overdraw.rows);
+        assertEquals(13 * 7, overdraw.counts.length);
+    }
+
+    @Test
+    public void coversTheWindowWithLargeCells() throws InterruptedException {
+        final Overdraw overdraw = compute(Integer.MAX_VALUE, background(0, 0, 0, 100, 50, true));
+        assertEquals(1, overdraw.columns);
+        assertEquals(1, overdraw.rows);
+    }
+
+    @Test
+    public void countsLayersDrawnOverOthers() throws InterruptedException {
+        final Overdraw overdraw = compute(8,
+                background(0, 0, 0, 32, 32, true),
+                background(1, 0, 0, 16, 16, true));
+
+        assertArrayEquals(new int[] {
+            2, 2, 1, 1,
+            2, 2, 1, 1,
+            1, 1, 1, 1,
+            1, 1, 1, 1,
+        }, overdraw.counts);
+        assertArrayEquals(new int[] { 0, 4 * 64 }, overdraw.overdrawn);
+        assertArrayEquals(new int[] { 4 * 64, 0 }, overdraw.hidden);
+    }
+
+    @Test
+    public void onlyHidesUnderOpaqueBackgrounds() throws InterruptedException {
+        final Overdraw overdraw = compute(8,
+                background(0, 0, 0, 32, 32, true),
+                background(1, 0, 0, 16, 16, false));
+        assertArrayEquals(new int[] { 0, 0 }, overdraw.hidden);
+    }
+
+    @Test
+    public void coversTheCellsWhoseCenterIsDrawn() throws InterruptedException {
+        // The center of the first cell is at 4.
+        assertEquals(1, compute(8, background(0, 0, 0, 32, 32, true),
+                background(1, 0, 0, 4, 8, true)).counts[0]);
+        assertEquals(2, compute(8, background(0, 0, 0, 32, 32, true),
+                background(1, 0, 0, 5, 8, true)).counts[0]);
+    }
+
+    @Test
+    public void drawsOnlyTheMeasuredContent() throws InterruptedException {
+        final Snapshot.Node content = node(1, 0, 0, 32, 32);
+        content.measuredLayers = Snapshot.Node.LAYER_CONTENT;
+        content.contentBounds = new int[] { 8, 8, 16, 16 };
+
+        final Overdraw overdraw = compute(8, background(0, 0, 0, 32, 32, true), content);
+        assertEquals(1, overdraw.counts[0]);
+        assertEquals(2, overdraw.counts[4 + 1]);
+        assertArrayEquals(new int[] { 0, 64 }, overdraw.overdrawn);
+    }
+
+    @Test
+    public void countsMeasuredBackgrounds() throws InterruptedException {
+        final Snapshot.Node measured = node(1, 0, 0, 16, 16);
+        measured.isBackgroundOpaque = true;
+        measured.measuredLayers = Snapshot.Node.LAYER_BACKGROUND;
+
+        final Overdraw overdraw = compute(8, background(0, 0, 0, 32, 32, true), measured);
+        assertEquals(2, overdraw.counts[0]);
+        assertArrayEquals(new int[] { 4 * 64, 0 }, overdraw.hidden);
+    }
+
+    @Test
+    public void skipsInvisibleNodes() throws InterruptedException {
+        final Snapshot.Node gone = background(1, 0, 0, 16, 16, true);
+        gone.visibility = View.GONE;
+
+        final Overdraw overdraw = compute(8, background(0, 0, 0, 32, 32, true), gone);
+        assertArrayEquals(new int[] { 0, 0 }, overdraw.overdrawn);
+        assertEquals(1, overdraw.counts[0]);
+    }
+
+    private static Overdraw compute(int cellSize, Snapshot.Node... nodes) throws InterruptedException {
+        final Snapshot snapshot = new Snapshot();
+        for (Snapshot.Node node : nodes) {
+            snapshot.add(node);
+        }
+        snapshot.complete();
+        return new Overdraw(snapshot, cellSize);
+    }
+
+    private static Snapshot.Node background(int depth, int left, int top, int width, int height,
+            boolean isOpaque) {
+        final Snapshot.Node node = node(depth, left, top, width, height);
+        node.hasBackgroundColor = true;
+        node.isBackgroundOpaque = isOpaque;
+        return node;
+    }
+
+    private static Snapshot.Node node(int depth, int left, int top, int width, int height) {
+        final Snapshot.Node node = new Snapshot.Node();
+        node.depth = depth;
+        node.className = "android.view.View";
+        node.idName = "";
+        node.left = left;
+        node.top = top;
+        node.width = width;
+        node.height = height;
+        node.visibility = View.VISIBLE;
+        return node;
+    }
+}
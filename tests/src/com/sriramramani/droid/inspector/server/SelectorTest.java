@@ -0,0 +1,94 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.view.View;
+
+public class SelectorTest {
+    private Snapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        // 0 FrameLayout
+        //   1 TextView @app:id/title
+        //   2 LinearLayout
+        //     3 TextView @app:id/price, gone
+        //     4 Button @app:id/buy
+        mSnapshot = new Snapshot();
+        mSnapshot.add(node(10, 0, "android.widget.FrameLayout", "", 0, 0, 100, 100));
+        mSnapshot.add(node(11, 1, "android.widget.TextView", "[@app:id/title]", 0, 0, 100, 10));
+        mSnapshot.add(node(12, 1, "android.widget.LinearLayout", "", 0, 50, 100, 50));
+        final Snapshot.Node price = node(13, 2, "android.widget.TextView", "[@app:id/price]", 0, 0, 50, 10);
+        price.visibility = View.GONE;
+        mSnapshot.add(price);
+        mSnapshot.add(node(14, 2, "android.widget.Button", "[@app:id/buy]", 50, 0, 50, 10));
+        mSnapshot.complete();
+    }
+
+    @Test
+    public void rejectsSelectorsWithoutValidTerms() {
+        assertNull(Selector.parse(""));
+        assertNull(Selector.parse("unknown=1 flag"));
+        assertNull(Selector.parse("uid=1,x"));
+        assertNull(Selector.parse("visibility=hidden"));
+        assertNull(Selector.parse("bounds=1,2,3"));
+    }
+
+    @Test
+    public void findsByFullAndSimpleClassName() throws InterruptedException {
+        assertFind("class=android.widget.TextView", 1, 3);
+        assertFind("class=TextView", 1, 3);
+        assertFind("class=ImageView");
+    }
+
+    @Test
+    public void findsByFullAndEntryIdName() throws InterruptedException {
+        assertFind("id=@app:id/buy", 4);
+        assertFind("id=price", 3);
+    }
+
+    @Test
+    public void findsByUidInPreOrder() throws InterruptedException {
+        assertFind("uid=14,11,14,99", 1, 4);
+    }
+
+    @Test
+    public void intersectsTerms() throws InterruptedException {
+        assertFind("class=TextView id=title", 1);
+        assertFind("class=TextView uid=12,13,14", 3);
+        assertFind("class=TextView visibility=visible", 1);
+        assertFind("class=Button id=title");
+    }
+
+    @Test
+    public void filtersByBounds() throws InterruptedException {
+        assertFind("bounds=60,55,10,10", 0, 2, 4);
+    }
+
+    private void assertFind(String parameters, int... expected) throws InterruptedException {
+        assertArrayEquals(parameters, expected, Selector.parse(parameters).find(mSnapshot));
+    }
+
+    private static Snapshot.Node node(int uid, int depth, String className, String idName,
+            int left, int top, int width, int height) {
+        final Snapshot.Node node = new Snapshot.Node();
+        node.uid = uid;
+        node.depth = depth;
+        node.className = className;
+        node.idName = idName;
+        node.left = left;
+        node.top = top;
+        node.width = width;
+        node.height = height;
+        node.visibility = View.VISIBLE;
+        return node;
+    }
+}
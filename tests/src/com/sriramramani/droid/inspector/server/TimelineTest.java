@@ -0,0 +1,102 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimelineTest {
+
+    @Test
+    public void reconstructsEveryRevision() {
+        final Timeline timeline = new Timeline();
+        final Snapshot.Node[][] revisions = {
+            { node(1, 0, 0), node(2, 1, 0), node(3, 1, 0) },
+            // A node moved.
+            { node(1, 0, 0), node(2, 1, 10), node(3, 1, 0) },
+            // A node added in the middle, and one removed at the end.
+            { node(1, 0, 0), node(4, 1, 0), node(2, 1, 10) },
+            // Siblings swapped.
+            { node(1, 0, 0), node(2, 1, 10), node(4, 1, 0) },
+            // Everything changed.
+            { node(5, 0, 0) },
+        };
+
+        for (int i = 0; i < revisions.length; i++) {
+            assertEquals(i + 1, timeline.add(i, copy(revisions[i])));
+        }
+
+        for (int i = 0; i < revisions.length; i++) {
+            assertSameNodes(revisions[i], timeline.get(i + 1));
+        }
+    }
+
+    @Test
+    public void sharesUnchangedNodes() {
+        final Timeline timeline = new Timeline();
+        timeline.add(0, new Snapshot.Node[] { node(1, 0, 0), node(2, 1, 0) });
+        timeline.add(1, new Snapshot.Node[] { node(1, 0, 5), node(2, 1, 0) });
+
+        assertSame(timeline.get(1)[1], timeline.get(2)[1]);
+    }
+
+    @Test
+    public void skipsRevisionsWithoutChanges() {
+        final Timeline timeline = new Timeline();
+        assertEquals(1, timeline.add(0, new Snapshot.Node[] { node(1, 0, 0), node(2, 1, 0) }));
+        assertEquals(0, timeline.add(1, new Snapshot.Node[] { node(1, 0, 0), node(2, 1, 0) }));
+        assertEquals(1, timeline.getRevisions().size());
+    }
+
+    @Test
+    public void makesTheNextRevisionWholeWhenDroppingTheOldest() {
+        final Timeline timeline = new Timeline();
+        final int count = 600;
+        for (int i = 0; i < count; i++) {
+            timeline.add(i, new Snapshot.Node[] { node(1, 0, i), node(2, 1, 0) });
+        }
+
+        final List<long[]> retained = timeline.getRevisions();
+        assertTrue(retained.size() < count);
+        assertEquals(count, retained.get(retained.size() - 1)[0]);
+
+        final int oldest = (int) retained.get(0)[0];
+        assertNull(timeline.get(oldest - 1));
+        assertSameNodes(new Snapshot.Node[] { node(1, 0, oldest - 1), node(2, 1, 0) }, timeline.get(oldest));
+        assertSameNodes(new Snapshot.Node[] { node(1, 0, count - 1), node(2, 1, 0) }, timeline.get(count));
+    }
+
+    private static Snapshot.Node node(int uid, int depth, int left) {
+        final Snapshot.Node node = new Snapshot.Node();
+        node.uid = uid;
+        node.depth = depth;
+        node.left = left;
+        node.className = "android.view.View";
+        node.idName = "";
+        return node;
+    }
+
+    // Timeline replaces the unchanged nodes of the revisions it's given.
+    private static Snapshot.Node[] copy(Snapshot.Node[] nodes) {
+        final Snapshot.Node[] copy = new Snapshot.Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            copy[i] = node(nodes[i].uid, nodes[i].depth, nodes[i].left);
+        }
+        return copy;
+    }
+
+    private static void assertSameNodes(Snapshot.Node[] expected, Snapshot.Node[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue("node " + i, expected[i].hasSameProperties(actual[i]));
+        }
+    }
+}
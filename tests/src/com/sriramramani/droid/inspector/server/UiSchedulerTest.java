@@ -0,0 +1,149 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+public class UiSchedulerTest {
+    private final LinkedList<Runnable> mLooper = new LinkedList<Runnable>();
+    private final List<String> mRun = new ArrayList<String>();
+
+    private final UiScheduler mScheduler = new UiScheduler(new UiScheduler.Target() {
+        @Override
+        public void post(Runnable task) {
+            mLooper.addLast(task);
+        }
+
+        @Override
+        public void remove(Runnable task) {
+            mLooper.remove(task);
+        }
+    });
+
+    @Test
+    public void postsOnlyAFewTasksAtOnce() {
+        final UiScheduler.Client client = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        for (int i = 1; i <= 5; i++) {
+            client.post(task("a" + i));
+        }
+        assertEquals(3, mLooper.size());
+
+        mLooper.removeFirst().run();
+        assertEquals(3, mLooper.size());
+
+        runAll();
+        assertEquals(Arrays.asList("a1", "a2", "a3", "a4", "a5"), mRun);
+    }
+
+    @Test
+    public void clientsOfTheSamePriorityTakeTurns() {
+        final UiScheduler.Client first = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        final UiScheduler.Client second = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        for (int i = 1; i <= 5; i++) {
+            first.post(task("a" + i));
+        }
+        second.post(task("b1"));
+        second.post(task("b2"));
+
+        runAll();
+        assertEquals(Arrays.asList("a1", "a2", "a3", "a4", "b1", "a5", "b2"), mRun);
+    }
+
+    @Test
+    public void interactiveClientsGoFirst() {
+        final UiScheduler.Client bulk = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        final UiScheduler.Client interactive = mScheduler.newClient(UiScheduler.PRIORITY_INTERACTIVE);
+        for (int i = 1; i <= 5; i++) {
+            bulk.post(task("b" + i));
+        }
+        interactive.post(task("i1"));
+        interactive.post(task("i2"));
+
+        runAll();
+        assertEquals(Arrays.asList("b1", "b2", "b3", "i1", "i2", "b4", "b5"), mRun);
+    }
+
+    @Test
+    public void keepsSchedulingWhenATaskThrows() {
+        final UiScheduler.Client client = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        for (int i = 1; i <= 3; i++) {
+            client.post(task("a" + i));
+        }
+        client.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        client.post(task("a5"));
+
+        while (!mLooper.isEmpty()) {
+            try {
+                mLooper.removeFirst().run();
+            } catch (IllegalStateException e) {
+                // The looper would crash, the scheduler must not get stuck.
+            }
+        }
+        assertEquals(Arrays.asList("a1", "a2", "a3", "a5"), mRun);
+    }
+
+    @Test
+    public void cancellingAClientRemovesItsTasks() {
+        final UiScheduler.Client cancelled = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        final UiScheduler.Client other = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        final FutureTask<Void> waiting = new FutureTask<Void>(task("a4"), null);
+        for (int i = 1; i <= 3; i++) {
+            cancelled.post(task("a" + i));
+        }
+        cancelled.post(waiting);
+        other.post(task("b1"));
+
+        cancelled.cancel();
+        assertTrue(waiting.isCancelled());
+        assertEquals(1, mLooper.size());
+
+        final FutureTask<Void> late = new FutureTask<Void>(task("a5"), null);
+        cancelled.post(late);
+        assertTrue(late.isCancelled());
+
+        runAll();
+        assertEquals(Arrays.asList("b1"), mRun);
+    }
+
+    @Test
+    public void skipsPostedTasksOnceCancelled() {
+        final UiScheduler.Client client = mScheduler.newClient(UiScheduler.PRIORITY_BULK);
+        client.post(task("a1"));
+        final Runnable posted = mLooper.getFirst();
+
+        client.cancel();
+        posted.run();
+        assertTrue(mRun.isEmpty());
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRun.add(name);
+            }
+        };
+    }
+
+    private void runAll() {
+        while (!mLooper.isEmpty()) {
+            mLooper.removeFirst().run();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class XMLPrinterTest {
+
+    @Test
+    public void keepsPlainStrings() {
+        final String value = "TextView \u00e9\ud83d\ude00";
+        assertSame(value, XMLPrinter.escape(value));
+    }
+
+    @Test
+    public void escapesNull() {
+        assertEquals("", XMLPrinter.escape(null));
+    }
+
+    @Test
+    public void escapesMarkup() {
+        assertEquals("&lt;a href=&quot;x&quot;&gt;&amp;&apos;", XMLPrinter.escape("<a href=\"x\">&'"));
+    }
+
+    @Test
+    public void keepsWhitespaceAsReferences() {
+        assertEquals("a&#9;b&#10;c&#13;", XMLPrinter.escape("a\tb\nc\r"));
+    }
+
+    @Test
+    public void replacesCharactersXmlDoesNotAllow() {
+        assertEquals("\ufffd\ufffd\ufffd\ufffd", XMLPrinter.escape("\u0000\u001f\ufffe\uffff"));
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        assertEquals("\ufffda", XMLPrinter.escape("\ud83da"));
+        assertEquals("a\ufffd", XMLPrinter.escape("a\ude00"));
+        assertEquals("\ufffd", XMLPrinter.escape("\ud83d"));
+        assertEquals("\ufffd\ud83d\ude00", XMLPrinter.escape("\ude00\ud83d\ude00"));
+    }
+}